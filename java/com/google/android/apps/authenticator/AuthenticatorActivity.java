@@ -61,7 +61,7 @@ import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.AdapterView.OnItemClickListener;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
@@ -75,15 +75,18 @@ import com.google.android.apps.authenticator.barcode.BarcodeConditionChecker;
 import com.google.android.apps.authenticator.enroll2sv.wizard.AddAccountActivity;
 import com.google.android.apps.authenticator.howitworks.HowItWorksActivity;
 import com.google.android.apps.authenticator.otp.AccountDb;
-import com.google.android.apps.authenticator.otp.AccountDb.AccountDbIdUpdateFailureException;
 import com.google.android.apps.authenticator.otp.AccountDb.AccountIndex;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountRecord;
 import com.google.android.apps.authenticator.otp.AccountDb.OtpType;
+import com.google.android.apps.authenticator.otp.AsyncAccountDb;
 import com.google.android.apps.authenticator.otp.CheckCodeActivity;
 import com.google.android.apps.authenticator.otp.EnterKeyActivity;
 import com.google.android.apps.authenticator.otp.OtpSource;
 import com.google.android.apps.authenticator.otp.OtpSourceException;
 import com.google.android.apps.authenticator.otp.PinInfo;
+import com.google.android.apps.authenticator.otp.PinListUpdate;
 import com.google.android.apps.authenticator.otp.TotpClock;
+import com.google.android.apps.authenticator.otp.TotpCodePrefetcher;
 import com.google.android.apps.authenticator.otp.TotpCountdownTask;
 import com.google.android.apps.authenticator.otp.TotpCounter;
 import com.google.android.apps.authenticator.settings.SettingsActivity;
@@ -99,7 +102,6 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.mobeta.android.dslv.DragSortController;
 import com.mobeta.android.dslv.DragSortItemView;
-import com.mobeta.android.dslv.DragSortListView.DragListener;
 import com.mobeta.android.dslv.DragSortListView.DropListener;
 import java.io.Serializable;
 import java.util.List;
@@ -126,7 +128,10 @@ public class AuthenticatorActivity extends TestableActivity {
    */
   public static final String KEY_ONBOARDING_COMPLETED = "onboardingCompleted";
 
-  /** Frequency (milliseconds) with which TOTP countdown indicators are updated. */
+  /**
+   * Frequency (milliseconds) with which TOTP countdown indicators are updated while at least one of
+   * them is visible.
+   */
   public static final long TOTP_COUNTDOWN_REFRESH_PERIOD_MILLIS = 100L;
 
   /**
@@ -192,13 +197,36 @@ public class AuthenticatorActivity extends TestableActivity {
   private TotpCountdownTask totpCountdownTask;
 
   /**
-   * Phase of TOTP countdown indicators. The phase is in {@code [0, 1]} with {@code 1} meaning full
-   * time step remaining until the code refreshes, and {@code 0} meaning the code is refreshing
-   * right now.
+   * Computes the TOTP codes of the next time window shortly before the TOTP codes refresh, so that
+   * they can be displayed without delay.
+   */
+  private TotpCodePrefetcher totpCodePrefetcher;
+
+  /**
+   * Incremented by every {@link #refreshView(boolean)}. The accounts read by a refresh are only
+   * displayed if no later refresh was requested in the meantime.
+   */
+  private int latestRefreshGeneration;
+
+  /**
+   * Whether an account was modified since the list was last refreshed, i.e., whether the next
+   * completed refresh needs to be a full one.
    */
-  private double totpCountdownPhase;
+  private boolean pendingRefreshIsAccountModified;
+
+  /**
+   * Phase shared by the TOTP countdown indicators. The phase is in {@code [0, 1]} with {@code 1}
+   * meaning full time step remaining until the code refreshes, and {@code 0} meaning the code is
+   * refreshing right now.
+   */
+  private final CountdownPhase totpCountdownPhase = new CountdownPhase();
+
+  /**
+   * Accesses the {@link AccountDb} off the UI thread. The database is not accessed, nor even
+   * opened, on the UI thread.
+   */
+  protected AsyncAccountDb asyncAccountDb;
 
-  protected AccountDb accountDb;
   @Inject OtpSource otpProvider;
 
   /**
@@ -271,7 +299,7 @@ public class AuthenticatorActivity extends TestableActivity {
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
 
-    accountDb = DependencyInjector.getAccountDb();
+    asyncAccountDb = DependencyInjector.getAsyncAccountDb();
     preferences = PreferenceManager.getDefaultSharedPreferences(this);
 
     // Apply theme based on user's preference.
@@ -287,6 +315,8 @@ public class AuthenticatorActivity extends TestableActivity {
 
     totpCounter = otpProvider.getTotpCounter();
     totpClock = otpProvider.getTotpClock();
+    // Obtains the database on its own thread
+    totpCodePrefetcher = new TotpCodePrefetcher(DependencyInjector::getAccountDb, otpProvider);
 
     setContentView(R.layout.main);
 
@@ -295,9 +325,13 @@ public class AuthenticatorActivity extends TestableActivity {
 
     // If the number of accounts is bigger than 0, we assume the user has completed the onboarding
     // experience (i.e. for upgrading users who have already added accounts into the app).
-    if (getAccountCount() > 0) {
-      preferences.edit().putBoolean(KEY_ONBOARDING_COMPLETED, true).commit();
-    }
+    asyncAccountDb.getAccountCount(
+        accountCount -> {
+          if (accountCount > 0) {
+            onboardingCompleted = true;
+            preferences.edit().putBoolean(KEY_ONBOARDING_COMPLETED, true).apply();
+          }
+        });
 
     // restore state on screen rotation
     @SuppressWarnings("deprecation") // TODO: refactor to use savedInstanceState instead
@@ -393,36 +427,37 @@ public class AuthenticatorActivity extends TestableActivity {
               }
             });
 
-    userAdapter = new PinListAdapter(this, R.layout.user_row, users);
+    userAdapter = new PinListAdapter();
 
     userList.setAdapter(userAdapter);
     userList.setDropListener(
         new DropListener() {
           @Override
           public void drop(int from, int to) {
-            userAdapter.notifyDataSetChanged();
-          }
-        });
-    userList.setDragListener(
-        new DragListener() {
-          @Override
-          public void drag(int from, int to) {
-            if (from == to) {
-              return;
-            }
-            List<AccountIndex> accounts = accountDb.getAccounts();
-            AccountIndex firstIndex = accounts.get(from);
-            AccountIndex secondIndex = accounts.get(to);
-            try {
-              // drag callback is fired in a worker thread, swapping the Ids doesn't affect the UI
-              // thread.
-              accountDb.swapId(firstIndex, secondIndex);
-            } catch (AccountDbIdUpdateFailureException e) {
-              Toast.makeText(
-                      getApplicationContext(), R.string.accounts_reorder_failed, Toast.LENGTH_SHORT)
-                  .show();
+            if (from != to) {
+              // The new order is only persisted once dropped, however many rows it was dragged by.
+              // The list is reordered right away, any later refresh reads the persisted order.
+              asyncAccountDb.moveAccount(
+                  users[from].getIndex(),
+                  users[to].getIndex(),
+                  moved -> {
+                    // Codes prefetched while the move was pending may be in the old order
+                    totpCodePrefetcher.invalidate();
+                    if (!moved) {
+                      Toast.makeText(
+                              getApplicationContext(),
+                              R.string.accounts_reorder_failed,
+                              Toast.LENGTH_SHORT)
+                          .show();
+                    }
+                  });
+              // Prefetched codes are in the order of the accounts before the move, and so are the
+              // accounts read by refreshes still in progress
+              totpCodePrefetcher.invalidate();
+              latestRefreshGeneration++;
+              PinInfo.moveIndex(users, from, to);
             }
-            PinInfo.swapIndex(users, from, to);
+            userAdapter.notifyDataSetChanged();
           }
         });
     DragItemController dragItemController = new DragItemController(userList, this);
@@ -656,11 +691,26 @@ public class AuthenticatorActivity extends TestableActivity {
     super.onStop();
   }
 
+  @Override
+  protected void onDestroy() {
+    totpCodePrefetcher.shutdown();
+
+    super.onDestroy();
+  }
+
   private void updateCodesAndStartTotpCountdownTask() {
     stopTotpCountdownTask();
-
-    totpCountdownTask =
-        new TotpCountdownTask(totpCounter, totpClock, TOTP_COUNTDOWN_REFRESH_PERIOD_MILLIS);
+    // Accounts may have been modified elsewhere while this activity was stopped
+    totpCodePrefetcher.invalidate();
+
+    // Wake up in time for the prefetcher even while no countdown indicator is visible
+    final TotpCountdownTask task =
+        new TotpCountdownTask(
+            totpCounter,
+            totpClock,
+            TOTP_COUNTDOWN_REFRESH_PERIOD_MILLIS,
+            TotpCodePrefetcher.DEFAULT_LEAD_TIME_MILLIS);
+    totpCountdownTask = task;
     totpCountdownTask.setListener(
         new TotpCountdownTask.Listener() {
           @Override
@@ -670,6 +720,9 @@ public class AuthenticatorActivity extends TestableActivity {
               return;
             }
             setTotpCountdownPhaseFromTimeTillNextValue(millisRemaining);
+            // Only keep animating while there is a countdown indicator to animate
+            task.setCountdownAnimationEnabled(totpCountdownPhase.isAnyIndicatorShown());
+            totpCodePrefetcher.onTotpCountdown(millisRemaining);
           }
 
           @Override
@@ -699,7 +752,7 @@ public class AuthenticatorActivity extends TestableActivity {
    */
   private void refreshOrientationState() {
     boolean isTablet = getResources().getBoolean(R.bool.isTablet);
-    if (!isTablet && (getAccountCount() == 0 || firstAccountAddedNoticeDisplayRequired)) {
+    if (!isTablet && (users.length == 0 || firstAccountAddedNoticeDisplayRequired)) {
       // Lock to portrait mode.
       setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_USER_PORTRAIT);
     } else {
@@ -768,8 +821,7 @@ public class AuthenticatorActivity extends TestableActivity {
   }
 
   private void setTotpCountdownPhase(double phase) {
-    totpCountdownPhase = phase;
-    updateCountdownIndicators();
+    totpCountdownPhase.setPhase(phase);
   }
 
   private void setTotpCountdownPhaseFromTimeTillNextValue(long millisRemaining) {
@@ -784,55 +836,83 @@ public class AuthenticatorActivity extends TestableActivity {
     setTotpCountdownPhase(1.0);
   }
 
-  private void updateCountdownIndicators() {
-    for (int i = 0, len = userList.getChildCount(); i < len; i++) {
-      View listEntry = userList.getChildAt(i);
-      CountdownIndicator indicator = listEntry.findViewById(R.id.countdown_icon);
-      if (indicator != null) {
-        indicator.setPhase(totpCountdownPhase);
-      }
+  /** Starts animating the countdown indicators, e.g., when a TOTP entry scrolls into view. */
+  private void startCountdownAnimation() {
+    if (totpCountdownTask != null) {
+      totpCountdownTask.setCountdownAnimationEnabled(true);
     }
   }
 
   /**
-   * Display list of user account names and updated pin codes.
+   * Display list of user account names and updated pin codes. Unless the codes were prefetched, the
+   * accounts are read in the background and the list is updated once they have been read.
    *
    * @param isAccountModified if true, force full refresh
    */
   @VisibleForTesting
   public void refreshView(boolean isAccountModified) {
-    List<AccountIndex> accounts = accountDb.getAccounts();
-    int userCount = accounts.size();
+    final long counterValue =
+        totpCounter.getValueAtTime(Utilities.millisToSeconds(totpClock.nowMillis()));
+    final int refreshGeneration = ++latestRefreshGeneration;
+    pendingRefreshIsAccountModified |= isAccountModified;
+    TotpCodePrefetcher.Codes prefetchedCodes = null;
+    if (pendingRefreshIsAccountModified) {
+      totpCodePrefetcher.invalidate();
+    } else {
+      prefetchedCodes = totpCodePrefetcher.takeCodes(counterValue);
+    }
 
-    if (userCount > 0) {
-      boolean newListRequired = isAccountModified || users.length != userCount;
-      if (newListRequired) {
-        users = new PinInfo[userCount];
-      }
+    if (prefetchedCodes != null) {
+      updateUserList(prefetchedCodes);
+      return;
+    }
 
-      for (int i = 0; i < userCount; ++i) {
-        AccountIndex user = accounts.get(i);
-        try {
-          computeAndDisplayPin(user, i, false);
-        } catch (OtpSourceException ignored) {
-          // Ignore
-        }
-      }
+    // The accounts are read after any modification submitted before this refresh, and their codes
+    // are computed in the background too. Only the finished codes are handed to the UI thread.
+    asyncAccountDb.submit(
+        db -> {
+          // Generate all TOTP codes at once, from the same accounts snapshot and for the same
+          // window
+          List<AccountRecord> accounts = db.getAccountRecords();
+          return new TotpCodePrefetcher.Codes(
+              counterValue, accounts, otpProvider.getTotpCodes(accounts, counterValue));
+        },
+        codes -> {
+          if ((refreshGeneration != latestRefreshGeneration) || isFinishing()) {
+            // Superseded by a later refresh, or no longer needed
+            return;
+          }
+          if (pendingRefreshIsAccountModified) {
+            // Codes prefetched while the modification was pending may predate it
+            totpCodePrefetcher.invalidate();
+          }
+          updateUserList(codes);
+        });
+  }
 
-      if (newListRequired) {
-        if (actionMode != null) {
-          actionMode.finish();
-          actionMode = null;
-        }
-        // Make the list display the data from the newly created array of accounts
-        // This forces the list to scroll to top.
-        userAdapter = new PinListAdapter(this, R.layout.user_row, users);
-        userList.setAdapter(userAdapter);
-      }
+  /** Displays the accounts and their TOTP codes, completing {@link #refreshView(boolean)}. */
+  private void updateUserList(TotpCodePrefetcher.Codes codes) {
+    boolean isAccountModified = pendingRefreshIsAccountModified;
+    pendingRefreshIsAccountModified = false;
+    List<AccountRecord> accounts = codes.getAccounts();
+    int userCount = accounts.size();
+
+    if ((userCount > 0) && (isAccountModified || users.length != userCount)
+        && (actionMode != null)) {
+      actionMode.finish();
+      actionMode = null;
+    }
 
+    // Only redraw what changed: the adapter reads from users, so replacing it does not reset the
+    // list (nor its scroll position)
+    PinListUpdate update =
+        PinListUpdate.compute(
+            users, accounts, codes.getCodes(), getString(R.string.empty_pin), isAccountModified);
+    users = update.getPins();
+    if (update.isStructureChanged()) {
       userAdapter.notifyDataSetChanged();
     } else {
-      users = new PinInfo[0]; // clear any existing user PIN state
+      rebindRows(update.getChangedPositions());
     }
 
     refreshLayoutByUserNumber();
@@ -904,37 +984,62 @@ public class AuthenticatorActivity extends TestableActivity {
   }
 
   /**
-   * Computes the PIN and saves it in users. This currently runs in the UI thread so it should not
-   * take more than a second or so. If necessary, we can move the computation to a background
-   * thread.
-   *
-   * @param user the user account to display with the PIN
-   * @param position the index for the screen of this user and PIN
-   * @param computeHotp true if we should increment counter and display new hotp
+   * Redraws the rows displaying the specified positions, if they are currently laid out, without
+   * redrawing the rest of the list.
    */
-  public void computeAndDisplayPin(AccountIndex user, int position, boolean computeHotp)
-      throws OtpSourceException {
-
-    PinInfo currentPin;
-    if (users[position] != null) {
-      currentPin = users[position]; // existing PinInfo, so we'll update it
-    } else {
-      OtpType type = accountDb.getType(user);
-      currentPin = new PinInfo(user, type == OtpType.HOTP);
-      currentPin.setPin(getString(R.string.empty_pin));
-      currentPin.setIsHotpCodeGenerationAllowed(true);
-    }
-
-    if (!currentPin.isHotp() || computeHotp) {
-      // Always safe to recompute, because this code path is only
-      // reached if the account is:
-      // - Time-based, in which case getNextCode() does not change state.
-      // - Counter-based (HOTP) and computeHotp is true.
-      currentPin.setPin(otpProvider.getNextCode(user));
-      currentPin.setIsHotpCodeGenerationAllowed(true);
+  private void rebindRows(int[] positions) {
+    // Each laid out row is a DragSortItemView wrapping the view returned by userAdapter, so the
+    // rows are rebound through the list's own adapter, which unwraps them
+    ListAdapter listAdapter = userList.getAdapter();
+    int headerCount = userList.getHeaderViewsCount();
+    int firstVisiblePosition = userList.getFirstVisiblePosition();
+    for (int position : positions) {
+      int listPosition = position + headerCount;
+      View row = userList.getChildAt(listPosition - firstVisiblePosition);
+      if (row != null) {
+        listAdapter.getView(listPosition, row, userList);
+      }
     }
+  }
 
-    users[position] = currentPin;
+  /**
+   * Computes the next PIN of the account in the background and displays it once it is ready. The
+   * row displays the placeholder PIN in the meantime.
+   *
+   * <p>Reading the account, decoding its key, incrementing the HOTP counter and computing the code
+   * all happen on the {@link AsyncAccountDb} worker. As the worker runs one operation at a time,
+   * counter increments happen in the order in which the codes were requested. Generating codes for
+   * the account is disallowed from the moment this method is invoked, so that a code is only
+   * requested once per tap; it is up to {@code onPinDisplayed} to allow it again.
+   *
+   * @param account the displayed account to compute the PIN of
+   * @param onPinDisplayed invoked on the UI thread with the PIN once it is displayed, or with
+   *     {@code null} if it could not be computed.
+   */
+  private void computeAndDisplayPin(
+      final PinInfo account, final AsyncAccountDb.Callback<String> onPinDisplayed) {
+    account.setIsHotpCodeGenerationAllowed(false);
+    account.setPin(getString(R.string.empty_pin));
+    userAdapter.notifyDataSetChanged();
+
+    final AccountIndex index = account.getIndex();
+    asyncAccountDb.submit(
+        db -> {
+          try {
+            return otpProvider.getNextCode(index);
+          } catch (OtpSourceException e) {
+            // E.g., the account was removed in the meantime
+            Log.e(LOCAL_TAG, "Failed to generate OTP for account", e);
+            return null;
+          }
+        },
+        pin -> {
+          if (pin != null) {
+            account.setPin(pin);
+          }
+          userAdapter.notifyDataSetChanged();
+          onPinDisplayed.onResult(pin);
+        });
   }
 
   /**
@@ -996,7 +1101,7 @@ public class AuthenticatorActivity extends TestableActivity {
     }
 
     issuer = uri.getQueryParameter(ISSUER_PARAM);
-    AccountIndex index = new AccountIndex(name, issuer);
+    final AccountIndex index = new AccountIndex(name, issuer);
     secret = uri.getQueryParameter(SECRET_PARAM);
 
     if (secret == null || secret.length() == 0) {
@@ -1011,20 +1116,28 @@ public class AuthenticatorActivity extends TestableActivity {
       return;
     }
 
-    if (secret.equals(accountDb.getSecret(index))
-        && counter.equals(accountDb.getCounter(index))
-        && type == accountDb.getType(index)) {
-      return; // nothing to update.
-    }
+    asyncAccountDb.getAccountRecord(
+        index,
+        existingRecord -> {
+          if ((existingRecord != null)
+              && secret.equals(existingRecord.getSecret())
+              && counter.equals(existingRecord.getCounter())
+              && type == existingRecord.getType()) {
+            return; // nothing to update.
+          }
+          if (isFinishing()) {
+            return;
+          }
 
-    if (confirmBeforeSave) {
-      Bundle dialogArgs = new Bundle();
-      dialogArgs.putSerializable(
-          KEY_SAVE_KEY_DIALOG_PARAMS, new SaveKeyDialogParams(index, secret, type, counter));
-      showDialog(DIALOG_ID_SAVE_KEY, dialogArgs);
-    } else {
-      saveSecretAndRefreshUserList(index, secret, type, counter);
-    }
+          if (confirmBeforeSave) {
+            Bundle dialogArgs = new Bundle();
+            dialogArgs.putSerializable(
+                KEY_SAVE_KEY_DIALOG_PARAMS, new SaveKeyDialogParams(index, secret, type, counter));
+            showDialog(DIALOG_ID_SAVE_KEY, dialogArgs);
+          } else {
+            saveSecretAndRefreshUserList(index, secret, type, counter);
+          }
+        });
   }
 
   private static String validateAndGetNameInPath(String path) {
@@ -1049,51 +1162,88 @@ public class AuthenticatorActivity extends TestableActivity {
    */
   private void saveSecretAndRefreshUserList(
       AccountIndex index, String secret, OtpType type, Integer counter) {
-    if (saveSecret(this, index, secret, type, counter)) {
-      updateFirstAccountAddedNoticeDisplay();
-      refreshView(true);
-    }
+    saveSecret(
+        this,
+        index,
+        secret,
+        type,
+        counter,
+        new Runnable() {
+          @Override
+          public void run() {
+            if (isFinishing()) {
+              return;
+            }
+            updateFirstAccountAddedNoticeDisplay();
+            refreshView(true);
+          }
+        });
   }
 
   /**
-   * Saves the secret key to local storage on the phone.
+   * Saves the secret key to local storage on the phone. The key is written in the background, but
+   * before any {@link AsyncAccountDb} operation submitted after this method returns. Whether it was
+   * saved is only shown to the user once it has been written, so the context may be finished by
+   * then.
    *
    * @param index the intended {@link AccountIndex} to update/add
    * @param secret the secret key
    * @param type hotp vs totp
    * @param counter only important for the hotp type
-   * @return {@code true} if the secret was saved, {@code false} otherwise.
+   * @param onSaved invoked on the main thread once the secret has been saved, or {@code null}
    */
-  public static boolean saveSecret(
-      Context context, AccountIndex index, String secret, OtpType type, Integer counter) {
+  public static void saveSecret(
+      Context context,
+      AccountIndex index,
+      String secret,
+      OtpType type,
+      Integer counter,
+      final Runnable onSaved) {
+    // The activity may be finished by the time the secret is saved
+    final Context appContext = context.getApplicationContext();
     if (secret != null) {
-      AccountDb accountDb = DependencyInjector.getAccountDb();
-      accountDb.add(index.getName(), secret, type, counter, null, index.getIssuer());
-      // TODO: Consider having a display message that activities can call and it will present a
-      // toast with a uniform duration, and perhaps update status messages (presuming we have a way
-      // to remove them after they are stale).
-      Toast.makeText(context, R.string.secret_saved, Toast.LENGTH_LONG).show();
-      ((Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE)).vibrate(VIBRATE_DURATION);
-      return true;
+      DependencyInjector.getAsyncAccountDb()
+          .add(
+              index.getName(),
+              secret,
+              type,
+              counter,
+              null,
+              index.getIssuer(),
+              new AsyncAccountDb.Callback<AccountIndex>() {
+                @Override
+                public void onResult(AccountIndex savedIndex) {
+                  // TODO: Consider having a display message that activities can call and it will
+                  // present a toast with a uniform duration, and perhaps update status messages
+                  // (presuming we have a way to remove them after they are stale).
+                  Toast.makeText(appContext, R.string.secret_saved, Toast.LENGTH_LONG).show();
+                  ((Vibrator) appContext.getSystemService(Context.VIBRATOR_SERVICE))
+                      .vibrate(VIBRATE_DURATION);
+                  if (onSaved != null) {
+                    onSaved.run();
+                  }
+                }
+              },
+              new AsyncAccountDb.ErrorCallback() {
+                @Override
+                public void onError(RuntimeException e) {
+                  Log.e(LOCAL_TAG, "Failed to save secret key", e);
+                  Toast.makeText(appContext, R.string.error_save_secret, Toast.LENGTH_LONG).show();
+                }
+              });
     } else {
       Log.e(LOCAL_TAG, "Trying to save an empty secret key");
       Toast.makeText(context, R.string.error_empty_secret, Toast.LENGTH_LONG).show();
-      return false;
     }
   }
 
-  /** Gets the number of accounts in the {@link AccountDb}. */
-  private int getAccountCount() {
-    return accountDb.getAccounts().size();
-  }
-
   /**
    * Sets the number of accounts in {@link AccountDb} that were there during the most recent launch
    * of this "page". "Launch" is defined from the pespective of user's actions (starting the app,
    * performing an operation that changes this page, etc.).
    */
   private void setLastLaunchAccountCount(int accountCount) {
-    preferences.edit().putInt(PREF_KEY_LAST_LAUNCH_ACCOUNT_COUNT, accountCount).commit();
+    preferences.edit().putInt(PREF_KEY_LAST_LAUNCH_ACCOUNT_COUNT, accountCount).apply();
   }
 
   /**
@@ -1107,7 +1257,7 @@ public class AuthenticatorActivity extends TestableActivity {
 
   /** Hides the notice that appears after the first account was added. */
   private void dismissFirstAccountAddedNoticeDisplay() {
-    setLastLaunchAccountCount(getAccountCount());
+    asyncAccountDb.getAccountCount(accountCount -> setLastLaunchAccountCount(accountCount));
     firstAccountAddedNoticeDisplayRequired = false;
     refreshFirstAccountAddedNoticeDisplay();
     refreshOrientationState();
@@ -1121,18 +1271,23 @@ public class AuthenticatorActivity extends TestableActivity {
     // IMPLEMENTATION NOTE: The notice is displayed iff there are accounts in AccountDb at the
     // moment and there were no accounts last time this Activity was launched by the user.
 
-    int previousAccountCount = getLastLaunchAccountCount();
-    if (previousAccountCount < 0) {
-      // Never launched before with this feature implemented -- pretend that the number of accounts
-      // hasn't changed since last launch.
-      previousAccountCount = getAccountCount();
-    }
-    int currentAccountCount = getAccountCount();
-    setLastLaunchAccountCount(currentAccountCount);
-    firstAccountAddedNoticeDisplayRequired =
-        (previousAccountCount == 0) && (currentAccountCount > 0);
-    refreshFirstAccountAddedNoticeDisplay();
-    refreshOrientationState();
+    asyncAccountDb.getAccountCount(
+        currentAccountCount -> {
+          if (isFinishing()) {
+            return;
+          }
+          int previousAccountCount = getLastLaunchAccountCount();
+          if (previousAccountCount < 0) {
+            // Never launched before with this feature implemented -- pretend that the number of
+            // accounts hasn't changed since last launch.
+            previousAccountCount = currentAccountCount;
+          }
+          setLastLaunchAccountCount(currentAccountCount);
+          firstAccountAddedNoticeDisplayRequired =
+              (previousAccountCount == 0) && (currentAccountCount > 0);
+          refreshFirstAccountAddedNoticeDisplay();
+          refreshOrientationState();
+        });
   }
 
   @Override
@@ -1209,33 +1364,44 @@ public class AuthenticatorActivity extends TestableActivity {
           .show();
       return true;
     } else if (item.getItemId() == R.id.delete) {
-      AlertDialog.Builder alertDialogBuilder =
-          new AlertDialog.Builder(this)
-              .setTitle(getString(R.string.remove_account_dialog_title, index))
-              .setMessage(
-                  Utilities.getStyledTextFromHtml(
-                      getString(
-                          accountDb.isGoogleAccount(index)
-                              ? R.string.remove_google_account_dialog_message
-                              : R.string.remove_account_dialog_message)))
-              .setPositiveButton(
-                  R.string.remove_account_dialog_button_remove,
-                  new DialogInterface.OnClickListener() {
-                    @Override
-                    public void onClick(DialogInterface dialog, int whichButton) {
-                      accountDb.delete(index);
-                      dismissFirstAccountAddedNoticeDisplay();
-                      refreshView(true);
-                    }
-                  })
-              .setNegativeButton(R.string.cancel, null)
-              .setIcon(R.drawable.quantum_ic_report_problem_grey600_24);
-      alertDialogBuilder.show();
+      asyncAccountDb.isGoogleAccount(
+          index,
+          isGoogleAccount -> {
+            if (isFinishing()) {
+              return;
+            }
+            showRemoveAccountDialog(index, isGoogleAccount);
+          });
       return true;
     }
     return super.onContextItemSelected(item);
   }
 
+  private void showRemoveAccountDialog(final AccountIndex index, boolean isGoogleAccount) {
+    AlertDialog.Builder alertDialogBuilder =
+        new AlertDialog.Builder(this)
+            .setTitle(getString(R.string.remove_account_dialog_title, index))
+            .setMessage(
+                Utilities.getStyledTextFromHtml(
+                    getString(
+                        isGoogleAccount
+                            ? R.string.remove_google_account_dialog_message
+                            : R.string.remove_account_dialog_message)))
+            .setPositiveButton(
+                R.string.remove_account_dialog_button_remove,
+                new DialogInterface.OnClickListener() {
+                  @Override
+                  public void onClick(DialogInterface dialog, int whichButton) {
+                    asyncAccountDb.delete(index, null);
+                    dismissFirstAccountAddedNoticeDisplay();
+                    refreshView(true);
+                  }
+                })
+            .setNegativeButton(R.string.cancel, null)
+            .setIcon(R.drawable.quantum_ic_report_problem_grey600_24);
+    alertDialogBuilder.show();
+  }
+
   private DialogInterface.OnClickListener getRenameClickListener(
       final Context context, final AccountIndex user, final EditText nameEdit) {
     return new DialogInterface.OnClickListener() {
@@ -1244,13 +1410,17 @@ public class AuthenticatorActivity extends TestableActivity {
         String newName = nameEdit.getText().toString().trim();
         AccountIndex newIndex = new AccountIndex(newName, user.getIssuer());
         if (!newIndex.getStrippedName().equals(user.getStrippedName())) {
-          if (accountDb.findSimilarExistingIndex(newIndex) != null) {
-            Toast.makeText(context, R.string.error_exists, Toast.LENGTH_LONG).show();
-          } else {
-            accountDb.rename(user, newName);
-            dismissFirstAccountAddedNoticeDisplay();
-            refreshView(true);
-          }
+          asyncAccountDb.renameUnlessSimilarExists(
+              user,
+              newName,
+              renamed -> {
+                if (!renamed) {
+                  Toast.makeText(context, R.string.error_exists, Toast.LENGTH_LONG).show();
+                } else if (!isFinishing()) {
+                  dismissFirstAccountAddedNoticeDisplay();
+                  refreshView(true);
+                }
+              });
         }
       }
     };
@@ -1610,22 +1780,28 @@ public class AuthenticatorActivity extends TestableActivity {
     @SuppressWarnings("deprecation") // TODO: refactor to use DialogFrament
     @Override
     public void onClick(View v) {
-      int position = findAccountPositionInList();
-      if (position == -1) {
+      if (findAccountPositionInList() == -1) {
         throw new RuntimeException("Account not in list: " + account);
       }
-
-      try {
-        computeAndDisplayPin(account.getIndex(), position, true);
-      } catch (OtpSourceException e) {
-        throw new RuntimeException("Failed to generate OTP for account", e);
+      if (!account.isHotpCodeGenerationAllowed()) {
+        // The previous code is still being computed, or was generated too recently
+        return;
       }
 
-      final String pin = account.getPin();
+      // Code generation for this account is disabled until the code is displayed
+      computeAndDisplayPin(
+          account,
+          pin -> {
+            if (pin == null) {
+              account.setIsHotpCodeGenerationAllowed(true);
+              userAdapter.notifyDataSetChanged();
+              return;
+            }
+            onPinDisplayed(pin);
+          });
+    }
 
-      // Temporarily disable code generation for this account
-      account.setIsHotpCodeGenerationAllowed(false);
-      userAdapter.notifyDataSetChanged();
+    private void onPinDisplayed(final String pin) {
       // The delayed operation below will be invoked once code generation is yet again allowed for
       // this account. The delay is in wall clock time (monotonically increasing) and is thus not
       // susceptible to system time jumps.
@@ -1671,10 +1847,21 @@ public class AuthenticatorActivity extends TestableActivity {
   }
 
   /** Displays the list of users and the current OTP values. */
-  private class PinListAdapter extends ArrayAdapter<PinInfo> {
+  private class PinListAdapter extends BaseAdapter {
 
-    public PinListAdapter(Context context, int userRowId, PinInfo[] items) {
-      super(context, userRowId, items);
+    @Override
+    public int getCount() {
+      return users.length;
+    }
+
+    @Override
+    public PinInfo getItem(int position) {
+      return users[position];
+    }
+
+    @Override
+    public long getItemId(int position) {
+      return position;
     }
 
     /**
@@ -1735,7 +1922,8 @@ public class AuthenticatorActivity extends TestableActivity {
         row.setTag(null);
 
         countdownIndicator.setVisibility(View.VISIBLE);
-        countdownIndicator.setPhase(totpCountdownPhase);
+        countdownIndicator.setPhaseSource(totpCountdownPhase);
+        startCountdownAnimation();
       }
 
       if (getString(R.string.empty_pin).equals(currentPin.getPin())) {
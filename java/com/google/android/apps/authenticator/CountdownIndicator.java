@@ -31,18 +31,30 @@ import com.google.android.apps.authenticator2.R;
  *
  * <p>The indicator is a filled arc which starts as a full circle ({@code 360} degrees) and shrinks
  * to {@code 0} degrees the less time is remaining.
+ *
+ * <p>The phase is either set on the indicator itself or, when several indicators show the same
+ * countdown, read from a shared {@link CountdownPhase} while drawing.
  */
 public class CountdownIndicator extends View {
 
   private final Paint mRemainingSectorPaint;
   private static final int DEFAULT_COLOR = 0xff3060c0;
-  private RectF mDrawingRect;
+
+  /**
+   * Bounds of the arc. We need to leave the leftmost column and the topmost row out of the
+   * drawingRect because in anti-aliased mode drawArc and drawOval use these areas for some reason.
+   */
+  private final RectF mDrawingRect = new RectF();
+
   /**
    * Countdown phase starting with {@code 1} when a full cycle is remaining and shrinking to {@code
-   * 0} the closer the countdown is to zero.
+   * 0} the closer the countdown is to zero. Only used without a {@link #mPhaseSource}.
    */
   private double mPhase;
 
+  /** Shared phase to draw, or {@code null} to draw {@link #mPhase}. */
+  private CountdownPhase mPhaseSource;
+
   public CountdownIndicator(Context context) {
     this(context, null);
   }
@@ -70,19 +82,34 @@ public class CountdownIndicator extends View {
   }
 
   @Override
-  protected void onDraw(Canvas canvas) {
-    float remainingSectorSweepAngle = (float) (mPhase * 360);
-    float remainingSectorStartAngle = 270 - remainingSectorSweepAngle;
+  protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+    super.onSizeChanged(width, height, oldWidth, oldHeight);
+    mDrawingRect.set(1, 1, width - 1, height - 1);
+  }
 
-    // Draw the sector/filled arc
-    // We need to leave the leftmost column and the topmost row out of the drawingRect because
-    // in anti-aliased mode drawArc and drawOval use these areas for some reason.
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    if (mPhaseSource != null) {
+      mPhaseSource.onIndicatorAttached(this);
+    }
+  }
 
-    // Just create the object once, we should prevent creating multiple objects on this function
-    if (mDrawingRect == null) {
-      mDrawingRect = new RectF(1, 1, getWidth() - 1, getHeight() - 1);
+  @Override
+  protected void onDetachedFromWindow() {
+    if (mPhaseSource != null) {
+      mPhaseSource.onIndicatorDetached(this);
     }
+    super.onDetachedFromWindow();
+  }
 
+  @Override
+  protected void onDraw(Canvas canvas) {
+    double phase = (mPhaseSource != null) ? mPhaseSource.getPhase() : mPhase;
+    float remainingSectorSweepAngle = (float) (phase * 360);
+    float remainingSectorStartAngle = 270 - remainingSectorSweepAngle;
+
+    // Draw the sector/filled arc
     if (remainingSectorStartAngle < 360) {
       canvas.drawArc(
           mDrawingRect,
@@ -97,7 +124,7 @@ public class CountdownIndicator extends View {
   }
 
   /**
-   * Sets the phase of this indicator.
+   * Sets the phase of this indicator, which stops it from reading a shared phase.
    *
    * @param phase phase {@code [0, 1]}: {@code 1} when the maximum amount of time is remaining,
    *     {@code 0} when no time is remaining.
@@ -107,10 +134,31 @@ public class CountdownIndicator extends View {
       throw new IllegalArgumentException("phase: " + phase);
     }
 
+    setPhaseSource(null);
     mPhase = phase;
     invalidate();
   }
 
+  /**
+   * Sets the shared phase this indicator draws, which redraws it whenever the phase changes.
+   *
+   * @param phaseSource the shared phase or {@code null} to draw the phase set via
+   *     {@link #setPhase(double)}.
+   */
+  public void setPhaseSource(CountdownPhase phaseSource) {
+    if (phaseSource == mPhaseSource) {
+      return;
+    }
+    if ((mPhaseSource != null) && isAttachedToWindow()) {
+      mPhaseSource.onIndicatorDetached(this);
+    }
+    mPhaseSource = phaseSource;
+    if ((mPhaseSource != null) && isAttachedToWindow()) {
+      mPhaseSource.onIndicatorAttached(this);
+    }
+    invalidate();
+  }
+
   /**
    * Set color for the indicator.
    */
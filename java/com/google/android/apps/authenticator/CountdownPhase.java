@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Countdown phase shared by all {@link CountdownIndicator} views displaying the same countdown.
+ *
+ * <p>The indicators read the phase while drawing, so updating it is a single assignment followed by
+ * an invalidation of the indicators currently attached to a window, instead of a look-up and update
+ * of every indicator.
+ *
+ * <p>Thread-safety: Instances of this class must only be used on the main thread.
+ */
+public class CountdownPhase {
+
+  /** Indicators reading this phase which are currently attached to a window. */
+  private final List<CountdownIndicator> mAttachedIndicators = new ArrayList<>();
+
+  /**
+   * Countdown phase starting with {@code 1} when a full cycle is remaining and shrinking to {@code
+   * 0} the closer the countdown is to zero.
+   */
+  private double mPhase = 1;
+
+  /** Gets the current phase {@code [0, 1]}. */
+  public double getPhase() {
+    return mPhase;
+  }
+
+  /**
+   * Sets the phase and redraws the indicators reading it.
+   *
+   * @param phase phase {@code [0, 1]}: {@code 1} when the maximum amount of time is remaining,
+   *     {@code 0} when no time is remaining.
+   */
+  public void setPhase(double phase) {
+    if ((phase < 0) || (phase > 1)) {
+      throw new IllegalArgumentException("phase: " + phase);
+    }
+    if (phase == mPhase) {
+      return;
+    }
+
+    mPhase = phase;
+    for (int i = 0, len = mAttachedIndicators.size(); i < len; i++) {
+      mAttachedIndicators.get(i).invalidate();
+    }
+  }
+
+  /** Returns whether any of the indicators reading this phase is currently shown. */
+  public boolean isAnyIndicatorShown() {
+    for (int i = 0, len = mAttachedIndicators.size(); i < len; i++) {
+      if (mAttachedIndicators.get(i).isShown()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  void onIndicatorAttached(CountdownIndicator indicator) {
+    if (!mAttachedIndicators.contains(indicator)) {
+      mAttachedIndicators.add(indicator);
+    }
+  }
+
+  void onIndicatorDetached(CountdownIndicator indicator) {
+    mAttachedIndicators.remove(indicator);
+  }
+}
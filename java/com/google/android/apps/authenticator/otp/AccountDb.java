@@ -22,22 +22,37 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 import com.google.android.apps.authenticator.otp.PasscodeGenerator.Signer;
 import com.google.android.apps.authenticator.util.Base32String;
 import com.google.android.apps.authenticator.util.Base32String.DecodingException;
 import com.google.android.apps.authenticator.util.FileUtilities;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.Serializable;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -87,11 +102,115 @@ public class AccountDb {
    */
   @VisibleForTesting
   static final String ORIGINAL_NAME_COLUMN = "original_name";
+  /**
+   * Position of the account in the order of {@link #getAccounts()}. Distinct for every account,
+   * though not necessarily contiguous.
+   */
+  @VisibleForTesting
+  static final String SORT_ORDER_COLUMN = "sort_order";
   @VisibleForTesting
   static final String TABLE_NAME = "accounts";
+  @VisibleForTesting
+  static final String SORT_ORDER_INDEX_NAME = "accounts_sort_order";
+  @VisibleForTesting
+  static final String NAME_ISSUER_INDEX_NAME = "accounts_name_issuer";
+  @VisibleForTesting
+  static final String ISSUER_INDEX_NAME = "accounts_issuer";
+  // Unique indexes consider null values distinct, so these enforce the uniqueness of names amongst
+  // the accounts with a null issuer instead. Partial and expression indexes need a newer SQLite.
+  @VisibleForTesting
+  static final String NULL_ISSUER_INSERT_TRIGGER_NAME = "accounts_null_issuer_unique_insert";
+  @VisibleForTesting
+  static final String NULL_ISSUER_UPDATE_TRIGGER_NAME = "accounts_null_issuer_unique_update";
 
   private static final String TABLE_INFO_COLUMN_NAME_COLUMN = "name";
 
+  /**
+   * Columns read into an {@link AccountRecord}. Their positions are fixed, so values are read from
+   * cursors by the {@code *_INDEX} constants below rather than by looking up columns by name.
+   */
+  private static final String[] RECORD_PROJECTION = {
+      NAME_COLUMN, ISSUER_COLUMN, SECRET_COLUMN, TYPE_COLUMN, COUNTER_COLUMN,
+  };
+
+  /**
+   * Columns read when looking up a single account: those of {@link #RECORD_PROJECTION}, followed by
+   * the ones only needed by individual getters.
+   */
+  @VisibleForTesting
+  static final String[] ACCOUNT_PROJECTION = {
+      NAME_COLUMN, ISSUER_COLUMN, SECRET_COLUMN, TYPE_COLUMN, COUNTER_COLUMN,
+      PROVIDER_COLUMN, ORIGINAL_NAME_COLUMN, ID_COLUMN,
+  };
+
+  /**
+   * Projection of the name and original name, at {@link #NAME_INDEX} and
+   * {@link #ISSUER_CURSOR_ORIGINAL_NAME_INDEX}.
+   */
+  private static final String[] ISSUER_CURSOR_PROJECTION = {NAME_COLUMN, ORIGINAL_NAME_COLUMN};
+  private static final int ISSUER_CURSOR_ORIGINAL_NAME_INDEX = 1;
+
+  /** Projection of the name and issuer, at {@link #NAME_INDEX} and {@link #ISSUER_INDEX}. */
+  private static final String[] INDEX_PROJECTION = {NAME_COLUMN, ISSUER_COLUMN};
+
+  /** Projection of just the sort order, at index 0. */
+  private static final String[] SORT_ORDER_PROJECTION = {SORT_ORDER_COLUMN};
+
+  private static final int NAME_INDEX = 0;
+  private static final int ISSUER_INDEX = 1;
+  private static final int SECRET_INDEX = 2;
+  private static final int TYPE_INDEX = 3;
+  private static final int COUNTER_INDEX = 4;
+  private static final int PROVIDER_INDEX = 5;
+  private static final int ORIGINAL_NAME_INDEX = 6;
+  private static final int ID_INDEX = 7;
+
+  // Selections of accounts, with their values bound as arguments. See whereClause(AccountIndex).
+  private static final String WHERE_NAME_AND_ISSUER =
+      NAME_COLUMN + " = ? AND " + ISSUER_COLUMN + " = ?";
+  private static final String WHERE_NAME_AND_NULL_ISSUER =
+      NAME_COLUMN + " = ? AND " + ISSUER_COLUMN + " IS NULL";
+  private static final String WHERE_ISSUER = ISSUER_COLUMN + " = ?";
+
+  private static final String EXISTS_NAME_AND_ISSUER_QUERY =
+      "SELECT EXISTS (SELECT 1 FROM " + TABLE_NAME + " WHERE " + WHERE_NAME_AND_ISSUER + ")";
+  private static final String EXISTS_NAME_AND_NULL_ISSUER_QUERY =
+      "SELECT EXISTS (SELECT 1 FROM " + TABLE_NAME + " WHERE " + WHERE_NAME_AND_NULL_ISSUER + ")";
+
+  /**
+   * Lists the name and issuer, at {@link #NAME_INDEX} and {@link #ISSUER_INDEX}, of the accounts
+   * stored more than once. Grouping treats {@code null} issuers as equal, as accounts do.
+   */
+  private static final String DUPLICATE_ACCOUNTS_QUERY =
+      "SELECT " + NAME_COLUMN + ", " + ISSUER_COLUMN + " FROM " + TABLE_NAME
+      + " GROUP BY " + NAME_COLUMN + ", " + ISSUER_COLUMN + " HAVING COUNT(*) > 1";
+
+  /** Columns of the accounts table in the current schema version. */
+  private static final String[] EXPECTED_COLUMN_NAMES = {
+      ID_COLUMN,
+      NAME_COLUMN,
+      SECRET_COLUMN,
+      COUNTER_COLUMN,
+      TYPE_COLUMN,
+      PROVIDER_COLUMN,
+      ISSUER_COLUMN,
+      ORIGINAL_NAME_COLUMN,
+      SORT_ORDER_COLUMN,
+  };
+
+  /** Order of the accounts, with the row id breaking ties should sort orders ever collide. */
+  private static final String ACCOUNTS_ORDER_BY = SORT_ORDER_COLUMN + ", " + ID_COLUMN;
+  private static final String NEXT_SORT_ORDER_QUERY =
+      "SELECT COALESCE(MAX(" + SORT_ORDER_COLUMN + "), 0) + 1 FROM " + TABLE_NAME;
+
+  // Shifts the accounts with sort orders in a range by one, bound as the first and second arguments
+  private static final String MOVE_UP_SORT_ORDERS_STATEMENT =
+      "UPDATE " + TABLE_NAME + " SET " + SORT_ORDER_COLUMN + " = " + SORT_ORDER_COLUMN + " - 1"
+      + " WHERE " + SORT_ORDER_COLUMN + " > ? AND " + SORT_ORDER_COLUMN + " <= ?";
+  private static final String MOVE_DOWN_SORT_ORDERS_STATEMENT =
+      "UPDATE " + TABLE_NAME + " SET " + SORT_ORDER_COLUMN + " = " + SORT_ORDER_COLUMN + " + 1"
+      + " WHERE " + SORT_ORDER_COLUMN + " >= ? AND " + SORT_ORDER_COLUMN + " < ?";
+
   @VisibleForTesting
   static final int PROVIDER_UNKNOWN = 0;
   @VisibleForTesting
@@ -99,11 +218,118 @@ public class AccountDb {
 
   private static final int INVALID_ID = -1;
 
+  /**
+   * Version of the schema of the accounts table, stored as the {@code user_version} of the
+   * database. Changing the schema requires a new version and a step in {@link #migrateSchemaTo}.
+   */
+  @VisibleForTesting
+  static final int SCHEMA_VERSION = 7;
+
+  /** Accounts with a name, secret, counter and type. */
+  @VisibleForTesting
+  static final int SCHEMA_VERSION_INITIAL = 1;
+  /** Adds {@link #PROVIDER_COLUMN}. */
+  @VisibleForTesting
+  static final int SCHEMA_VERSION_PROVIDER = 2;
+  /** Adds {@link #ISSUER_COLUMN}, set on older accounts from their name prefix if known. */
+  @VisibleForTesting
+  static final int SCHEMA_VERSION_ISSUER = 3;
+  /** Adds {@link #ORIGINAL_NAME_COLUMN}. */
+  @VisibleForTesting
+  static final int SCHEMA_VERSION_ORIGINAL_NAME = 4;
+  /** Switches the database to incremental auto-vacuum. */
+  @VisibleForTesting
+  static final int SCHEMA_VERSION_INCREMENTAL_VACUUM = 5;
+  /** Adds {@link #SORT_ORDER_COLUMN}, keeping the accounts in the order of their row ids. */
+  @VisibleForTesting
+  static final int SCHEMA_VERSION_SORT_ORDER = 6;
+  /**
+   * Adds a unique index on the name and issuer, with triggers making names unique amongst accounts
+   * with a null issuer too, and an index on the issuer. Accounts sharing a name and issuer are
+   * renamed first.
+   */
+  @VisibleForTesting
+  static final int SCHEMA_VERSION_UNIQUE_INDEX = 7;
+
+  /** Value of {@code PRAGMA auto_vacuum} for incremental auto-vacuum. */
+  @VisibleForTesting
+  static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+  /**
+   * Quiet period (milliseconds) after the last deletion before the pages it freed are returned to
+   * the file system, so that a series of deletions is reclaimed at once.
+   */
+  @VisibleForTesting
+  static final long VACUUM_DELAY_MILLIS = 5000;
+
   // TODO: Consider making the general DB more sane by using SQLiteOpenHelper and/or
   // android.arch.persistence.room.Query. Or store everything in Keystore.
   @VisibleForTesting
   SQLiteDatabase mDatabase;
 
+  /** Initialized signers of the accounts in this database. */
+  private final SignerCache mSignerCache = new SignerCache();
+
+  /**
+   * Maintenance executor shared by all the instances not given one, so that instances don't each
+   * start a thread of their own. Created on first use.
+   */
+  private static ScheduledExecutorService sSharedMaintenanceExecutor; // guarded by AccountDb.class
+
+  /**
+   * Executor running maintenance, i.e., reclaiming the space freed by deletions and background
+   * consistency checks, off the calling thread.
+   */
+  private final ScheduledExecutorService mMaintenanceExecutor;
+
+  /**
+   * Held while maintenance runs, so that {@link #close()} waits for running maintenance rather than
+   * closing the database under it.
+   */
+  private final Object mMaintenanceLock = new Object();
+
+  /** Whether {@link #close()} has been invoked. */
+  private boolean mClosed; // guarded by mMaintenanceLock
+
+  /** Reclamation of freed space scheduled after the latest deletion, if still pending. */
+  private ScheduledFuture<?> mPendingVacuum; // guarded by this
+
+  /**
+   * Statements incrementing the counter of an account with and without an issuer, compiled on first
+   * use and reused until the database is closed. Only used while holding the write transaction of
+   * {@link #incrementAndGetCounter}, which no two threads hold at the same time.
+   */
+  private SQLiteStatement mIncrementCounterStatement;
+  private SQLiteStatement mIncrementCounterWithNullIssuerStatement;
+
+  /**
+   * Version of the contents of the accounts table, incremented after every write made through this
+   * instance.
+   */
+  private final AtomicLong mDataVersion = new AtomicLong();
+
+  /** In-memory copy of the accounts table, or {@code null} if it hasn't been loaded yet. */
+  private volatile Snapshot mSnapshot;
+
+  /** Looks up the indexes of the accounts by querying the database. */
+  private final IndexLookup mDatabaseIndexLookup = new IndexLookup() {
+    @Override
+    public boolean exists(AccountIndex index) {
+      return indexExists(index);
+    }
+
+    @Override
+    public AccountIndex findSimilar(AccountIndex index) {
+      return findSimilarExistingIndex(index);
+    }
+
+    @Override
+    public void onInserted(AccountIndex index) {}
+
+    @Override
+    public void onRenamed(AccountIndex oldIndex, AccountIndex newIndex) {}
+  };
+
   private static final String LOCAL_TAG = "GAuthenticator.AcctDb";
 
   /**
@@ -204,60 +430,421 @@ public class AccountDb {
     }
   }
 
+  /**
+   * An immutable snapshot of the information needed to generate codes for an account, as read
+   * from a single database row.
+   */
+  public static class AccountRecord {
+    private final AccountIndex index;
+    private final String secret;
+    private final OtpType type;
+    private final Integer counter;
+
+    public AccountRecord(AccountIndex index, String secret, OtpType type, Integer counter) {
+      this.index = Preconditions.checkNotNull(index);
+      this.secret = secret;
+      this.type = type;
+      this.counter = counter;
+    }
+
+    public AccountIndex getIndex() {
+      return index;
+    }
+
+    /** Returns the secret key as a Base32-encoded string. */
+    public String getSecret() {
+      return secret;
+    }
+
+    public OtpType getType() {
+      return type;
+    }
+
+    /** Returns the counter, which is only meaningful for {@link OtpType#HOTP} accounts. */
+    public Integer getCounter() {
+      return counter;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof AccountRecord)) {
+        return false;
+      }
+      AccountRecord other = (AccountRecord) o;
+      return index.equals(other.index)
+          && Objects.equal(secret, other.secret)
+          && (type == other.type)
+          && Objects.equal(counter, other.counter);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(index, secret, type, counter);
+    }
+  }
+
+  /** Result of {@link #checkConsistency()}. */
+  public static class ConsistencyReport {
+    private final List<String> missingColumns;
+    private final boolean extraColumns;
+    private final List<AccountIndex> duplicateAccounts;
+
+    ConsistencyReport(
+        List<String> missingColumns, boolean extraColumns, List<AccountIndex> duplicateAccounts) {
+      this.missingColumns = missingColumns;
+      this.extraColumns = extraColumns;
+      this.duplicateAccounts = duplicateAccounts;
+    }
+
+    /** Returns whether the database is consistent, i.e., has no missing columns or duplicates. */
+    public boolean isConsistent() {
+      return missingColumns.isEmpty() && duplicateAccounts.isEmpty();
+    }
+
+    /** Returns the expected columns missing from the accounts table. */
+    public List<String> getMissingColumns() {
+      return missingColumns;
+    }
+
+    /**
+     * Returns whether the accounts table has unexpected columns, which doesn't make the database
+     * inconsistent.
+     */
+    public boolean hasExtraColumns() {
+      return extraColumns;
+    }
+
+    /**
+     * Returns the accounts stored more than once. Not checked, and thus empty, when columns are
+     * missing.
+     */
+    public List<AccountIndex> getDuplicateAccounts() {
+      return duplicateAccounts;
+    }
+
+    @Override
+    public String toString() {
+      return "missing columns: " + missingColumns + ", extra columns: " + extraColumns
+          + ", duplicate accounts: " + duplicateAccounts;
+    }
+  }
+
+  /**
+   * An immutable copy of all the rows of the accounts table, tagged with the version of the table
+   * contents it was loaded from.
+   */
+  @VisibleForTesting
+  static class Snapshot {
+    final long version;
+    final List<AccountIndex> accounts;
+    final List<AccountRecord> records;
+
+    Snapshot(long version, List<AccountRecord> records) {
+      this.version = version;
+      this.records = records;
+      ImmutableList.Builder<AccountIndex> accountsBuilder = ImmutableList.builder();
+      for (AccountRecord record : records) {
+        accountsBuilder.add(record.getIndex());
+      }
+      this.accounts = accountsBuilder.build();
+    }
+  }
+
+  /**
+   * Lookups of the indexes of the stored accounts made while adding accounts, which must be told
+   * about the accounts inserted and renamed in the process.
+   */
+  private interface IndexLookup {
+    /** @see AccountDb#indexExists(AccountIndex) */
+    boolean exists(AccountIndex index);
+
+    /** @see AccountDb#findSimilarExistingIndex(AccountIndex) */
+    AccountIndex findSimilar(AccountIndex index);
+
+    void onInserted(AccountIndex index);
+
+    void onRenamed(AccountIndex oldIndex, AccountIndex newIndex);
+  }
+
+  /**
+   * {@link IndexLookup} answering from an in-memory copy of the indexes of the stored accounts,
+   * loaded once and then kept up to date as accounts are inserted and renamed. Only valid while
+   * nothing else writes to the database, i.e., within a transaction.
+   */
+  private static class InMemoryIndexLookup implements IndexLookup {
+    private final Set<AccountIndex> mIndexes = Sets.newHashSet();
+
+    /** Indexes with a non-null issuer, grouped by issuer, in the order of their rows. */
+    private final Map<String, List<AccountIndex>> mIndexesByIssuer = Maps.newHashMap();
+
+    /**
+     * @param cursor cursor over the name and issuer of every account, at {@link #NAME_INDEX} and
+     *     {@link #ISSUER_INDEX}
+     */
+    InMemoryIndexLookup(Cursor cursor) {
+      while (cursor.moveToNext()) {
+        onInserted(new AccountIndex(cursor.getString(NAME_INDEX), cursor.getString(ISSUER_INDEX)));
+      }
+    }
+
+    @Override
+    public boolean exists(AccountIndex index) {
+      return mIndexes.contains(index);
+    }
+
+    @Override
+    public AccountIndex findSimilar(AccountIndex index) {
+      if (exists(index)) {
+        return index;
+      }
+      if (index.getIssuer() == null) {
+        return null;  // Nothing else can be "similar" when there is no issuer
+      }
+      List<AccountIndex> sameIssuerIndexes = mIndexesByIssuer.get(index.getIssuer());
+      if (sameIssuerIndexes == null) {
+        return null;
+      }
+      String strippedName = index.getStrippedName();
+      for (AccountIndex sameIssuerIndex : sameIssuerIndexes) {
+        if (strippedName.equals(sameIssuerIndex.getStrippedName())) {
+          return sameIssuerIndex;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public void onInserted(AccountIndex index) {
+      mIndexes.add(index);
+      if (index.getIssuer() != null) {
+        List<AccountIndex> sameIssuerIndexes = mIndexesByIssuer.get(index.getIssuer());
+        if (sameIssuerIndexes == null) {
+          sameIssuerIndexes = Lists.newArrayList();
+          mIndexesByIssuer.put(index.getIssuer(), sameIssuerIndexes);
+        }
+        sameIssuerIndexes.add(index);
+      }
+    }
+
+    @Override
+    public void onRenamed(AccountIndex oldIndex, AccountIndex newIndex) {
+      mIndexes.remove(oldIndex);
+      mIndexes.add(newIndex);
+      if (oldIndex.getIssuer() != null) {
+        // The row keeps its position amongst those of the issuer
+        List<AccountIndex> sameIssuerIndexes = mIndexesByIssuer.get(oldIndex.getIssuer());
+        sameIssuerIndexes.set(sameIssuerIndexes.indexOf(oldIndex), newIndex);
+      }
+    }
+  }
+
   public static String getPrefixedNameFor(String accountName, String issuer) {
     return new AccountIndex(accountName, issuer).toString();
   }
 
   public AccountDb(Context context) {
+    this(context, getSharedMaintenanceExecutor());
+  }
+
+  /**
+   * @param maintenanceExecutor executor reclaiming the space freed by deletions and running
+   *     background consistency checks. It is not shut down by {@link #close()}.
+   */
+  @VisibleForTesting
+  AccountDb(Context context, ScheduledExecutorService maintenanceExecutor) {
+    mMaintenanceExecutor = maintenanceExecutor;
     mDatabase = openDatabase(context);
 
-    // Create the table if it doesn't exist
-    mDatabase.execSQL(String.format(
-        "CREATE TABLE IF NOT EXISTS %s" +
-        " (%s INTEGER PRIMARY KEY," +
-        " %s TEXT NOT NULL," +
-        " %s TEXT NOT NULL," +
-        " %s INTEGER DEFAULT %s," +
-        " %s INTEGER," +
-        " %s INTEGER DEFAULT %s," +
-        " %s TEXT DEFAULT NULL," +
-        " %s TEXT DEFAULT NULL)",
-        TABLE_NAME,
-        ID_COLUMN, // Row id, not exposed by this class
-        NAME_COLUMN, // Required
-        SECRET_COLUMN, // Required
-        COUNTER_COLUMN, DEFAULT_HOTP_COUNTER,
-        TYPE_COLUMN, // Implicitly required
-        PROVIDER_COLUMN, PROVIDER_UNKNOWN,
-        // ISSUER and ORIGINAL_NAME are both NULL by default
-        ISSUER_COLUMN,
-        ORIGINAL_NAME_COLUMN));
+    // Overwrite deleted content with zeros, so that deleted or replaced secrets don't linger in
+    // the database file until its free pages are reused or reclaimed
+    queryPragma("PRAGMA secure_delete = ON");
 
-    Collection<String> tableColumnNames = listTableColumnNamesLowerCase();
-    if (!tableColumnNames.contains(PROVIDER_COLUMN.toLowerCase(Locale.US))) {
-      // Migrate from old schema where the PROVIDER_COLUMN wasn't there
-      mDatabase.execSQL(String.format(
-          "ALTER TABLE %s ADD COLUMN %s INTEGER DEFAULT %s",
-          TABLE_NAME, PROVIDER_COLUMN, PROVIDER_UNKNOWN));
+    // A single pragma read when the schema is current
+    int schemaVersion = mDatabase.getVersion();
+    if (schemaVersion != SCHEMA_VERSION) {
+      upgradeSchema(schemaVersion);
+    }
+  }
+
+  /**
+   * Upgrades the schema of the database from the specified version to {@link #SCHEMA_VERSION} by
+   * running the migration steps in order, in a single transaction.
+   */
+  private void upgradeSchema(int fromVersion) {
+    if (fromVersion > SCHEMA_VERSION) {
+      // Written by a newer version of the app. Schema changes only ever add columns, so the
+      // columns this version uses are all there.
+      Log.w(LOCAL_TAG, "Database schema version " + fromVersion + " is newer than supported: "
+          + SCHEMA_VERSION);
+      return;
     }
 
-    if (!tableColumnNames.contains(ISSUER_COLUMN.toLowerCase(Locale.US))) {
-      // Migrate from old schema where the ISSUER_COLUMN wasn't there
-      mDatabase.execSQL(String.format(
-          "ALTER TABLE %s ADD COLUMN %s TEXT DEFAULT NULL",
-          TABLE_NAME, ISSUER_COLUMN));
-      autoUpgradeOlderAccountsWithIssuerPrefix();
+    Log.i(LOCAL_TAG, "Upgrading database schema from version " + fromVersion);
+    if (fromVersion < SCHEMA_VERSION_INCREMENTAL_VACUUM) {
+      // Can't run in a transaction, so it's done ahead of the steps rather than as one. Should
+      // the upgrade then fail, it's simply done again on the next attempt.
+      mDatabase.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+      mDatabase.execSQL("VACUUM");
+    }
+    // Databases created before the schema was versioned have version 0, like new ones. Their
+    // columns are listed once so that the steps only add the ones they are missing. New databases
+    // have no table yet, which the first step creates, so they are migrated like versioned ones.
+    Collection<String> unversionedColumnNames = null;
+    if (fromVersion == 0) {
+      Collection<String> columnNames = listTableColumnNamesLowerCase();
+      if (!columnNames.isEmpty()) {
+        unversionedColumnNames = columnNames;
+      }
+    }
+    mDatabase.beginTransaction();
+    try {
+      for (int version = fromVersion + 1; version <= SCHEMA_VERSION; version++) {
+        migrateSchemaTo(version, unversionedColumnNames);
+      }
+      mDatabase.setVersion(SCHEMA_VERSION);
+      mDatabase.setTransactionSuccessful();
+    } finally {
+      mDatabase.endTransaction();
     }
+    Log.i(LOCAL_TAG, "Database upgrade complete. Database consistent: " + isDbConsistent());
+  }
 
-    if (!tableColumnNames.contains(ORIGINAL_NAME_COLUMN.toLowerCase(Locale.US))) {
-      // Migrate from old schema where the ORIGINAL_NAME_COLUMN wasn't there
-      mDatabase.execSQL(String.format(
-          "ALTER TABLE %s ADD COLUMN %s TEXT DEFAULT NULL",
-          TABLE_NAME, ORIGINAL_NAME_COLUMN));
-      Log.i(LOCAL_TAG, "Database upgrade complete. Database consistent: " + isDbConsistent());
+  /**
+   * Runs the migration step bringing the schema from {@code version - 1} to {@code version}.
+   *
+   * @param unversionedColumnNames columns of a database created before the schema was versioned,
+   *     or {@code null} if the database has a version
+   */
+  private void migrateSchemaTo(int version, Collection<String> unversionedColumnNames) {
+    switch (version) {
+      case SCHEMA_VERSION_INITIAL:
+        mDatabase.execSQL(String.format(
+            "CREATE TABLE IF NOT EXISTS %s" +
+            " (%s INTEGER PRIMARY KEY," +
+            " %s TEXT NOT NULL," +
+            " %s TEXT NOT NULL," +
+            " %s INTEGER DEFAULT %s," +
+            " %s INTEGER)",
+            TABLE_NAME,
+            ID_COLUMN, // Row id, not exposed by this class
+            NAME_COLUMN, // Required
+            SECRET_COLUMN, // Required
+            COUNTER_COLUMN, DEFAULT_HOTP_COUNTER,
+            TYPE_COLUMN)); // Implicitly required
+        break;
+      case SCHEMA_VERSION_PROVIDER:
+        addColumn(unversionedColumnNames, PROVIDER_COLUMN, "INTEGER DEFAULT " + PROVIDER_UNKNOWN);
+        break;
+      case SCHEMA_VERSION_ISSUER:
+        if (addColumn(unversionedColumnNames, ISSUER_COLUMN, "TEXT DEFAULT NULL")) {
+          autoUpgradeOlderAccountsWithIssuerPrefix();
+        }
+        break;
+      case SCHEMA_VERSION_ORIGINAL_NAME:
+        addColumn(unversionedColumnNames, ORIGINAL_NAME_COLUMN, "TEXT DEFAULT NULL");
+        break;
+      case SCHEMA_VERSION_INCREMENTAL_VACUUM:
+        // Done by upgradeSchema before the transaction
+        break;
+      case SCHEMA_VERSION_SORT_ORDER:
+        addColumn(unversionedColumnNames, SORT_ORDER_COLUMN, "INTEGER");
+        // By rowid rather than ID_COLUMN, which it aliases but legacy tables may lack
+        mDatabase.execSQL(String.format("UPDATE %s SET %s = rowid WHERE %s IS NULL",
+            TABLE_NAME, SORT_ORDER_COLUMN, SORT_ORDER_COLUMN));
+        mDatabase.execSQL(String.format("CREATE INDEX IF NOT EXISTS %s ON %s (%s)",
+            SORT_ORDER_INDEX_NAME, TABLE_NAME, SORT_ORDER_COLUMN));
+        break;
+      case SCHEMA_VERSION_UNIQUE_INDEX:
+        if ((unversionedColumnNames != null) && !unversionedColumnNames.contains(NAME_COLUMN)) {
+          // Legacy tables without names don't hold accounts, so there is nothing to index
+          break;
+        }
+        renameDuplicateAccounts();
+        mDatabase.execSQL(String.format("CREATE UNIQUE INDEX IF NOT EXISTS %s ON %s (%s, %s)",
+            NAME_ISSUER_INDEX_NAME, TABLE_NAME, NAME_COLUMN, ISSUER_COLUMN));
+        mDatabase.execSQL(String.format("CREATE INDEX IF NOT EXISTS %s ON %s (%s)",
+            ISSUER_INDEX_NAME, TABLE_NAME, ISSUER_COLUMN));
+        mDatabase.execSQL(String.format(
+            "CREATE TRIGGER IF NOT EXISTS %1$s BEFORE INSERT ON %2$s"
+            + " WHEN NEW.%4$s IS NULL AND EXISTS"
+            + " (SELECT 1 FROM %2$s WHERE %3$s = NEW.%3$s AND %4$s IS NULL)"
+            + " BEGIN SELECT RAISE(ABORT, 'Duplicate account'); END",
+            NULL_ISSUER_INSERT_TRIGGER_NAME, TABLE_NAME, NAME_COLUMN, ISSUER_COLUMN));
+        mDatabase.execSQL(String.format(
+            "CREATE TRIGGER IF NOT EXISTS %1$s BEFORE UPDATE OF %3$s, %4$s ON %2$s"
+            + " WHEN NEW.%4$s IS NULL AND EXISTS"
+            + " (SELECT 1 FROM %2$s WHERE %3$s = NEW.%3$s AND %4$s IS NULL AND rowid != OLD.rowid)"
+            + " BEGIN SELECT RAISE(ABORT, 'Duplicate account'); END",
+            NULL_ISSUER_UPDATE_TRIGGER_NAME, TABLE_NAME, NAME_COLUMN, ISSUER_COLUMN));
+        break;
+      default:
+        throw new IllegalArgumentException("No migration to schema version " + version);
     }
   }
 
+  /**
+   * Renames all but the first of the accounts sharing a name and issuer, by appending "(n)" to
+   * their names as {@link #add} does for accounts without an issuer, so that no secret is lost.
+   */
+  private void renameDuplicateAccounts() {
+    for (AccountIndex index : queryDuplicateAccounts()) {
+      List<Long> rowIds = Lists.newArrayList();
+      Cursor cursor = mDatabase.query(TABLE_NAME, new String[] {"rowid"}, whereClause(index),
+          whereArgs(index), null, null, "rowid");
+      try {
+        while (cursor.moveToNext()) {
+          rowIds.add(cursor.getLong(0));
+        }
+      } finally {
+        tryCloseCursor(cursor);
+      }
+
+      int suffix = 0;
+      for (Long rowId : rowIds.subList(1, rowIds.size())) {
+        AccountIndex newIndex;
+        do {
+          suffix++;
+          newIndex = new AccountIndex(index.getName() + "(" + suffix + ")", index.getIssuer());
+        } while (indexExists(newIndex));
+        mDatabase.execSQL(
+            "UPDATE " + TABLE_NAME + " SET " + NAME_COLUMN + " = ? WHERE rowid = ?",
+            new Object[] {newIndex.getName(), rowId});
+        Log.w(LOCAL_TAG, "Renamed duplicate account " + index + " to " + newIndex);
+      }
+    }
+  }
+
+  /**
+   * Adds a column to the accounts table, unless it is listed in {@code unversionedColumnNames}.
+   *
+   * @return whether the column was added
+   */
+  private boolean addColumn(
+      Collection<String> unversionedColumnNames, String columnName, String columnDefinition) {
+    if ((unversionedColumnNames != null)
+        && unversionedColumnNames.contains(columnName.toLowerCase(Locale.US))) {
+      return false;
+    }
+    mDatabase.execSQL(String.format(
+        "ALTER TABLE %s ADD COLUMN %s %s", TABLE_NAME, columnName, columnDefinition));
+    return true;
+  }
+
+  private static void closeStatement(SQLiteStatement statement) {
+    if (statement != null) {
+      statement.close();
+    }
+  }
+
+  private static synchronized ScheduledExecutorService getSharedMaintenanceExecutor() {
+    if (sSharedMaintenanceExecutor == null) {
+      // Daemon thread, as the executor is never shut down
+      sSharedMaintenanceExecutor = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("AccountDb-maintenance").setDaemon(true).build());
+    }
+    return sSharedMaintenanceExecutor;
+  }
+
   /*
    * Tries three times to open database before throwing AccountDbOpenException.
    */
@@ -278,9 +865,33 @@ public class AccountDb {
   }
 
   /**
-   * Closes this database and releases any system resources held.
+   * Closes this database and releases any system resources held. Waits for any maintenance already
+   * running on this database to finish, and skips the maintenance that has not started yet.
+   * Closing a closed database has no effect.
    */
   public void close() {
+    synchronized (this) {
+      if (mPendingVacuum != null) {
+        mPendingVacuum.cancel(false);
+        mPendingVacuum = null;
+      }
+    }
+    synchronized (mMaintenanceLock) {
+      if (mClosed) {
+        return;
+      }
+      mClosed = true;
+    }
+    // Waits for an increment in progress to release the statements
+    mDatabase.beginTransaction();
+    try {
+      closeStatement(mIncrementCounterStatement);
+      closeStatement(mIncrementCounterWithNullIssuerStatement);
+      mIncrementCounterStatement = null;
+      mIncrementCounterWithNullIssuerStatement = null;
+    } finally {
+      mDatabase.endTransaction();
+    }
     mDatabase.close();
   }
 
@@ -306,6 +917,16 @@ public class AccountDb {
     }
   }
 
+  /**
+   * Runs a pragma which returns a result, which {@link SQLiteDatabase#execSQL} doesn't allow.
+   *
+   * @return the first column of the result
+   */
+  @VisibleForTesting
+  long queryPragma(String pragma) {
+    return DatabaseUtils.longForQuery(mDatabase, pragma, null);
+  }
+
   /**
    * Lists the names of all the columns in the accounts table.
    */
@@ -319,6 +940,9 @@ public class AccountDb {
   @VisibleForTesting
   public boolean deleteAllData() {
     mDatabase.delete(AccountDb.TABLE_NAME, null, null);
+    onDataChanged();
+    mSignerCache.invalidateAll();
+    scheduleVacuum();
     return true;
   }
 
@@ -333,12 +957,10 @@ public class AccountDb {
   }
 
   public boolean indexExists(AccountIndex index) {
-    Cursor cursor = getAccountCursor(index);
-    try {
-      return !cursorIsEmpty(cursor);
-    } finally {
-      tryCloseCursor(cursor);
-    }
+    String query = (index.getIssuer() != null)
+        ? EXISTS_NAME_AND_ISSUER_QUERY
+        : EXISTS_NAME_AND_NULL_ISSUER_QUERY;
+    return DatabaseUtils.longForQuery(mDatabase, query, whereArgs(index)) != 0;
   }
 
   /**
@@ -363,9 +985,9 @@ public class AccountDb {
       if (cursor == null) {
         return null;
       }
-      int nameIndex = cursor.getColumnIndex(AccountDb.NAME_COLUMN);
       while (cursor.moveToNext()) {
-        AccountIndex cursorIndex = new AccountIndex(cursor.getString(nameIndex), index.getIssuer());
+        AccountIndex cursorIndex =
+            new AccountIndex(cursor.getString(NAME_INDEX), index.getIssuer());
         if (index.getStrippedName().equals(cursorIndex.getStrippedName())) {
           return cursorIndex;
         }
@@ -377,11 +999,23 @@ public class AccountDb {
   }
 
   public String getSecret(AccountIndex index) {
+    AccountRecord record = getAccountRecord(index);
+    return (record != null) ? record.getSecret() : null;
+  }
+
+  /**
+   * Gets the {@link AccountRecord} of the specified account, reading all its fields with a single
+   * query. Callers needing more than one of the secret, type and counter of an account should
+   * prefer this to the individual getters.
+   *
+   * @return the record or {@code null} if there is no such account
+   */
+  public AccountRecord getAccountRecord(AccountIndex index) {
     Cursor cursor = getAccountCursor(index);
     try {
       if (!cursorIsEmpty(cursor)) {
         cursor.moveToFirst();
-        return cursor.getString(cursor.getColumnIndex(SECRET_COLUMN));
+        return readAccountRecord(cursor);
       }
     } finally {
       tryCloseCursor(cursor);
@@ -394,68 +1028,93 @@ public class AccountDb {
    */
   @VisibleForTesting
   boolean isDbConsistent() {
-    boolean result = true;
-    Collection<String> tableColumnNames = listTableColumnNamesLowerCase();
-    String[] expectedColumnNames = {
-        ID_COLUMN,
-        NAME_COLUMN,
-        SECRET_COLUMN,
-        COUNTER_COLUMN,
-        TYPE_COLUMN,
-        PROVIDER_COLUMN,
-        ISSUER_COLUMN,
-        ORIGINAL_NAME_COLUMN,
-    };
-    if (expectedColumnNames.length < tableColumnNames.size()) {
-      Log.w(LOCAL_TAG, "Database has extra columns");
+    ConsistencyReport report = checkConsistency();
+    if (report.hasExtraColumns()) {
       // This doesn't mean the database is necessarily in a bad state
+      Log.w(LOCAL_TAG, "Database has extra columns");
     }
-    if (expectedColumnNames.length > tableColumnNames.size()) {
-      Log.e(LOCAL_TAG, "Database is missing columns");
-      result = false;
+    if (!report.isConsistent()) {
+      Log.e(LOCAL_TAG, "Database is inconsistent: " + report);
     }
-    for (String columnName : expectedColumnNames) {
+    return report.isConsistent();
+  }
+
+  /**
+   * Checks that the accounts table has all the expected columns, and that no two accounts share
+   * the same name and issuer. Takes one query for the columns and one for the duplicates, however
+   * many accounts there are.
+   */
+  public ConsistencyReport checkConsistency() {
+    Collection<String> tableColumnNames = listTableColumnNamesLowerCase();
+    ImmutableList.Builder<String> missingColumnsBuilder = ImmutableList.builder();
+    for (String columnName : EXPECTED_COLUMN_NAMES) {
       if (!tableColumnNames.contains(columnName.toLowerCase(Locale.US))) {
-        Log.e(LOCAL_TAG, "Database is missing column: " + columnName);
-        result = false;
+        missingColumnsBuilder.add(columnName);
       }
     }
+    ImmutableList<String> missingColumns = missingColumnsBuilder.build();
+    boolean extraColumns =
+        tableColumnNames.size() > EXPECTED_COLUMN_NAMES.length - missingColumns.size();
+    if (!missingColumns.isEmpty()) {
+      // The accounts can't be read without the missing columns
+      return new ConsistencyReport(missingColumns, extraColumns, ImmutableList.<AccountIndex>of());
+    }
 
-    for (AccountIndex index : getAccounts()) {
-      Cursor cursor = mDatabase.query(
-          TABLE_NAME, null, whereClause(index), null,
-          null, null, null);
-      try {
-        if (cursor == null) {
-          Log.e(LOCAL_TAG, "Failed to get a cursor for account: " + index.toString());
-          result = false;
-          continue;
-        }
-        if (cursor.getCount() != 1) {
-          Log.e(LOCAL_TAG, "Multiple copies detected for account: " + index.toString());
-          result = false;
-        }
-      } finally {
-        tryCloseCursor(cursor);
+    return new ConsistencyReport(missingColumns, extraColumns, queryDuplicateAccounts());
+  }
+
+  /** Lists the accounts stored more than once, with a single query. */
+  private List<AccountIndex> queryDuplicateAccounts() {
+    ImmutableList.Builder<AccountIndex> duplicatesBuilder = ImmutableList.builder();
+    Cursor cursor = mDatabase.rawQuery(DUPLICATE_ACCOUNTS_QUERY, null);
+    try {
+      while (cursor.moveToNext()) {
+        duplicatesBuilder.add(
+            new AccountIndex(cursor.getString(NAME_INDEX), cursor.getString(ISSUER_INDEX)));
       }
+    } finally {
+      tryCloseCursor(cursor);
     }
-    return result;
+    return duplicatesBuilder.build();
   }
 
+  /**
+   * Runs {@link #checkConsistency()} on the executor that reclaims freed space, off the calling
+   * thread. The returned future fails with an {@link IllegalStateException} if this database is
+   * closed before the check starts.
+   *
+   * @throws RejectedExecutionException if this database is closed
+   */
+  public Future<ConsistencyReport> checkConsistencyInBackground() {
+    synchronized (mMaintenanceLock) {
+      if (mClosed) {
+        throw new RejectedExecutionException("AccountDb closed");
+      }
+    }
+    return mMaintenanceExecutor.submit(
+        new Callable<ConsistencyReport>() {
+          @Override
+          public ConsistencyReport call() {
+            synchronized (mMaintenanceLock) {
+              if (mClosed) {
+                throw new IllegalStateException("AccountDb closed");
+              }
+              return checkConsistency();
+            }
+          }
+        });
+  }
+
+
   // TODO: move this method out of this class
   public static Signer getSigningOracle(String secret) {
     try {
       byte[] keyBytes = decodeKey(secret);
-      final Mac mac = Mac.getInstance("HMACSHA1");
+      Mac mac = Mac.getInstance("HMACSHA1");
       mac.init(new SecretKeySpec(keyBytes, ""));
 
       // Create a signer object out of the standard Java MAC implementation.
-      return new Signer() {
-        @Override
-        public byte[] sign(byte[] data) {
-          return mac.doFinal(data);
-        }
-      };
+      return PasscodeGenerator.newSigner(mac);
     } catch (DecodingException
         | NoSuchAlgorithmException
         | InvalidKeyException
@@ -466,42 +1125,89 @@ public class AccountDb {
     return null;
   }
 
+  /**
+   * Gets a {@link Signer} for the specified account, reusing the one initialized by an earlier call
+   * unless the secret of the account has changed since.
+   *
+   * @param index {@link AccountIndex} identifying the account.
+   * @param secret the secret key of the account as stored in this database.
+   * @return the signer or {@code null} if the secret is not a valid key.
+   */
+  Signer getCachedSigningOracle(AccountIndex index, String secret) {
+    return mSignerCache.getSigner(index, secret);
+  }
+
   private static byte[] decodeKey(String secret) throws DecodingException {
     return Base32String.decode(secret);
   }
 
   public Integer getCounter(AccountIndex index) {
-    Cursor cursor = getAccountCursor(index);
-    try {
-      if (!cursorIsEmpty(cursor)) {
-        cursor.moveToFirst();
-        return cursor.getInt(cursor.getColumnIndex(COUNTER_COLUMN));
+    AccountRecord record = getAccountRecord(index);
+    return (record != null) ? record.getCounter() : null;
+  }
+
+  public void incrementCounter(AccountIndex index) {
+    incrementAndGetCounter(index);
+  }
+
+  /**
+   * Gets the statement incrementing the counter of the specified account, compiling it on first
+   * use. Must be invoked within the transaction of {@link #incrementAndGetCounter}.
+   */
+  private SQLiteStatement getIncrementCounterStatement(AccountIndex index) {
+    if (index.getIssuer() != null) {
+      if (mIncrementCounterStatement == null) {
+        mIncrementCounterStatement = compileIncrementCounterStatement(WHERE_NAME_AND_ISSUER);
       }
-    } finally {
-      tryCloseCursor(cursor);
+      return mIncrementCounterStatement;
     }
-    return null;
+    if (mIncrementCounterWithNullIssuerStatement == null) {
+      mIncrementCounterWithNullIssuerStatement =
+          compileIncrementCounterStatement(WHERE_NAME_AND_NULL_ISSUER);
+    }
+    return mIncrementCounterWithNullIssuerStatement;
   }
 
-  public void incrementCounter(AccountIndex index) {
-    ContentValues values = new ContentValues();
-    Integer counter = getCounter(index);
-    values.put(COUNTER_COLUMN, counter + 1);
-    mDatabase.update(TABLE_NAME, values, whereClause(index), null);
+  private SQLiteStatement compileIncrementCounterStatement(String whereClause) {
+    return mDatabase.compileStatement(
+        "UPDATE " + TABLE_NAME
+        + " SET " + COUNTER_COLUMN + " = COALESCE(" + COUNTER_COLUMN + ", 0) + 1"
+        + " WHERE " + whereClause);
   }
 
-  public OtpType getType(AccountIndex index) {
-    Cursor cursor = getAccountCursor(index);
+  /**
+   * Increments the counter of the specified account and returns the incremented value. The
+   * increment and the read happen in a single transaction, so concurrent callers never get the
+   * same value.
+   *
+   * @return the incremented counter or {@code null} if there is no such account
+   */
+  public Integer incrementAndGetCounter(AccountIndex index) {
+    boolean incremented = false;
+    mDatabase.beginTransaction();
     try {
-      if (!cursorIsEmpty(cursor)) {
-        cursor.moveToFirst();
-        Integer value = cursor.getInt(cursor.getColumnIndex(TYPE_COLUMN));
-        return OtpType.getEnum(value);
+      SQLiteStatement increment = getIncrementCounterStatement(index);
+      increment.bindAllArgsAsStrings(whereArgs(index));
+      if (increment.executeUpdateDelete() == 0) {
+        return null;
       }
+      Integer counter = getCounter(index);
+      mDatabase.setTransactionSuccessful();
+      incremented = true;
+      return counter;
     } finally {
-      tryCloseCursor(cursor);
+      mDatabase.endTransaction();
+      // Only once the increment has been committed, so that readers don't reload for nothing, nor
+      // tag the contents before the increment with the new version
+      if (incremented) {
+        onDataChanged();
+      }
     }
-    return null;
+  }
+
+  public OtpType getType(AccountIndex index) {
+    AccountRecord record = getAccountRecord(index);
+    return (record != null) ? record.getType() : null;
   }
 
   /**
@@ -513,11 +1219,7 @@ public class AccountDb {
     try {
       if (!cursorIsEmpty(cursor)) {
         cursor.moveToFirst();
-        int originalNameIndex = cursor.getColumnIndex(ORIGINAL_NAME_COLUMN);
-        if (originalNameIndex < 0) {
-          return null;
-        }
-        return cursor.getString(originalNameIndex);
+        return cursor.getString(ORIGINAL_NAME_INDEX);
       }
     } finally {
       tryCloseCursor(cursor);
@@ -545,19 +1247,19 @@ public class AccountDb {
     try {
       if (!cursorIsEmpty(cursor)) {
         cursor.moveToFirst();
-        if (cursor.getInt(cursor.getColumnIndex(PROVIDER_COLUMN)) == PROVIDER_GOOGLE) {
+        if (cursor.getInt(PROVIDER_INDEX) == PROVIDER_GOOGLE) {
           // The account is marked as source: Google
           return true;
         }
+        if (!cursor.isNull(ORIGINAL_NAME_INDEX)) {
+          // This account is new, so it would have had the Google issuer if it was ours
+          return false;
+        }
       }
     } finally {
       tryCloseCursor(cursor);
     }
 
-    if (getOriginalName(index) != null) {
-      return false; // This account is new, so it would have had the Google issuer if it was ours
-    }
-
     // The account is old and from an unknown source. Could be a Google account added by scanning
     // a QR code or by manually entering a key, and if so, the name should be an email.
     String emailLowerCase = index.getName().toLowerCase(Locale.US);
@@ -580,14 +1282,16 @@ public class AccountDb {
       }
 
       // Try finding a Google issued account that used to have the matching name
-      for (AccountIndex index : getAccounts()) {
-        if (!GOOGLE_ISSUER_NAME.equals(index.getIssuer())) {
-          continue; // Only care about Google issued accounts
-        }
-        String originalName = getOriginalName(index);
-        if (accountName.equalsIgnoreCase(prefix + originalName)) {
-          return index;
+      Cursor cursor = getIssuerCursor(GOOGLE_ISSUER_NAME);
+      try {
+        while ((cursor != null) && cursor.moveToNext()) {
+          String originalName = cursor.getString(ISSUER_CURSOR_ORIGINAL_NAME_INDEX);
+          if (accountName.equalsIgnoreCase(prefix + originalName)) {
+            return new AccountIndex(cursor.getString(NAME_INDEX), GOOGLE_ISSUER_NAME);
+          }
         }
+      } finally {
+        tryCloseCursor(cursor);
       }
 
       // No luck yet. It may be a legacy account with no issuer, though.
@@ -614,29 +1318,74 @@ public class AccountDb {
     return indexExists(index) ? index : null;
   }
 
+  /**
+   * Creates a SQL {@code WHERE} clause matching the row of an account, with the values bound from
+   * {@link #whereArgs(AccountIndex)}. The clause only depends on whether the issuer is
+   * {@code null}, so SQLite compiles each statement using it once per connection rather than once
+   * per account.
+   */
   @VisibleForTesting
   static String whereClause(AccountIndex index) {
     Preconditions.checkNotNull(index);
-    return NAME_COLUMN + " = " + DatabaseUtils.sqlEscapeString(index.getName()) +
-        " AND " + whereClauseForIssuer(index.getIssuer());
+    return (index.getIssuer() != null) ? WHERE_NAME_AND_ISSUER : WHERE_NAME_AND_NULL_ISSUER;
   }
 
   /**
-   * Creates a SQL {@code WHERE} clause for an issuer.
-   *
-   * @param issuer may be {@code null}
-   * @return an appropriate SQLite {@code WHERE} clause for this {@code issuer}
+   * Gets the values to bind to the parameters of {@link #whereClause(AccountIndex)}.
    */
-  private static String whereClauseForIssuer(String issuer) {
-    if (issuer != null) {
-      return ISSUER_COLUMN + " = " + DatabaseUtils.sqlEscapeString(issuer);
-    }
-    return ISSUER_COLUMN + " IS NULL";
+  @VisibleForTesting
+  static String[] whereArgs(AccountIndex index) {
+    return (index.getIssuer() != null)
+        ? new String[] {index.getName(), index.getIssuer()}
+        : new String[] {index.getName()};
   }
 
   public void delete(AccountIndex index) {
-    mDatabase.delete(TABLE_NAME, whereClause(index), null);
-    mDatabase.execSQL("VACUUM");
+    mDatabase.delete(TABLE_NAME, whereClause(index), whereArgs(index));
+    onDataChanged();
+    mSignerCache.invalidate(index);
+    scheduleVacuum();
+  }
+
+  /**
+   * Schedules the pages freed by a deletion to be returned to the file system after
+   * {@link #VACUUM_DELAY_MILLIS}, replacing any reclamation scheduled by an earlier deletion. The
+   * deleted content itself has already been overwritten, as the database uses secure delete.
+   */
+  private synchronized void scheduleVacuum() {
+    if (mPendingVacuum != null) {
+      mPendingVacuum.cancel(false);
+    }
+    try {
+      mPendingVacuum = mMaintenanceExecutor.schedule(
+          new Runnable() {
+            @Override
+            public void run() {
+              vacuum();
+            }
+          },
+          VACUUM_DELAY_MILLIS,
+          TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Shutting down; the space is reclaimed after a later deletion instead
+      mPendingVacuum = null;
+    }
+  }
+
+  /** Returns the free pages of the database to the file system. */
+  @VisibleForTesting
+  void vacuum() {
+    synchronized (mMaintenanceLock) {
+      if (mClosed) {
+        return;
+      }
+      try {
+        mDatabase.execSQL("PRAGMA incremental_vacuum");
+      } catch (SQLiteException e) {
+        // The pages are reclaimed by the next incremental vacuum instead
+        Log.w(LOCAL_TAG, "Incremental vacuum failed", e);
+      }
+    }
   }
 
   /**
@@ -646,6 +1395,10 @@ public class AccountDb {
    *     with {@code newName} and the same {@code issuer} already exists).
    */
   public boolean rename(AccountIndex oldIndex, String newName) {
+    return rename(oldIndex, newName, mDatabaseIndexLookup);
+  }
+
+  private boolean rename(AccountIndex oldIndex, String newName, IndexLookup indexLookup) {
     Preconditions.checkNotNull(oldIndex);
     Preconditions.checkNotNull(oldIndex.getName());
     Preconditions.checkNotNull(newName);
@@ -660,14 +1413,21 @@ public class AccountDb {
       throw new UnsupportedOperationException();
     }
 
-    if (indexExists(new AccountIndex(newName, oldIndex.getIssuer()))) {
+    AccountIndex newIndex = new AccountIndex(newName, oldIndex.getIssuer());
+    if (indexLookup.exists(newIndex)) {
       // Don't overwrite an existing account
       return false;
     }
 
     ContentValues values = new ContentValues();
     values.put(NAME_COLUMN, newName);
-    int affectedRows = mDatabase.update(TABLE_NAME, values, whereClause(oldIndex), null);
+    int affectedRows =
+        mDatabase.update(TABLE_NAME, values, whereClause(oldIndex), whereArgs(oldIndex));
+    onDataChanged();
+    mSignerCache.invalidate(oldIndex);
+    if (affectedRows > 0) {
+      indexLookup.onRenamed(oldIndex, newIndex);
+    }
     if (affectedRows > 1) {
       Log.wtf(LOCAL_TAG, "Unexpectedly changed multiple rows during rename. Database consistent: " +
           isDbConsistent());
@@ -714,6 +1474,52 @@ public class AccountDb {
    */
   public AccountIndex add(String name, String secret, OtpType type, Integer counter,
       Boolean googleAccount, String issuer) {
+    return add(name, secret, type, counter, googleAccount, issuer, mDatabaseIndexLookup);
+  }
+
+  /**
+   * Adds the specified accounts into this database, in order, as if by calling
+   * {@link #add(String, String, OtpType, Integer, Boolean, String)} for each of them with a
+   * {@code null} {@code googleAccount}. All the accounts are added in a single transaction, with
+   * duplicate and similar accounts looked up in an in-memory copy of the indexes of the stored
+   * accounts rather than queried for each account, so that importing many accounts is fast.
+   *
+   * <p>If an exception is thrown, none of the accounts is added.
+   *
+   * @param records the accounts to add, each with the requested name and issuer as its index
+   * @return the {@link AccountIndex} of the record added for each of {@code records}, in order
+   * @throws AccountDbDuplicateLimitException if there are too many accounts with the name of one
+   *     of {@code records} already
+   */
+  public List<AccountIndex> addAll(List<AccountRecord> records) {
+    Preconditions.checkNotNull(records);
+    List<AccountIndex> result = Lists.newArrayListWithCapacity(records.size());
+    mDatabase.beginTransaction();
+    try {
+      IndexLookup indexLookup;
+      Cursor cursor =
+          mDatabase.query(TABLE_NAME, INDEX_PROJECTION, null, null, null, null, null, null);
+      try {
+        indexLookup = new InMemoryIndexLookup(cursor);
+      } finally {
+        tryCloseCursor(cursor);
+      }
+      for (AccountRecord record : records) {
+        AccountIndex index = record.getIndex();
+        result.add(add(index.getName(), record.getSecret(), record.getType(), record.getCounter(),
+            null, index.getIssuer(), indexLookup));
+      }
+      mDatabase.setTransactionSuccessful();
+    } finally {
+      mDatabase.endTransaction();
+      // Also after a rollback, as the in-memory copy may have been reloaded mid-transaction
+      onDataChanged();
+    }
+    return result;
+  }
+
+  private AccountIndex add(String name, String secret, OtpType type, Integer counter,
+      Boolean googleAccount, String issuer, IndexLookup indexLookup) {
     Preconditions.checkNotNull(name);
     Preconditions.checkNotNull(secret);
     Preconditions.checkNotNull(type);
@@ -730,33 +1536,39 @@ public class AccountDb {
       // (ditto for "Google Internal 2Factor" accounts, even though they have a null issuer).
       if (issuer != null) {
         values.put(ISSUER_COLUMN, issuer);
-        AccountIndex similarIndex = findSimilarExistingIndex(indexToAdd);
+        AccountIndex similarIndex = indexLookup.findSimilar(indexToAdd);
         if (similarIndex != null) {
           Log.i(LOCAL_TAG, "Will overwrite similar account: " + similarIndex);
           indexToAdd = similarIndex;
         }
       }
-      int updated = mDatabase.update(TABLE_NAME, values, whereClause(indexToAdd), null);
+      int updated =
+          mDatabase.update(TABLE_NAME, values, whereClause(indexToAdd), whereArgs(indexToAdd));
+      onDataChanged();
+      mSignerCache.invalidate(indexToAdd);
       if (updated == 0) {
         // No matching pre-existing account to update, so insert the new one
         values.put(NAME_COLUMN, name);
         // TODO: Add a test for the ORIGINAL_NAME_COLUMN behavior
         values.put(ORIGINAL_NAME_COLUMN, name);
-        mDatabase.insert(TABLE_NAME, null, values);
+        if (insertAccount(values) != -1) {
+          indexLookup.onInserted(new AccountIndex(name, issuer));
+        }
+        onDataChanged();
       } else {
         Log.i(LOCAL_TAG, "Overwrote existing OTP seed for: " + indexToAdd);
       }
       if (!indexToAdd.getName().equals(name)) {
         // We overwrote a similar index with a different name, so now we try to rename it to match
         // the name requested by the add operation (if it is safe to do so)
-        rename(indexToAdd, name);
+        rename(indexToAdd, name, indexLookup);
       }
     } else {
       // No issuer is set, so we do not overwrite any existing account
       values.put(NAME_COLUMN, indexToAdd.getName());
       values.put(ORIGINAL_NAME_COLUMN, indexToAdd.getName());
       int tries = 0;
-      while (!insertNewAccount(values)) {
+      while (!insertNewAccount(values, indexLookup)) {
         // There was already an account with this name
         tries++;
         if (tries >= MAX_DUPLICATE_NAMES) {
@@ -810,7 +1622,9 @@ public class AccountDb {
     Log.d(LOCAL_TAG, "Updating account: " + index);
 
     ContentValues values = newContentValuesWith(secret, type, counter, googleAccount);
-    int affectedRows = mDatabase.update(TABLE_NAME, values, whereClause(index), null);
+    int affectedRows = mDatabase.update(TABLE_NAME, values, whereClause(index), whereArgs(index));
+    onDataChanged();
+    mSignerCache.invalidate(index);
     if (affectedRows > 1) {
       Log.wtf(LOCAL_TAG, "Unexpectedly changed multiple rows during update. Database consistent: " +
           isDbConsistent());
@@ -819,40 +1633,53 @@ public class AccountDb {
   }
 
   /**
-   * Swaps the value of the {@link #ID_COLUMN} associated with the passed two AccountIndexes.
+   * Moves an account to the position of another one in the order of {@link #getAccounts()},
+   * shifting the accounts in between by one position towards the former position of the moved
+   * account. The new order is written in a single transaction, with the same number of statements
+   * however far the account moves, and without changing the row ids of the accounts.
    *
-   * @param firstIndex the {@link AccountIndex} to be swapped
-   * @param secondIndex the {@link AccountIndex} to be swapped
+   * @param index the account to move
+   * @param targetIndex the account whose position {@code index} moves to
+   * @return whether the account was moved, which requires both accounts to exist
    */
-  public void swapId(AccountIndex firstIndex, AccountIndex secondIndex)
-      throws AccountDbIdUpdateFailureException{
+  public boolean moveAccount(AccountIndex index, AccountIndex targetIndex) {
+    Preconditions.checkNotNull(index);
+    Preconditions.checkNotNull(targetIndex);
     mDatabase.beginTransaction();
     try {
-      int firstId = getId(firstIndex);
-      int secondId = getId(secondIndex);
-
-      // Update the id of the second index to avoid the unique key constraint
-      ContentValues valuesForTemporalId = new ContentValues();
-      valuesForTemporalId.put(ID_COLUMN, INVALID_ID);
-      mDatabase
-          .updateWithOnConflict(TABLE_NAME, valuesForTemporalId, whereClause(secondIndex), null,
-              SQLiteDatabase.CONFLICT_ROLLBACK);
-
-      ContentValues valuesForSecondId = new ContentValues();
-      valuesForSecondId.put(ID_COLUMN, secondId);
-      mDatabase.updateWithOnConflict(TABLE_NAME, valuesForSecondId, whereClause(firstIndex), null,
-          SQLiteDatabase.CONFLICT_ROLLBACK);
-
-      ContentValues valuesForFirstId = new ContentValues();
-      valuesForFirstId.put(ID_COLUMN, firstId);
-      mDatabase.updateWithOnConflict(TABLE_NAME, valuesForFirstId, whereClause(secondIndex), null,
-          SQLiteDatabase.CONFLICT_ROLLBACK);
+      Long from = getSortOrder(index);
+      Long to = getSortOrder(targetIndex);
+      if ((from == null) || (to == null)) {
+        return false;
+      }
+      if (from < to) {
+        mDatabase.execSQL(MOVE_UP_SORT_ORDERS_STATEMENT, new Object[] {from, to});
+      } else if (from > to) {
+        mDatabase.execSQL(MOVE_DOWN_SORT_ORDERS_STATEMENT, new Object[] {to, from});
+      }
+      ContentValues values = new ContentValues();
+      values.put(SORT_ORDER_COLUMN, to);
+      mDatabase.update(TABLE_NAME, values, whereClause(index), whereArgs(index));
       mDatabase.setTransactionSuccessful();
-    } catch (SQLiteException e) {
-      throw new AccountDbIdUpdateFailureException(
-          String.format("Updating the Id failed for %s and %s", firstIndex, secondIndex), e);
+      return true;
     } finally {
       mDatabase.endTransaction();
+      onDataChanged();
+    }
+  }
+
+  /** Gets the sort order of the specified account, or {@code null} if it doesn't exist. */
+  private Long getSortOrder(AccountIndex index) {
+    Cursor cursor = mDatabase.query(TABLE_NAME, SORT_ORDER_PROJECTION, whereClause(index),
+        whereArgs(index), null, null, null);
+    try {
+      if (cursorIsEmpty(cursor)) {
+        return null;
+      }
+      cursor.moveToFirst();
+      return cursor.getLong(0);
+    } finally {
+      tryCloseCursor(cursor);
     }
   }
 
@@ -862,7 +1689,7 @@ public class AccountDb {
     try {
       if (!cursorIsEmpty(cursor)) {
         cursor.moveToFirst();
-        return cursor.getInt(cursor.getColumnIndex(ID_COLUMN));
+        return cursor.getInt(ID_INDEX);
       }
     } finally {
       tryCloseCursor(cursor);
@@ -870,25 +1697,53 @@ public class AccountDb {
     return INVALID_ID;
   }
 
-  private boolean insertNewAccount(ContentValues values) {
+  /**
+   * Inserts an account after all the others in the order of {@link #getAccounts()}.
+   *
+   * @return the row id of the new account, or {@code -1} if an error occurred
+   */
+  private long insertAccount(ContentValues values) {
+    // The sort order must not be taken by a concurrent insertion in between
+    mDatabase.beginTransaction();
+    try {
+      values.put(
+          SORT_ORDER_COLUMN, DatabaseUtils.longForQuery(mDatabase, NEXT_SORT_ORDER_QUERY, null));
+      long rowId = mDatabase.insert(TABLE_NAME, null, values);
+      mDatabase.setTransactionSuccessful();
+      return rowId;
+    } finally {
+      mDatabase.endTransaction();
+    }
+  }
+
+  private boolean insertNewAccount(ContentValues values, IndexLookup indexLookup) {
     Preconditions.checkNotNull(values);
     Preconditions.checkNotNull(values.get(NAME_COLUMN));
     AccountIndex index =
         new AccountIndex((String) values.get(NAME_COLUMN), (String) values.get(ISSUER_COLUMN));
-    if (indexExists(index)) {
+    if (indexLookup.exists(index)) {
       return false;  // An account with this name already exists
     }
-    return mDatabase.insert(TABLE_NAME, null, values) != -1;
+    boolean inserted = insertAccount(values) != -1;
+    if (inserted) {
+      indexLookup.onInserted(index);
+    }
+    onDataChanged();
+    return inserted;
   }
 
   private Cursor getAccountCursor(AccountIndex index) {
-    return mDatabase.query(TABLE_NAME, null, whereClause(index),
-        null, null, null, null);
+    return mDatabase.query(TABLE_NAME, ACCOUNT_PROJECTION, whereClause(index), whereArgs(index),
+        null, null, null);
   }
 
+  /**
+   * Gets a cursor over the names and original names of the accounts with the specified issuer, at
+   * {@link #NAME_INDEX} and {@link #ISSUER_CURSOR_ORIGINAL_NAME_INDEX}.
+   */
   private Cursor getIssuerCursor(String issuer) {
-    return mDatabase.query(TABLE_NAME, null, whereClauseForIssuer(issuer),
-        null, null, null, null);
+    return mDatabase.query(TABLE_NAME, ISSUER_CURSOR_PROJECTION, WHERE_ISSUER,
+        new String[] {Preconditions.checkNotNull(issuer)}, null, null, null);
   }
 
   /**
@@ -911,26 +1766,61 @@ public class AccountDb {
    * Lists the names of all accounts.
    */
   public List<AccountIndex> getAccounts() {
-    Cursor cursor = mDatabase.query(TABLE_NAME, null, null, null, null, null, null, null);
+    return getSnapshot().accounts;
+  }
+
+  /**
+   * Gets the {@link AccountRecord} of every account, in the same order as {@link #getAccounts()}.
+   * All records are read with a single query, so they are consistent with each other.
+   */
+  public List<AccountRecord> getAccountRecords() {
+    return getSnapshot().records;
+  }
+
+  /**
+   * Gets the in-memory copy of the accounts table, reloading it if the table was written to since
+   * it was loaded.
+   */
+  @VisibleForTesting
+  Snapshot getSnapshot() {
+    // Read the version before querying: if a write races with the query, the new snapshot is
+    // tagged with the older version and thus reloaded on the next read.
+    long version = mDataVersion.get();
+    Snapshot snapshot = mSnapshot;
+    if ((snapshot == null) || (snapshot.version != version)) {
+      snapshot = new Snapshot(version, queryAccountRecords());
+      mSnapshot = snapshot;
+    }
+    return snapshot;
+  }
+
+  /**
+   * Marks the in-memory copy of the accounts table as stale. Must be called after every write to
+   * the table.
+   */
+  private void onDataChanged() {
+    mDataVersion.incrementAndGet();
+  }
+
+  /**
+   * Reads the {@link AccountRecord} of every account from the database, bypassing the in-memory
+   * copy.
+   */
+  @VisibleForTesting
+  List<AccountRecord> queryAccountRecords() {
+    Cursor cursor = mDatabase.query(
+        TABLE_NAME, RECORD_PROJECTION, null, null, null, null, ACCOUNTS_ORDER_BY, null);
 
     try {
       if (cursorIsEmpty(cursor)) {
         return ImmutableList.of();
       }
 
-      int nameCount = cursor.getCount();
-      int nameIndex = cursor.getColumnIndex(AccountDb.NAME_COLUMN);
-      int issuerIndex = cursor.getColumnIndex(AccountDb.ISSUER_COLUMN);
-
-      ImmutableList.Builder<AccountIndex> resultBuilder = ImmutableList.builder();
-      for (int i = 0; i < nameCount; ++i) {
+      int count = cursor.getCount();
+      ImmutableList.Builder<AccountRecord> resultBuilder = ImmutableList.builder();
+      for (int i = 0; i < count; ++i) {
         cursor.moveToPosition(i);
-        String name = cursor.getString(nameIndex);
-        String issuer = null;
-        if (issuerIndex >= 0) {
-          issuer = cursor.getString(issuerIndex);
-        }
-        resultBuilder.add(new AccountIndex(name, issuer));
+        resultBuilder.add(readAccountRecord(cursor));
       }
       return resultBuilder.build();
     } finally {
@@ -938,8 +1828,38 @@ public class AccountDb {
     }
   }
 
+  /**
+   * Reads the {@link AccountRecord} at the current position of a cursor over a projection starting
+   * with the columns of {@link #RECORD_PROJECTION}.
+   */
+  @VisibleForTesting
+  static AccountRecord readAccountRecord(Cursor cursor) {
+    return new AccountRecord(
+        new AccountIndex(cursor.getString(NAME_INDEX), cursor.getString(ISSUER_INDEX)),
+        cursor.getString(SECRET_INDEX),
+        OtpType.getEnum(cursor.getInt(TYPE_INDEX)),
+        cursor.getInt(COUNTER_INDEX));
+  }
+
   private void autoUpgradeOlderAccountsWithIssuerPrefix() {
-    for (AccountIndex index : getAccounts()) {
+    // Runs during a schema upgrade, so columns are looked up by name rather than read with the
+    // projections meant for the current schema
+    List<AccountIndex> accounts = Lists.newArrayList();
+    Cursor cursor = mDatabase.query(TABLE_NAME, null, null, null, null, null, null);
+    try {
+      if (!cursorIsEmpty(cursor)) {
+        int nameIndex = cursor.getColumnIndex(NAME_COLUMN);
+        int issuerIndex = cursor.getColumnIndex(ISSUER_COLUMN);
+        while (cursor.moveToNext()) {
+          accounts.add(
+              new AccountIndex(cursor.getString(nameIndex), cursor.getString(issuerIndex)));
+        }
+      }
+    } finally {
+      tryCloseCursor(cursor);
+    }
+
+    for (AccountIndex index : accounts) {
       if (index.getIssuer() != null) {
         Log.wtf(LOCAL_TAG, "Existing new-style account detected during account upgrade process: "
             + index.toString());
@@ -951,7 +1871,9 @@ public class AccountDb {
           Log.d(LOCAL_TAG, "Auto-upgrading old-style account: " + index.toString());
           ContentValues values = new ContentValues();
           values.put(ISSUER_COLUMN, issuer);
-          int affectedRows = mDatabase.update(TABLE_NAME, values, whereClause(index), null);
+          int affectedRows =
+              mDatabase.update(TABLE_NAME, values, whereClause(index), whereArgs(index));
+          onDataChanged();
           if (affectedRows > 1) {
             Log.wtf(LOCAL_TAG, "Unexpectedly changed multiple rows while auto-upgrading account: "
                 + index.toString());
@@ -981,17 +1903,4 @@ public class AccountDb {
       super(message);
     }
   }
-
-  /**
-   * Exception thrown when updating the values of {@link #ID_COLUMN} failed
-   */
-  public static class AccountDbIdUpdateFailureException extends Exception {
-    public  AccountDbIdUpdateFailureException(String message) {
-      super(message);
-    }
-
-    public AccountDbIdUpdateFailureException(String message, Exception e) {
-      super(message, e);
-    }
-  }
 }
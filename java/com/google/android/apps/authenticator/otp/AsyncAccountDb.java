@@ -0,0 +1,323 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.otp;
+
+import android.os.Looper;
+import android.util.Log;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountIndex;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountRecord;
+import com.google.android.apps.authenticator.otp.AccountDb.OtpType;
+import com.google.android.apps.authenticator.util.concurrent.RunOnThisLooperThreadExecutor;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous facade over {@link AccountDb} which keeps database I/O off the UI thread.
+ *
+ * <p>Operations run one at a time, in the order in which they were submitted, on a worker
+ * executor. Their results are delivered to {@link Callback} instances on the callback executor, by
+ * default the main (UI) thread. As operations are serialized, an operation submitted after a write
+ * observes the result of that write, and callbacks are invoked in the order in which operations
+ * were submitted. An exception thrown by an operation is delivered to its {@link ErrorCallback} on
+ * the callback executor too, or rethrown there if there is none, rather than on the worker.
+ *
+ * <p>The {@link AccountDb} is obtained from the supplier on the worker, so that opening (and, if
+ * needed, upgrading) the database does not happen on the UI thread either.
+ *
+ * <p>Thread-safety: Instances of this class are thread-safe.
+ */
+public class AsyncAccountDb {
+
+  private static final String LOG_TAG = "AsyncAccountDb";
+
+  /** Maximum time (milliseconds) {@link #shutdown()} waits for pending operations to finish. */
+  private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
+
+  /** Operation on the {@link AccountDb} run on the worker executor. */
+  public interface Operation<T> {
+    T run(AccountDb accountDb);
+  }
+
+  /** Receiver of the result of an {@link Operation}, invoked on the callback executor. */
+  public interface Callback<T> {
+    void onResult(T result);
+  }
+
+  /** Receiver of the exception thrown by an {@link Operation}, invoked on the callback executor. */
+  public interface ErrorCallback {
+    void onError(RuntimeException e);
+  }
+
+  private final Supplier<AccountDb> mAccountDbSupplier;
+  private final Executor mWorkerExecutor;
+  private final boolean mWorkerExecutorServiceOwnedByThisDb;
+  private final Executor mCallbackExecutor;
+
+  /**
+   * @param accountDbSupplier supplier of the database, invoked on the worker executor
+   * @param workerExecutor executor running the operations, which must run them one at a time, in
+   *     the order in which they were submitted
+   * @param workerExecutorServiceOwnedByThisDb whether the worker executor is an
+   *     {@link ExecutorService} to shut down in {@link #shutdown()}
+   * @param callbackExecutor executor delivering the results to callbacks
+   */
+  public AsyncAccountDb(
+      Supplier<AccountDb> accountDbSupplier,
+      Executor workerExecutor,
+      boolean workerExecutorServiceOwnedByThisDb,
+      Executor callbackExecutor) {
+    mAccountDbSupplier = Preconditions.checkNotNull(accountDbSupplier);
+    mWorkerExecutor = Preconditions.checkNotNull(workerExecutor);
+    mWorkerExecutorServiceOwnedByThisDb = workerExecutorServiceOwnedByThisDb;
+    mCallbackExecutor = Preconditions.checkNotNull(callbackExecutor);
+  }
+
+  /**
+   * Creates an instance which runs operations on a dedicated background thread and delivers their
+   * results to the main thread.
+   */
+  public AsyncAccountDb(Supplier<AccountDb> accountDbSupplier) {
+    this(
+        accountDbSupplier,
+        Executors.newSingleThreadExecutor(),
+        true,
+        new RunOnThisLooperThreadExecutor(Looper.getMainLooper()));
+  }
+
+  /**
+   * Runs the operation on the worker executor and delivers its result to the callback. If the
+   * operation fails, its exception is rethrown on the callback executor.
+   *
+   * @param callback callback or {@code null} if the result is not needed.
+   */
+  public <T> void submit(Operation<T> operation, Callback<? super T> callback) {
+    submit(operation, callback, null);
+  }
+
+  /**
+   * Runs the operation on the worker executor and delivers its result to the callback, or the
+   * exception it throws to the error callback.
+   *
+   * @param callback callback or {@code null} if the result is not needed.
+   * @param errorCallback callback or {@code null} to rethrow the exception on the callback
+   *     executor.
+   */
+  public <T> void submit(
+      final Operation<T> operation,
+      final Callback<? super T> callback,
+      final ErrorCallback errorCallback) {
+    Preconditions.checkNotNull(operation);
+    try {
+      mWorkerExecutor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              final T result;
+              try {
+                result = operation.run(mAccountDbSupplier.get());
+              } catch (final RuntimeException e) {
+                mCallbackExecutor.execute(
+                    new Runnable() {
+                      @Override
+                      public void run() {
+                        if (errorCallback == null) {
+                          throw e;
+                        }
+                        errorCallback.onError(e);
+                      }
+                    });
+                return;
+              }
+              if (callback != null) {
+                mCallbackExecutor.execute(
+                    new Runnable() {
+                      @Override
+                      public void run() {
+                        callback.onResult(result);
+                      }
+                    });
+              }
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // Only happens once shut down, when nobody is interested in the result anymore
+      Log.w(LOG_TAG, "Failed to schedule database operation", e);
+    }
+  }
+
+  /** See {@link AccountDb#getAccountRecords()}. */
+  public void getAccountRecords(Callback<? super List<AccountRecord>> callback) {
+    submit(
+        new Operation<List<AccountRecord>>() {
+          @Override
+          public List<AccountRecord> run(AccountDb accountDb) {
+            return accountDb.getAccountRecords();
+          }
+        },
+        callback);
+  }
+
+  /** See {@link AccountDb#getAccountRecord(AccountIndex)}. */
+  public void getAccountRecord(
+      final AccountIndex index, Callback<? super AccountRecord> callback) {
+    submit(
+        new Operation<AccountRecord>() {
+          @Override
+          public AccountRecord run(AccountDb accountDb) {
+            return accountDb.getAccountRecord(index);
+          }
+        },
+        callback);
+  }
+
+  /** Gets the number of accounts. */
+  public void getAccountCount(Callback<? super Integer> callback) {
+    submit(
+        new Operation<Integer>() {
+          @Override
+          public Integer run(AccountDb accountDb) {
+            return accountDb.getAccounts().size();
+          }
+        },
+        callback);
+  }
+
+  /** See {@link AccountDb#isGoogleAccount(AccountIndex)}. */
+  public void isGoogleAccount(final AccountIndex index, Callback<? super Boolean> callback) {
+    submit(
+        new Operation<Boolean>() {
+          @Override
+          public Boolean run(AccountDb accountDb) {
+            return accountDb.isGoogleAccount(index);
+          }
+        },
+        callback);
+  }
+
+  /** See {@link AccountDb#add(String, String, OtpType, Integer, Boolean, String)}. */
+  public void add(
+      String name,
+      String secret,
+      OtpType type,
+      Integer counter,
+      Boolean googleAccount,
+      String issuer,
+      Callback<? super AccountIndex> callback) {
+    add(name, secret, type, counter, googleAccount, issuer, callback, null);
+  }
+
+  /**
+   * See {@link AccountDb#add(String, String, OtpType, Integer, Boolean, String)}. If the account
+   * cannot be added, the exception is delivered to the error callback.
+   */
+  public void add(
+      final String name,
+      final String secret,
+      final OtpType type,
+      final Integer counter,
+      final Boolean googleAccount,
+      final String issuer,
+      Callback<? super AccountIndex> callback,
+      ErrorCallback errorCallback) {
+    submit(
+        new Operation<AccountIndex>() {
+          @Override
+          public AccountIndex run(AccountDb accountDb) {
+            return accountDb.add(name, secret, type, counter, googleAccount, issuer);
+          }
+        },
+        callback,
+        errorCallback);
+  }
+
+  /** See {@link AccountDb#delete(AccountIndex)}. */
+  public void delete(final AccountIndex index, Callback<? super Void> callback) {
+    submit(
+        new Operation<Void>() {
+          @Override
+          public Void run(AccountDb accountDb) {
+            accountDb.delete(index);
+            return null;
+          }
+        },
+        callback);
+  }
+
+  /**
+   * Renames the account unless an account similar to the renamed one already exists (see
+   * {@link AccountDb#findSimilarExistingIndex(AccountIndex)}). The check and the renaming happen
+   * in the same operation, so no other operation can add such an account in between.
+   *
+   * <p>The callback receives {@code true} if the account was renamed, {@code false} otherwise.
+   */
+  public void renameUnlessSimilarExists(
+      final AccountIndex index, final String newName, Callback<? super Boolean> callback) {
+    submit(
+        new Operation<Boolean>() {
+          @Override
+          public Boolean run(AccountDb accountDb) {
+            AccountIndex newIndex = new AccountIndex(newName, index.getIssuer());
+            if (accountDb.findSimilarExistingIndex(newIndex) != null) {
+              return false;
+            }
+            return accountDb.rename(index, newName);
+          }
+        },
+        callback);
+  }
+
+  /** See {@link AccountDb#moveAccount(AccountIndex, AccountIndex)}. */
+  public void moveAccount(
+      final AccountIndex index,
+      final AccountIndex targetIndex,
+      Callback<? super Boolean> callback) {
+    submit(
+        new Operation<Boolean>() {
+          @Override
+          public Boolean run(AccountDb accountDb) {
+            return accountDb.moveAccount(index, targetIndex);
+          }
+        },
+        callback);
+  }
+
+  /**
+   * Stops accepting operations and waits for the operations already submitted to finish, so that
+   * the database can be closed afterwards. Their results may not be delivered. This instance must
+   * not be used after this method has been invoked.
+   */
+  public void shutdown() {
+    if (!mWorkerExecutorServiceOwnedByThisDb) {
+      return;
+    }
+    ExecutorService workerExecutorService = (ExecutorService) mWorkerExecutor;
+    workerExecutorService.shutdown();
+    try {
+      if (!workerExecutorService.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        Log.w(LOG_TAG, "Timed out waiting for database operations to finish");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
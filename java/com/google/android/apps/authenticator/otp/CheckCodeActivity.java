@@ -59,20 +59,46 @@ public class CheckCodeActivity extends AppCompatActivity {
     mCheckCodeTextView = (TextView) findViewById(R.id.check_code);
     mCounterValue = (TextView) findViewById(R.id.counter_value);
 
+    // Show fake shadow on pre-Lollipop devices.
+    if (VERSION.SDK_INT < VERSION_CODES.LOLLIPOP) {
+      findViewById(R.id.toolbar_shadow).setVisibility(View.VISIBLE);
+    } else {
+      findViewById(R.id.toolbar_shadow).setVisibility(View.GONE);
+    }
+
     Intent intent = getIntent();
     Bundle extras = intent.getExtras();
-    AccountIndex index = (AccountIndex) extras.getSerializable("index");
+    final AccountIndex index = (AccountIndex) extras.getSerializable("index");
+
+    // Read the account off the UI thread
+    DependencyInjector.getAsyncAccountDb()
+        .getAccountRecord(
+            index,
+            new AsyncAccountDb.Callback<AccountDb.AccountRecord>() {
+              @Override
+              public void onResult(AccountDb.AccountRecord record) {
+                if (isFinishing()) {
+                  return;
+                }
+                if (record == null) {
+                  // The account was removed in the meantime
+                  finish();
+                  return;
+                }
+                displayCheckCode(index, record);
+              }
+            });
+  }
 
-    AccountDb accountDb = DependencyInjector.getAccountDb();
-    AccountDb.OtpType type = accountDb.getType(index);
-    if (type == AccountDb.OtpType.HOTP) {
-      mCounterValue.setText(accountDb.getCounter(index).toString());
+  private void displayCheckCode(AccountIndex index, AccountDb.AccountRecord record) {
+    if (record.getType() == AccountDb.OtpType.HOTP) {
+      mCounterValue.setText(record.getCounter().toString());
       findViewById(R.id.counter_area).setVisibility(View.VISIBLE);
     } else {
       findViewById(R.id.counter_area).setVisibility(View.GONE);
     }
 
-    String secret = accountDb.getSecret(index);
+    String secret = record.getSecret();
     String checkCode = null;
     String errorMessage = null;
     try {
@@ -93,13 +119,6 @@ public class CheckCodeActivity extends AppCompatActivity {
     mCheckCodeTextView.setText(styledCheckCode);
     mCheckCodeTextView.setVisibility(View.VISIBLE);
     findViewById(R.id.code_area).setVisibility(View.VISIBLE);
-
-    // Show fake shadow on pre-Lollipop devices.
-    if (VERSION.SDK_INT < VERSION_CODES.LOLLIPOP) {
-      findViewById(R.id.toolbar_shadow).setVisibility(View.VISIBLE);
-    } else {
-      findViewById(R.id.toolbar_shadow).setVisibility(View.GONE);
-    }
   }
 
   static String getCheckCode(String secret) throws GeneralSecurityException,
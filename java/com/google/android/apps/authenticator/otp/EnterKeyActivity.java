@@ -117,8 +117,7 @@ public class EnterKeyActivity extends TestableActivity implements TextWatcher {
   private boolean validateKeyAndUpdateStatus(boolean submitting) {
     String userEnteredKey = getEnteredKey();
     try {
-      byte[] decoded = Base32String.decode(userEnteredKey);
-      if (decoded.length < MIN_KEY_BYTES) {
+      if (Base32String.getDecodedLength(userEnteredKey) < MIN_KEY_BYTES) {
         // If the user is trying to submit a key that's too short, then
         // display a message saying it's too short.
         keyEntryFieldInputLayout.setError(
@@ -153,7 +152,8 @@ public class EnterKeyActivity extends TestableActivity implements TextWatcher {
                 new AccountIndex(accountName, null), // Manually entered keys have no issuer
                 getEnteredKey(),
                 mode,
-                AccountDb.DEFAULT_HOTP_COUNTER);
+                AccountDb.DEFAULT_HOTP_COUNTER,
+                null);
 
             Intent intent = new Intent(EnterKeyActivity.this, AuthenticatorActivity.class);
             intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.otp;
+
+import com.google.android.apps.authenticator.otp.PasscodeGenerator.Signer;
+import javax.crypto.ShortBufferException;
+
+/**
+ * HMAC-SHA1 {@link Signer} (RFC 2104) specialized for the short messages signed by
+ * {@link PasscodeGenerator}.
+ *
+ * <p>The SHA-1 states after absorbing the key XORed with the inner and outer pads are computed once,
+ * when the signer is constructed. Signing a message of up to 55 bytes, such as the 8-byte HOTP/TOTP
+ * state, thus costs only two invocations of the SHA-1 compression function, without the
+ * per-invocation overhead of going through a {@link javax.crypto.Mac} provider.
+ *
+ * <p>Thread-safety: Instances of this class are not thread-safe, as they reuse internal buffers
+ * between invocations.
+ */
+public class HmacSha1Signer implements Signer {
+
+  /** Length (bytes) of a SHA-1 block. */
+  private static final int BLOCK_LENGTH = 64;
+
+  /** Length (bytes) of a SHA-1 digest and thus of the HMAC-SHA1 signature. */
+  public static final int SIGNATURE_LENGTH = 20;
+
+  private static final int[] SHA1_INITIAL_STATE = {
+    0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0
+  };
+
+  private static final byte INNER_PAD = 0x36;
+  private static final byte OUTER_PAD = 0x5C;
+
+  /** SHA-1 state after absorbing the key XORed with the inner pad. */
+  private final int[] mInnerState = new int[5];
+
+  /** SHA-1 state after absorbing the key XORed with the outer pad. */
+  private final int[] mOuterState = new int[5];
+
+  // Scratch buffers reused between invocations
+  private final int[] mState = new int[5];
+  private final int[] mSchedule = new int[80];
+  private final byte[] mBlock = new byte[BLOCK_LENGTH];
+  private final byte[] mInnerDigest = new byte[SIGNATURE_LENGTH];
+
+  /**
+   * @param key the HMAC key, which must not be empty
+   * @throws IllegalArgumentException if the key is empty
+   */
+  public HmacSha1Signer(byte[] key) {
+    if ((key == null) || (key.length == 0)) {
+      throw new IllegalArgumentException("Empty key");
+    }
+    if (key.length > BLOCK_LENGTH) {
+      // Keys longer than a block are hashed first, as specified by RFC 2104
+      byte[] hashedKey = new byte[SIGNATURE_LENGTH];
+      hash(SHA1_INITIAL_STATE, 0, key, key.length, hashedKey);
+      key = hashedKey;
+    }
+
+    initPaddedKeyState(key, INNER_PAD, mInnerState);
+    initPaddedKeyState(key, OUTER_PAD, mOuterState);
+  }
+
+  @Override
+  public byte[] sign(byte[] data) {
+    byte[] signature = new byte[SIGNATURE_LENGTH];
+    signInternal(data, signature);
+    return signature;
+  }
+
+  @Override
+  public int sign(byte[] data, byte[] output) throws ShortBufferException {
+    if (output.length < SIGNATURE_LENGTH) {
+      throw new ShortBufferException(
+          "Signature length " + SIGNATURE_LENGTH + " exceeds buffer length " + output.length);
+    }
+    signInternal(data, output);
+    return SIGNATURE_LENGTH;
+  }
+
+  private void signInternal(byte[] data, byte[] output) {
+    // HMAC(K, m) = H((K ^ opad) || H((K ^ ipad) || m)), with the padded key blocks pre-absorbed
+    hash(mInnerState, BLOCK_LENGTH, data, data.length, mInnerDigest);
+    hash(mOuterState, BLOCK_LENGTH, mInnerDigest, SIGNATURE_LENGTH, output);
+  }
+
+  /** Computes the SHA-1 state after absorbing a block holding the key XORed with the pad. */
+  private void initPaddedKeyState(byte[] key, byte pad, int[] state) {
+    for (int i = 0; i < BLOCK_LENGTH; i++) {
+      mBlock[i] = (byte) (((i < key.length) ? key[i] : 0) ^ pad);
+    }
+    System.arraycopy(SHA1_INITIAL_STATE, 0, state, 0, state.length);
+    compress(state, mBlock, 0);
+  }
+
+  /**
+   * Completes a SHA-1 hash computation.
+   *
+   * @param initialState state after absorbing the first {@code prefixLength} bytes of the message
+   * @param prefixLength number of bytes already absorbed (a multiple of the block length)
+   * @param data the remainder of the message
+   * @param length number of bytes of {@code data} to hash
+   * @param output buffer to write the digest to, starting at index 0
+   */
+  private void hash(int[] initialState, long prefixLength, byte[] data, int length, byte[] output) {
+    System.arraycopy(initialState, 0, mState, 0, mState.length);
+
+    int offset = 0;
+    for (; length - offset >= BLOCK_LENGTH; offset += BLOCK_LENGTH) {
+      compress(mState, data, offset);
+    }
+
+    // Pad the final block(s): a single 1 bit, zeros, and the message length in bits
+    int remaining = length - offset;
+    System.arraycopy(data, offset, mBlock, 0, remaining);
+    mBlock[remaining] = (byte) 0x80;
+    if (remaining + 1 > BLOCK_LENGTH - 8) {
+      fill(mBlock, remaining + 1, BLOCK_LENGTH);
+      compress(mState, mBlock, 0);
+      fill(mBlock, 0, BLOCK_LENGTH - 8);
+    } else {
+      fill(mBlock, remaining + 1, BLOCK_LENGTH - 8);
+    }
+    long bitLength = (prefixLength + length) * 8;
+    for (int i = BLOCK_LENGTH - 1; i >= BLOCK_LENGTH - 8; i--) {
+      mBlock[i] = (byte) bitLength;
+      bitLength >>>= 8;
+    }
+    compress(mState, mBlock, 0);
+
+    for (int i = 0; i < mState.length; i++) {
+      int word = mState[i];
+      output[i * 4] = (byte) (word >>> 24);
+      output[i * 4 + 1] = (byte) (word >>> 16);
+      output[i * 4 + 2] = (byte) (word >>> 8);
+      output[i * 4 + 3] = (byte) word;
+    }
+  }
+
+  private static void fill(byte[] array, int from, int to) {
+    for (int i = from; i < to; i++) {
+      array[i] = 0;
+    }
+  }
+
+  /** SHA-1 compression function (FIPS 180-4), absorbing one block into the state. */
+  private void compress(int[] state, byte[] block, int offset) {
+    int[] w = mSchedule;
+    for (int t = 0; t < 16; t++) {
+      int i = offset + t * 4;
+      w[t] = ((block[i] & 0xFF) << 24)
+          | ((block[i + 1] & 0xFF) << 16)
+          | ((block[i + 2] & 0xFF) << 8)
+          | (block[i + 3] & 0xFF);
+    }
+    for (int t = 16; t < 80; t++) {
+      w[t] = Integer.rotateLeft(w[t - 3] ^ w[t - 8] ^ w[t - 14] ^ w[t - 16], 1);
+    }
+
+    int a = state[0];
+    int b = state[1];
+    int c = state[2];
+    int d = state[3];
+    int e = state[4];
+    for (int t = 0; t < 80; t++) {
+      int f;
+      int k;
+      if (t < 20) {
+        f = (b & c) | (~b & d);
+        k = 0x5A827999;
+      } else if (t < 40) {
+        f = b ^ c ^ d;
+        k = 0x6ED9EBA1;
+      } else if (t < 60) {
+        f = (b & c) | (b & d) | (c & d);
+        k = 0x8F1BBCDC;
+      } else {
+        f = b ^ c ^ d;
+        k = 0xCA62C1D6;
+      }
+      int temp = Integer.rotateLeft(a, 5) + f + e + k + w[t];
+      e = d;
+      d = c;
+      c = Integer.rotateLeft(b, 30);
+      b = a;
+      a = temp;
+    }
+    state[0] += a;
+    state[1] += b;
+    state[2] += c;
+    state[3] += d;
+    state[4] += e;
+  }
+}
@@ -19,7 +19,9 @@ package com.google.android.apps.authenticator.otp;
 import android.content.Context;
 import com.google.android.apps.authenticator.AuthenticatorActivity;
 import com.google.android.apps.authenticator.common.ApplicationContext;
+import com.google.android.apps.authenticator.testability.DependencyInjector;
 import com.google.android.apps.authenticator.time.Clock;
+import dagger.Lazy;
 import dagger.Module;
 import dagger.Provides;
 import javax.inject.Singleton;
@@ -38,9 +40,13 @@ public class OtpModule {
     return new TotpClock(applicationContext, clock);
   }
 
+  /**
+   * Provides the {@link OtpSource}, which only opens the database once it first needs it, so that
+   * it can be injected on the UI thread.
+   */
   @Provides @Singleton
-  public OtpSource providesOtpSource(AccountDb accountDb, TotpClock totpClock) {
-    return new OtpProvider(accountDb, totpClock);
+  public OtpSource providesOtpSource(Lazy<AccountDb> accountDb, TotpClock totpClock) {
+    return new OtpProvider(accountDb::get, totpClock);
   }
 
   @Provides
@@ -54,8 +60,12 @@ public class OtpModule {
         AuthenticatorActivity.TOTP_COUNTDOWN_REFRESH_PERIOD_MILLIS);
   }
 
-  @Provides @Singleton
-  public AccountDb providesAccountDb(@ApplicationContext Context applicationContext) {
-    return new AccountDb(applicationContext);
+  /**
+   * Provides the {@link AccountDb} used by the rest of the app rather than a second instance on the
+   * same database, as an instance's cached reads only observe the writes made through it.
+   */
+  @Provides
+  public AccountDb providesAccountDb() {
+    return DependencyInjector.getAccountDb();
   }
 }
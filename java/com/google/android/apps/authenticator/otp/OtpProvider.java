@@ -17,13 +17,20 @@
 package com.google.android.apps.authenticator.otp;
 
 import com.google.android.apps.authenticator.otp.AccountDb.AccountIndex;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountRecord;
 import com.google.android.apps.authenticator.otp.AccountDb.OtpType;
 import com.google.android.apps.authenticator.otp.PasscodeGenerator.Signer;
+import com.google.android.apps.authenticator.util.Base32String;
+import com.google.android.apps.authenticator.util.Base32String.DecodingException;
 import com.google.android.apps.authenticator.util.Utilities;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.Maps;
 
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Class containing implementation of HOTP/TOTP.
@@ -37,7 +44,7 @@ public class OtpProvider implements OtpSource {
 
   @Override
   public List<AccountIndex> enumerateAccounts() {
-    return mAccountDb.getAccounts();
+    return mAccountDbSupplier.get().getAccounts();
   }
 
   @Override
@@ -63,6 +70,65 @@ public class OtpProvider implements OtpSource {
     }
   }
 
+  @Override
+  public Map<AccountIndex, String> getCurrentTotpCodes() {
+    return getCurrentTotpCodes(mAccountDbSupplier.get().getAccountRecords());
+  }
+
+  @Override
+  public Map<AccountIndex, String> getCurrentTotpCodes(List<AccountRecord> accounts) {
+    // Read the clock only once, so that all codes are for the same time window
+    return getTotpCodes(accounts, getCurrentTotpState());
+  }
+
+  @Override
+  public Map<AccountIndex, String> getTotpCodes(List<AccountRecord> accounts, long otpState) {
+    Map<AccountIndex, String> result = Maps.newLinkedHashMap();
+    for (AccountRecord account : accounts) {
+      if (account.getType() != OtpType.TOTP) {
+        continue;
+      }
+      try {
+        result.put(
+            account.getIndex(),
+            computePin(account.getIndex(), account.getSecret(), otpState, null));
+      } catch (OtpSourceException ignored) {
+        // Skip this account, like the callers of getNextCode do
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public TotpCodeCursor getTotpCodes(
+      AccountIndex account, long startTimeMillis, long endTimeMillis) throws OtpSourceException {
+    if (account == null) {
+      throw new OtpSourceException("No account");
+    }
+    AccountRecord record = mAccountDbSupplier.get().getAccountRecord(account);
+    if ((record == null) || (record.getType() != OtpType.TOTP)) {
+      throw new OtpSourceException("Not a TOTP account");
+    }
+    String secret = record.getSecret();
+    if (secret == null || secret.length() == 0) {
+      throw new OtpSourceException("Null or empty secret");
+    }
+
+    // Not the cached signer: this one is only used by the cursor, so it needs no locking
+    Signer signer;
+    try {
+      signer = new HmacSha1Signer(Base32String.decode(secret));
+    } catch (DecodingException | IllegalArgumentException e) {
+      throw new OtpSourceException("Invalid secret", e);
+    }
+    return TotpCodeCursor.forTimeRange(
+        mTotpCounter,
+        signer,
+        PIN_LENGTH,
+        Utilities.millisToSeconds(startTimeMillis),
+        Utilities.millisToSeconds(endTimeMillis));
+  }
+
   @Override
   public TotpCounter getTotpCounter() {
     return mTotpCounter;
@@ -79,23 +145,26 @@ public class OtpProvider implements OtpSource {
       throw new OtpSourceException("No account");
     }
 
-    OtpType type = mAccountDb.getType(account);
-    String secret = getSecret(account);
+    // Read the type and secret with a single query
+    AccountRecord record = mAccountDbSupplier.get().getAccountRecord(account);
+    OtpType type = (record != null) ? record.getType() : null;
+    String secret = (record != null) ? record.getSecret() : null;
 
     long otpState = 0;
 
     if (type == OtpType.TOTP) {
       // For time-based OTP, the state is derived from clock.
-      otpState =
-          mTotpCounter.getValueAtTime(Utilities.millisToSeconds(mTotpClock.nowMillis()));
+      otpState = getCurrentTotpState();
     } else if (type == OtpType.HOTP){
       // For counter-based OTP, the state is obtained by incrementing stored counter.
-      mAccountDb.incrementCounter(account);
-      Integer counter = mAccountDb.getCounter(account);
+      Integer counter = mAccountDbSupplier.get().incrementAndGetCounter(account);
+      if (counter == null) {
+        throw new OtpSourceException("No account");
+      }
       otpState = counter.longValue();
     }
 
-    String result = computePin(secret, otpState, challenge);
+    String result = computePin(account, secret, otpState, challenge);
     return result;
   }
 
@@ -104,27 +173,52 @@ public class OtpProvider implements OtpSource {
   }
 
   public OtpProvider(int interval, AccountDb accountDb, TotpClock totpClock) {
-    mAccountDb = accountDb;
+    this(interval, Suppliers.ofInstance(accountDb), totpClock);
+  }
+
+  /**
+   * @param accountDbSupplier supplier of the database, only invoked when the database is needed.
+   *     This lets the provider be created on the UI thread without opening the database there.
+   */
+  public OtpProvider(Supplier<AccountDb> accountDbSupplier, TotpClock totpClock) {
+    this(DEFAULT_INTERVAL, accountDbSupplier, totpClock);
+  }
+
+  public OtpProvider(int interval, Supplier<AccountDb> accountDbSupplier, TotpClock totpClock) {
+    mAccountDbSupplier = accountDbSupplier;
     mTotpCounter = new TotpCounter(interval);
     mTotpClock = totpClock;
   }
 
+  /**
+   * Gets the TOTP state (time-interval) for the current time.
+   */
+  private long getCurrentTotpState() {
+    return mTotpCounter.getValueAtTime(Utilities.millisToSeconds(mTotpClock.nowMillis()));
+  }
+
   /**
    * Computes the one-time PIN given the secret key.
    *
+   * @param account {@link AccountIndex} identifying the account the secret key belongs to.
    * @param secret the secret key
    * @param otpState current token state (counter or time-interval)
    * @param challenge optional challenge bytes to include when computing passcode.
    * @return the PIN
    */
-  private String computePin(String secret, long otpState, byte[] challenge)
+  private String computePin(AccountIndex account, String secret, long otpState, byte[] challenge)
       throws OtpSourceException {
     if (secret == null || secret.length() == 0) {
       throw new OtpSourceException("Null or empty secret");
     }
 
+    // Reuse the signer initialized for this account's secret during an earlier interval
+    Signer signer = mAccountDbSupplier.get().getCachedSigningOracle(account, secret);
+    if (signer == null) {
+      throw new OtpSourceException("Invalid secret");
+    }
+
     try {
-      Signer signer = AccountDb.getSigningOracle(secret);
       PasscodeGenerator pcg = new PasscodeGenerator(signer,
         (challenge == null) ? PIN_LENGTH : REFLECTIVE_PIN_LENGTH);
 
@@ -136,19 +230,10 @@ public class OtpProvider implements OtpSource {
     }
   }
 
-  /**
-   * Reads the secret key that was saved on the phone.
-   * @param index {@link AccountIndex} identifying the user.
-   * @return the secret key as base32 encoded string.
-   */
-  String getSecret(AccountIndex index) {
-    return mAccountDb.getSecret(index);
-  }
-
   /** Default passcode timeout period (in seconds) */
   public static final int DEFAULT_INTERVAL = 30;
 
-  private final AccountDb mAccountDb;
+  private final Supplier<AccountDb> mAccountDbSupplier;
 
   /** Counter for time-based OTPs (TOTP). */
   private final TotpCounter mTotpCounter;
@@ -17,8 +17,10 @@
 package com.google.android.apps.authenticator.otp;
 
 import com.google.android.apps.authenticator.otp.AccountDb.AccountIndex;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountRecord;
 
 import java.util.List;
+import java.util.Map;
 
 /** Abstraction for collection of OTP tokens. */
 public interface OtpSource {
@@ -49,6 +51,55 @@ public interface OtpSource {
    */
   String respondToChallenge(AccountIndex account, String challenge) throws OtpSourceException;
 
+  /**
+   * Generate the current OTP codes of all TOTP accounts. The accounts are read only once and all
+   * codes are generated for the same time window.
+   *
+   * @return OTP codes keyed by account, in the order of {@link #enumerateAccounts()}.
+   * @see #getCurrentTotpCodes(List)
+   */
+  Map<AccountIndex, String> getCurrentTotpCodes();
+
+  /**
+   * Generate the current OTP codes of the specified TOTP accounts, all for the same time window.
+   * Unlike {@link #getNextCode(AccountIndex)}, the accounts are not looked up again.
+   *
+   * <p>HOTP accounts are skipped, as generating their codes changes their state. Accounts whose
+   * code cannot be generated, for example because of an invalid secret, are skipped too.
+   *
+   * @param accounts the accounts, e.g., as obtained from {@link AccountDb#getAccountRecords()}.
+   * @return OTP codes keyed by account, in the order of {@code accounts}.
+   */
+  Map<AccountIndex, String> getCurrentTotpCodes(List<AccountRecord> accounts);
+
+  /**
+   * Generate the OTP codes of the specified TOTP accounts for the specified value of the TOTP
+   * counter, which may be a past or future time window. The accounts are skipped the same way as by
+   * {@link #getCurrentTotpCodes(List)}.
+   *
+   * @param accounts the accounts, e.g., as obtained from {@link AccountDb#getAccountRecords()}.
+   * @param counterValue value of the TOTP counter, see {@link #getTotpCounter()}.
+   * @return OTP codes keyed by account, in the order of {@code accounts}.
+   */
+  Map<AccountIndex, String> getTotpCodes(List<AccountRecord> accounts, long counterValue);
+
+  /**
+   * Generate the OTP codes of a TOTP account for all time windows from the one containing
+   * {@code startTimeMillis} to the one containing {@code endTimeMillis}, e.g., to find out how
+   * skewed the clock of a server rejecting the codes is.
+   *
+   * <p>The codes are generated lazily, as the returned cursor is moved, by a signer dedicated to
+   * the cursor.
+   *
+   * @param account the unique index for the account.
+   * @param startTimeMillis start of the time range (milliseconds since epoch).
+   * @param endTimeMillis end of the time range (milliseconds since epoch), not before the start.
+   * @return cursor positioned before the code of the first time window.
+   * @throws OtpSourceException if the account is not a TOTP account or its secret is invalid.
+   */
+  TotpCodeCursor getTotpCodes(AccountIndex account, long startTimeMillis, long endTimeMillis)
+      throws OtpSourceException;
+
   /**
    * Gets the counter for generating or verifying TOTP codes.
    */
@@ -16,13 +16,11 @@
 
 package com.google.android.apps.authenticator.otp;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInput;
-import java.io.DataInputStream;
-import java.io.IOException;
+import com.google.common.annotations.VisibleForTesting;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 
 /**
  * An implementation of the HOTP generator specified by RFC 4226.
@@ -31,13 +29,21 @@ import javax.crypto.Mac;
  * passcodes that are only valid for a short period.
  *
  * <p>The default passcode is a 6-digit decimal code. The maximum passcode length is 9 digits.
+ *
+ * <p>Besides the {@code String}-returning methods, codes for a {@code long} state can be obtained
+ * via {@link #generateResponseCodeValue(long)} and {@link #writeResponseCode(long, char[], int)},
+ * which allocate nothing once the generator is constructed (provided the {@link Signer} does not).
+ *
+ * <p>Thread-safety: Instances of this class are not thread-safe, as they reuse internal buffers
+ * between invocations.
  */
 public class PasscodeGenerator {
   /**
    * Maximum passcode length, in digits. Must be kept in sync with
    * {@link #DIGITS_POWER}.
    */
-  private static final int MAX_PASSCODE_LENGTH = 9;
+  @VisibleForTesting
+  static final int MAX_PASSCODE_LENGTH = 9;
 
   /** Default decimal passcode length */
   private static final int PASS_CODE_LENGTH = 6;
@@ -54,20 +60,74 @@ public class PasscodeGenerator {
   private static final int[] DIGITS_POWER =
       {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000};
 
+  /** Maximum supported signature length, in bytes. Large enough for HMAC-SHA512. */
+  private static final int MAX_SIGNATURE_LENGTH = 64;
+
   private final Signer signer;
   private final int codeLength;
 
+  /** Scratch buffer for the 8-byte big-endian representation of the OTP state. */
+  private final byte[] stateBuffer = new byte[8];
+
+  /** Scratch buffer for the signature of the OTP state. */
+  private final byte[] signatureBuffer = new byte[MAX_SIGNATURE_LENGTH];
+
+  /** Scratch buffer for the digits of the response code. */
+  private final char[] codeBuffer = new char[MAX_PASSCODE_LENGTH];
+
   /**
    * Using an interface to allow us to inject different signature
    * implementations.
    */
-  interface Signer {
+  public interface Signer {
     /**
      * @param data Preimage to sign, represented as sequence of arbitrary bytes
      * @return Signature as sequence of bytes.
      * @throws GeneralSecurityException
      */
     byte[] sign(byte[] data) throws GeneralSecurityException;
+
+    /**
+     * Signs the data into a caller-supplied buffer. Implementations should override this to avoid
+     * allocating a new signature array per invocation.
+     *
+     * @param data Preimage to sign, represented as sequence of arbitrary bytes
+     * @param output Buffer to which the signature is written, starting at index 0.
+     * @return Length of the signature in bytes.
+     * @throws ShortBufferException If the signature does not fit into {@code output}
+     * @throws GeneralSecurityException
+     */
+    default int sign(byte[] data, byte[] output) throws GeneralSecurityException {
+      byte[] signature = sign(data);
+      if (signature.length > output.length) {
+        throw new ShortBufferException(
+            "Signature length " + signature.length + " exceeds buffer length " + output.length);
+      }
+      System.arraycopy(signature, 0, output, 0, signature.length);
+      return signature.length;
+    }
+  }
+
+  /**
+   * Creates a {@link Signer} out of the standard Java MAC implementation. The signer is not
+   * thread-safe, as {@link Mac} instances are not.
+   *
+   * @param mac An initialized {@link Mac}
+   */
+  static Signer newSigner(final Mac mac) {
+    return new Signer() {
+      @Override
+      public byte[] sign(byte[] data) {
+        return mac.doFinal(data);
+      }
+
+      @Override
+      public int sign(byte[] data, byte[] output) throws GeneralSecurityException {
+        mac.update(data);
+        mac.doFinal(output, 0);
+        return mac.getMacLength();
+      }
+    };
   }
 
   /**
@@ -85,13 +145,8 @@ public class PasscodeGenerator {
    * @param mac A {@link Mac} used to generate passcodes
    * @param passCodeLength The length of the decimal passcode
    */
-  public PasscodeGenerator(final Mac mac, int passCodeLength) {
-    this(new Signer() {
-      @Override
-      public byte[] sign(byte[] data){
-        return mac.doFinal(data);
-      }
-    }, passCodeLength);
+  public PasscodeGenerator(Mac mac, int passCodeLength) {
+    this(newSigner(mac), passCodeLength);
   }
 
   public PasscodeGenerator(Signer signer, int passCodeLength) {
@@ -103,12 +158,27 @@ public class PasscodeGenerator {
     this.codeLength = passCodeLength;
   }
 
-  private String padOutput(int value) {
-    String result = Integer.toString(value);
-    for (int i = result.length(); i < codeLength; i++) {
-      result = "0" + result;
+  /**
+   * Gets the number of characters in the response codes of this generator, i.e., the number of
+   * characters written by {@link #writeResponseCode(long, char[], int)}.
+   */
+  public int getResponseCodeLength() {
+    // Even a zero-digit code is rendered as "0"
+    return Math.max(codeLength, 1);
+  }
+
+  /**
+   * Writes the zero-padded decimal representation of the value into the buffer.
+   *
+   * @return the number of characters written.
+   */
+  int padOutput(int value, char[] output, int offset) {
+    int length = getResponseCodeLength();
+    for (int i = offset + length - 1; i >= offset; i--) {
+      output[i] = (char) ('0' + (value % 10));
+      value /= 10;
     }
-    return result;
+    return length;
   }
 
   /**
@@ -118,8 +188,45 @@ public class PasscodeGenerator {
    */
   public String generateResponseCode(long state)
       throws GeneralSecurityException {
-    byte[] value = ByteBuffer.allocate(8).putLong(state).array();
-    return generateResponseCode(value);
+    int length = writeResponseCode(state, codeBuffer, 0);
+    return new String(codeBuffer, 0, length);
+  }
+
+  /**
+   * Computes the response code as a number, i.e., without the zero-padding applied by
+   * {@link #generateResponseCode(long)}.
+   *
+   * @param state 8-byte integer value representing internal OTP state.
+   * @return A response code between {@code 0} (inclusive) and {@code 10^length} (exclusive)
+   * @throws GeneralSecurityException If a JCE exception occur
+   */
+  public int generateResponseCodeValue(long state)
+      throws GeneralSecurityException {
+    for (int i = stateBuffer.length - 1; i >= 0; i--) {
+      stateBuffer[i] = (byte) state;
+      state >>>= 8;
+    }
+    int signatureLength = signer.sign(stateBuffer, signatureBuffer);
+    return truncate(signatureBuffer, signatureLength);
+  }
+
+  /**
+   * Writes the zero-padded decimal response code into a caller-supplied buffer. The same
+   * characters as returned by {@link #generateResponseCode(long)} are written.
+   *
+   * @param state 8-byte integer value representing internal OTP state.
+   * @param output Buffer to write the response code to.
+   * @param offset Index in {@code output} at which to start writing.
+   * @return The number of characters written, i.e., {@link #getResponseCodeLength()}.
+   * @throws GeneralSecurityException If a JCE exception occur
+   */
+  public int writeResponseCode(long state, char[] output, int offset)
+      throws GeneralSecurityException {
+    if ((offset < 0) || (output.length - offset < getResponseCodeLength())) {
+      throw new IndexOutOfBoundsException(
+          "Buffer of length " + output.length + " too small at offset " + offset);
+    }
+    return padOutput(generateResponseCodeValue(state), output, offset);
   }
 
 
@@ -151,15 +258,24 @@ public class PasscodeGenerator {
    */
   public String generateResponseCode(byte[] challenge)
       throws GeneralSecurityException {
-    byte[] hash = signer.sign(challenge);
+    int signatureLength = signer.sign(challenge, signatureBuffer);
+    int length = padOutput(truncate(signatureBuffer, signatureLength), codeBuffer, 0);
+    return new String(codeBuffer, 0, length);
+  }
 
-    // Dynamically truncate the hash
+  /**
+   * Dynamically truncates the hash to a response code as specified by RFC 4226.
+   *
+   * @param hash the array holding the hash
+   * @param hashLength the length of the hash in the array
+   * @return the response code as a number
+   */
+  private int truncate(byte[] hash, int hashLength) {
     // OffsetBits are the low order bits of the last byte of the hash
-    int offset = hash[hash.length - 1] & 0xF;
+    int offset = hash[hashLength - 1] & 0xF;
     // Grab a positive integer value starting at the given offset.
     int truncatedHash = hashToInt(hash, offset) & 0x7FFFFFFF;
-    int pinValue = truncatedHash % DIGITS_POWER[codeLength];
-    return padOutput(pinValue);
+    return truncatedHash % DIGITS_POWER[codeLength];
   }
 
   /**
@@ -169,16 +285,11 @@ public class PasscodeGenerator {
    * @param start the index into the array to start grabbing bytes
    * @return the integer constructed from the four bytes in the array
    */
-  private int hashToInt(byte[] bytes, int start) {
-    DataInput input = new DataInputStream(
-        new ByteArrayInputStream(bytes, start, bytes.length - start));
-    int val;
-    try {
-      val = input.readInt();
-    } catch (IOException e) {
-      throw new IllegalStateException(e);
-    }
-    return val;
+  private static int hashToInt(byte[] bytes, int start) {
+    return ((bytes[start] & 0xFF) << 24)
+        | ((bytes[start + 1] & 0xFF) << 16)
+        | ((bytes[start + 2] & 0xFF) << 8)
+        | (bytes[start + 3] & 0xFF);
   }
 
   /**
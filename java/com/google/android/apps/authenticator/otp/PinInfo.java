@@ -139,6 +139,20 @@ public class PinInfo implements Parcelable {
     pinInfoArray[j] = pinInfo;
   }
 
+  /**
+   * Moves the element at {@code from} to {@code to}, shifting the elements in between by one
+   * position towards {@code from}.
+   */
+  public static void moveIndex(PinInfo[] pinInfoArray, int from, int to) {
+    PinInfo pinInfo = pinInfoArray[from];
+    if (from < to) {
+      System.arraycopy(pinInfoArray, from + 1, pinInfoArray, from, to - from);
+    } else {
+      System.arraycopy(pinInfoArray, to, pinInfoArray, to + 1, from - to);
+    }
+    pinInfoArray[to] = pinInfo;
+  }
+
   @Override
   public int hashCode() {
     return Objects.hashCode(mPin, mIndex, mIsHotp, mHotpCodeGenerationAllowed);
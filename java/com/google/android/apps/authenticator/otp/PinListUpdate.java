@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.otp;
+
+import com.google.android.apps.authenticator.otp.AccountDb.AccountIndex;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountRecord;
+import com.google.android.apps.authenticator.otp.AccountDb.OtpType;
+import com.google.common.primitives.Ints;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Update of the {@link PinInfo} entries displayed for a list of accounts, recording which entries
+ * were added, removed, moved or had their PIN changed so that only the affected rows need to be
+ * redrawn.
+ *
+ * <p>Entries are matched by {@link AccountIndex}, so an account keeps its entry (and thus, for HOTP
+ * accounts, its PIN and whether generating the next code is allowed) when other accounts are added,
+ * removed or reordered. Entries of accounts that are still displayed are updated in place.
+ */
+public class PinListUpdate {
+
+  private final PinInfo[] mPins;
+  private final int mAddedCount;
+  private final int mRemovedCount;
+  private final int mMovedCount;
+  private final int[] mChangedPositions;
+
+  private PinListUpdate(
+      PinInfo[] pins, int addedCount, int removedCount, int movedCount, int[] changedPositions) {
+    mPins = pins;
+    mAddedCount = addedCount;
+    mRemovedCount = removedCount;
+    mMovedCount = movedCount;
+    mChangedPositions = changedPositions;
+  }
+
+  /**
+   * Computes the entries for the accounts, reusing the current entries where possible.
+   *
+   * @param currentPins entries currently displayed, which may be updated in place.
+   * @param accounts accounts to display, in display order.
+   * @param totpCodes current codes of the TOTP accounts. Accounts without a code keep their PIN.
+   * @param emptyPin placeholder PIN for accounts without a code yet.
+   * @param resetHotpPins whether to replace the PINs of HOTP accounts by the placeholder, e.g.,
+   *     because their secrets may have changed.
+   */
+  public static PinListUpdate compute(
+      PinInfo[] currentPins,
+      List<AccountRecord> accounts,
+      Map<AccountIndex, String> totpCodes,
+      String emptyPin,
+      boolean resetHotpPins) {
+    Map<AccountIndex, Integer> currentPositions = new HashMap<>(currentPins.length * 2);
+    for (int i = 0; i < currentPins.length; i++) {
+      currentPositions.put(currentPins[i].getIndex(), i);
+    }
+
+    int count = accounts.size();
+    PinInfo[] pins = new PinInfo[count];
+    int addedCount = 0;
+    int movedCount = 0;
+    int reusedCount = 0;
+    List<Integer> changedPositions = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      AccountRecord account = accounts.get(i);
+      boolean isHotp = account.getType() == OtpType.HOTP;
+      Integer currentPosition = currentPositions.get(account.getIndex());
+      PinInfo pin = (currentPosition != null) ? currentPins[currentPosition] : null;
+      if ((pin == null) || (pin.isHotp() != isHotp)) {
+        // New account, or the type changed which requires a new entry
+        pin = new PinInfo(account.getIndex(), isHotp);
+        pin.setPin(emptyPin);
+        pin.setIsHotpCodeGenerationAllowed(true);
+        addedCount++;
+      } else {
+        reusedCount++;
+        if (currentPosition != i) {
+          movedCount++;
+        }
+      }
+
+      // HOTP PINs are only computed upon user request
+      String newPin;
+      if (isHotp) {
+        newPin = resetHotpPins ? emptyPin : null;
+      } else {
+        newPin = totpCodes.get(account.getIndex());
+      }
+      if ((newPin != null) && !newPin.equals(pin.getPin())) {
+        pin.setPin(newPin);
+        pin.setIsHotpCodeGenerationAllowed(true);
+        changedPositions.add(i);
+      }
+      pins[i] = pin;
+    }
+
+    return new PinListUpdate(
+        pins,
+        addedCount,
+        currentPins.length - reusedCount,
+        movedCount,
+        Ints.toArray(changedPositions));
+  }
+
+  /** Gets the entries to display, in display order. */
+  public PinInfo[] getPins() {
+    return mPins;
+  }
+
+  /** Gets the number of entries which did not exist before. */
+  public int getAddedCount() {
+    return mAddedCount;
+  }
+
+  /** Gets the number of entries which are no longer displayed. */
+  public int getRemovedCount() {
+    return mRemovedCount;
+  }
+
+  /** Gets the number of entries still displayed but at a different position. */
+  public int getMovedCount() {
+    return mMovedCount;
+  }
+
+  /**
+   * Returns whether entries were added, removed or moved, in which case all displayed rows may have
+   * to be redrawn.
+   */
+  public boolean isStructureChanged() {
+    return (mAddedCount > 0) || (mRemovedCount > 0) || (mMovedCount > 0);
+  }
+
+  /** Gets the positions of the entries whose PIN changed, in ascending order. */
+  public int[] getChangedPositions() {
+    return mChangedPositions;
+  }
+}
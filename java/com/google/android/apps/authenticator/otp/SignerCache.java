@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.otp;
+
+import com.google.android.apps.authenticator.otp.AccountDb.AccountIndex;
+import com.google.android.apps.authenticator.otp.PasscodeGenerator.Signer;
+import com.google.android.apps.authenticator.util.Base32String;
+import com.google.android.apps.authenticator.util.Base32String.DecodingException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of initialized {@link Signer} instances keyed by {@link AccountIndex}.
+ *
+ * <p>Obtaining a {@link Signer} for a secret requires Base32-decoding the secret and initializing
+ * the HMAC key state, which costs considerably more than the HMAC computation itself. The same
+ * accounts are signed for on every TOTP interval, so the signers are kept here until
+ * {@link AccountDb} reports that the secret of the account may have changed. The cached signers
+ * are {@link HmacSha1Signer} instances, which sign the 8-byte OTP states with two SHA-1
+ * compressions.
+ *
+ * <p>Each cached entry also remembers the secret it was created for, and a lookup with a different
+ * secret replaces the entry. Invalidation is thus only needed to release signers of accounts that
+ * were removed or renamed, but {@link AccountDb} invalidates on every write to be safe.
+ *
+ * <p>Thread-safety: Instances of this class are thread-safe. The cached signers serialize access to
+ * their underlying signer, so they may be shared between threads.
+ */
+public class SignerCache {
+
+  private final ConcurrentMap<AccountIndex, Entry> mEntries = new ConcurrentHashMap<>();
+
+  /**
+   * Gets a {@link Signer} for the specified account, creating and caching a new one if none is
+   * cached for the account or if the cached one was created for a different secret.
+   *
+   * @param index {@link AccountIndex} identifying the account.
+   * @param secret the secret key of the account as a Base32-encoded string.
+   * @return the signer or {@code null} if the secret is not a valid key.
+   */
+  public Signer getSigner(AccountIndex index, String secret) {
+    Preconditions.checkNotNull(index);
+    Preconditions.checkNotNull(secret);
+
+    Entry entry = mEntries.get(index);
+    if ((entry != null) && entry.secret.equals(secret)) {
+      return entry.signer;
+    }
+
+    Signer signer = createSigner(secret);
+    if (signer == null) {
+      mEntries.remove(index);
+      return null;
+    }
+    mEntries.put(index, new Entry(secret, signer));
+    return signer;
+  }
+
+  /**
+   * Removes the cached {@link Signer} (if any) of the specified account.
+   */
+  public void invalidate(AccountIndex index) {
+    mEntries.remove(index);
+  }
+
+  /**
+   * Removes all cached {@link Signer} instances.
+   */
+  public void invalidateAll() {
+    mEntries.clear();
+  }
+
+  /**
+   * Gets the number of accounts for which a {@link Signer} is currently cached.
+   */
+  @VisibleForTesting
+  int size() {
+    return mEntries.size();
+  }
+
+  private static Signer createSigner(String secret) {
+    final Signer signer;
+    try {
+      signer = new HmacSha1Signer(Base32String.decode(secret));
+    } catch (DecodingException | IllegalArgumentException e) {
+      return null;
+    }
+
+    // HmacSha1Signer instances are not thread-safe
+    return new Signer() {
+      @Override
+      public synchronized byte[] sign(byte[] data) throws GeneralSecurityException {
+        return signer.sign(data);
+      }
+
+      @Override
+      public synchronized int sign(byte[] data, byte[] output) throws GeneralSecurityException {
+        return signer.sign(data, output);
+      }
+    };
+  }
+
+  /** Cached {@link Signer} along with the secret it was created for. */
+  private static class Entry {
+    private final String secret;
+    private final Signer signer;
+
+    private Entry(String secret, Signer signer) {
+      this.secret = secret;
+      this.signer = signer;
+    }
+  }
+}
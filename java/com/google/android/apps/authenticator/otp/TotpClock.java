@@ -16,40 +16,89 @@
 
 package com.google.android.apps.authenticator.otp;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.preference.PreferenceManager;
 import com.google.android.apps.authenticator.time.Clock;
 import com.google.android.apps.authenticator.util.Utilities;
 import com.google.common.annotations.VisibleForTesting;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Clock input for the time-based OTPs (TOTP).
  *
  * <p>The input is based on the current system time and is adjusted by a persistently stored
  * correction value (offset in minutes).
+ *
+ * <p>The time of the clock jumps when the system time is set or the correction changes. Code
+ * scheduling work based on the time of the clock can register a {@link TimeChangeListener} to be
+ * told about such jumps.
  */
 public class TotpClock implements Clock {
+
+  /** Listener notified when the time of the clock jumps. */
+  public interface TimeChangeListener {
+
+    /**
+     * Invoked on the main thread when the system time has been set or the time correction has
+     * changed.
+     */
+    void onTimeChanged();
+  }
   
   @VisibleForTesting
   static final String PREFERENCE_KEY_OFFSET_MINUTES = "timeCorrectionMinutes";
   
+  private final Context mContext;
   private final Clock mSystemWallClock;
   private final SharedPreferences mPreferences;
+
+  private final Set<TimeChangeListener> mTimeChangeListeners = new CopyOnWriteArraySet<>();
+
+  /** Notifies the listeners when the system time is set. Only registered while there are any. */
+  private final BroadcastReceiver mTimeSetReceiver =
+      new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+          onSystemTimeSet();
+        }
+      };
   
-  private final Object mLock = new Object();
+  /**
+   * Cached value of time correction (in minutes) or {@code null} if not cached yet. The value is
+   * cached because it's read very frequently (once every 100ms) and is modified very infrequently.
+   * Reads thus neither lock nor touch the preferences, which are only read on the first access and
+   * whenever they change.
+   */
+  private final AtomicReference<Integer> mCachedCorrectionMinutes = new AtomicReference<>();
   
   /**
-   * Cached value of time correction (in minutes) or {@code null} if not cached. The value is cached
-   * because it's read very frequently (once every 100ms) and is modified very infrequently.
-   * 
-   * @GuardedBy {@link #mLock}
+   * Keeps the cache up to date with changes made to the preference by other instances. Referenced
+   * from a field because {@link SharedPreferences} only keeps weak references to its listeners.
    */
-  private Integer mCachedCorrectionMinutes;
+  private final OnSharedPreferenceChangeListener mPreferenceChangeListener =
+      new OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+          // A null key means that the preferences have been cleared
+          if ((key == null) || PREFERENCE_KEY_OFFSET_MINUTES.equals(key)) {
+            mCachedCorrectionMinutes.set(preferences.getInt(PREFERENCE_KEY_OFFSET_MINUTES, 0));
+            fireTimeChanged();
+          }
+        }
+      };
   
   public TotpClock(Context context, Clock systemWallClock) {
+    mContext = context;
     mSystemWallClock = systemWallClock;
     mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    mPreferences.registerOnSharedPreferenceChangeListener(mPreferenceChangeListener);
   }
   
   @Override
@@ -63,27 +112,58 @@ public class TotpClock implements Clock {
    * @return number of minutes by which this device is behind the correct time.
    */
   public int getTimeCorrectionMinutes() {
-    synchronized (mLock) {
-      if (mCachedCorrectionMinutes == null) {
-        mCachedCorrectionMinutes = mPreferences.getInt(PREFERENCE_KEY_OFFSET_MINUTES, 0); 
-      }
-      return mCachedCorrectionMinutes;
+    Integer cachedCorrectionMinutes = mCachedCorrectionMinutes.get();
+    if (cachedCorrectionMinutes != null) {
+      return cachedCorrectionMinutes;
+    }
+    int correctionMinutes = mPreferences.getInt(PREFERENCE_KEY_OFFSET_MINUTES, 0);
+    // Don't overwrite a value set (or observed to change) while the preference was being read
+    if (!mCachedCorrectionMinutes.compareAndSet(null, correctionMinutes)) {
+      return mCachedCorrectionMinutes.get();
     }
+    return correctionMinutes;
   }
   
   /**
-   * Sets the currently used time correction value.
+   * Sets the currently used time correction value. The new value is used immediately, whereas it
+   * is persisted asynchronously.
    * 
    * @param minutes number of minutes by which this device is behind the correct time.
    */
   public void setTimeCorrectionMinutes(int minutes) {
-    synchronized (mLock) {
-      mPreferences.edit().putInt(PREFERENCE_KEY_OFFSET_MINUTES, minutes).commit();
-      // Invalidate the cache to force reading actual settings from time to time
-      mCachedCorrectionMinutes = null;
-    }
+    mCachedCorrectionMinutes.set(minutes);
+    mPreferences.edit().putInt(PREFERENCE_KEY_OFFSET_MINUTES, minutes).apply();
   }
   
+  /**
+   * Registers a listener to notify when the time of this clock jumps. Listeners are notified on the
+   * main thread. Adding a registered listener again has no effect.
+   */
+  public synchronized void addTimeChangeListener(TimeChangeListener listener) {
+    if (mTimeChangeListeners.add(listener) && (mTimeChangeListeners.size() == 1)) {
+      mContext.registerReceiver(mTimeSetReceiver, new IntentFilter(Intent.ACTION_TIME_CHANGED));
+    }
+  }
+
+  /** Unregisters a listener registered via {@link #addTimeChangeListener(TimeChangeListener)}. */
+  public synchronized void removeTimeChangeListener(TimeChangeListener listener) {
+    if (mTimeChangeListeners.remove(listener) && mTimeChangeListeners.isEmpty()) {
+      mContext.unregisterReceiver(mTimeSetReceiver);
+    }
+  }
+
+  /** Invoked on the main thread when the system time has been set. */
+  @VisibleForTesting
+  void onSystemTimeSet() {
+    fireTimeChanged();
+  }
+
+  private void fireTimeChanged() {
+    for (TimeChangeListener listener : mTimeChangeListeners) {
+      listener.onTimeChanged();
+    }
+  }
+
   /**
    * Gets the system "wall" clock on top of this this TOTP clock operates.
    */
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.otp;
+
+import com.google.android.apps.authenticator.otp.PasscodeGenerator.Signer;
+import com.google.common.base.Preconditions;
+import java.security.GeneralSecurityException;
+import java.util.NoSuchElementException;
+
+/**
+ * Cursor over the TOTP codes of an account for a range of values of the TOTP counter, e.g., to
+ * find which time window a code belongs to.
+ *
+ * <p>Codes are generated lazily, one per call to {@link #moveToNext()}, with the same
+ * {@link PasscodeGenerator} and thus without allocating per window. The code of the current window
+ * can be read as a number ({@link #getCodeValue()}), written to a caller-provided array
+ * ({@link #writeCode(char[], int)}), or, at the cost of an allocation, as a string
+ * ({@link #getCode()}).
+ *
+ * <p>Example:
+ * <pre>
+ * TotpCodeCursor cursor = TotpCodeCursor.forTimeRange(counter, signer, 6, start, end);
+ * while (cursor.moveToNext()) {
+ *   if (cursor.getCodeValue() == code) {
+ *     return cursor.getCounterValue();
+ *   }
+ * }
+ * </pre>
+ *
+ * <p>Thread-safety: Instances of this class are not thread-safe.
+ */
+public class TotpCodeCursor {
+
+  private final PasscodeGenerator mGenerator;
+  private final long mLastCounterValue;
+
+  /** Value of the TOTP counter the cursor is positioned at. */
+  private long mCounterValue;
+
+  private int mCodeValue;
+  private boolean mHasCode;
+
+  /**
+   * @param signer signer of the account, used by this cursor only
+   * @param codeLength length of the codes in digits
+   * @param firstCounterValue value of the TOTP counter of the first code
+   * @param lastCounterValue value of the TOTP counter of the last code (inclusive)
+   */
+  public TotpCodeCursor(
+      Signer signer, int codeLength, long firstCounterValue, long lastCounterValue) {
+    Preconditions.checkArgument(
+        firstCounterValue <= lastCounterValue,
+        "Empty range: %s > %s", firstCounterValue, lastCounterValue);
+    Preconditions.checkArgument(lastCounterValue < Long.MAX_VALUE, "Range too large");
+    mGenerator = new PasscodeGenerator(Preconditions.checkNotNull(signer), codeLength);
+    mLastCounterValue = lastCounterValue;
+    mCounterValue = firstCounterValue - 1;
+  }
+
+  /**
+   * Creates a cursor over the codes of the time windows from the one containing
+   * {@code startTimeSeconds} to the one containing {@code endTimeSeconds}, both included.
+   *
+   * @param counter counter deriving the time windows from the time
+   * @param signer signer of the account, used by the cursor only
+   * @param codeLength length of the codes in digits
+   * @param startTimeSeconds start of the range (seconds since epoch)
+   * @param endTimeSeconds end of the range (seconds since epoch), not before the start
+   */
+  public static TotpCodeCursor forTimeRange(
+      TotpCounter counter,
+      Signer signer,
+      int codeLength,
+      long startTimeSeconds,
+      long endTimeSeconds) {
+    return new TotpCodeCursor(
+        signer,
+        codeLength,
+        counter.getValueAtTime(startTimeSeconds),
+        counter.getValueAtTime(endTimeSeconds));
+  }
+
+  /**
+   * Moves to the next time window and generates its code.
+   *
+   * @return {@code true} if the cursor moved, or {@code false} if it was at the last time window.
+   */
+  public boolean moveToNext() throws GeneralSecurityException {
+    if (mCounterValue >= mLastCounterValue) {
+      mHasCode = false;
+      return false;
+    }
+    mCounterValue++;
+    mHasCode = false;
+    mCodeValue = mGenerator.generateResponseCodeValue(mCounterValue);
+    mHasCode = true;
+    return true;
+  }
+
+  /** Gets the value of the TOTP counter of the current time window. */
+  public long getCounterValue() {
+    checkHasCode();
+    return mCounterValue;
+  }
+
+  /** Gets the code of the current time window as a number, without its leading zeros. */
+  public int getCodeValue() {
+    checkHasCode();
+    return mCodeValue;
+  }
+
+  /** Gets the length of the codes in characters. */
+  public int getCodeLength() {
+    return mGenerator.getResponseCodeLength();
+  }
+
+  /**
+   * Writes the code of the current time window, padded with leading zeros, to the array.
+   *
+   * @param output array to write the {@link #getCodeLength()} characters of the code to
+   * @param offset index in {@code output} of the first character
+   * @throws IndexOutOfBoundsException if {@code output} is too small
+   */
+  public void writeCode(char[] output, int offset) {
+    checkHasCode();
+    int length = getCodeLength();
+    if ((offset < 0) || (offset > output.length - length)) {
+      throw new IndexOutOfBoundsException(
+          "Code length " + length + " at offset " + offset + " exceeds length " + output.length);
+    }
+    mGenerator.padOutput(mCodeValue, output, offset);
+  }
+
+  /** Gets the code of the current time window, padded with leading zeros. */
+  public String getCode() {
+    char[] code = new char[getCodeLength()];
+    writeCode(code, 0);
+    return new String(code);
+  }
+
+  private void checkHasCode() {
+    if (!mHasCode) {
+      throw new NoSuchElementException("Cursor not positioned at a time window");
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.otp;
+
+import android.util.Log;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountIndex;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountRecord;
+import com.google.android.apps.authenticator.util.Utilities;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Computes the TOTP codes of the next time window in the background shortly before the TOTP counter
+ * changes its value, so that the codes are ready to be displayed as soon as it does.
+ *
+ * <p>The prefetcher is driven by the {@link TotpCountdownTask} notifications: once the time remaining
+ * until the counter changes its value drops below the lead time, the codes for the next counter
+ * value are computed on the background executor. When the counter value changes, the codes are
+ * obtained via {@link #takeCodes(long)}, which returns {@code null} if they are not (yet) available
+ * and the caller needs to compute them itself.
+ *
+ * <p>Prefetched codes are computed from a snapshot of the accounts and thus must be discarded via
+ * {@link #invalidate()} whenever accounts are added, modified or removed.
+ *
+ * <p>Thread-safety: Instances of this class are thread-safe.
+ */
+public class TotpCodePrefetcher {
+
+  /** Default time (milliseconds) before the TOTP counter changes its value to start prefetching. */
+  public static final long DEFAULT_LEAD_TIME_MILLIS = 2000;
+
+  private static final String LOG_TAG = "TotpCodePrefetcher";
+
+  /** TOTP codes computed for a particular value of the TOTP counter. */
+  public static class Codes {
+    private final long counterValue;
+    private final List<AccountRecord> accounts;
+    private final Map<AccountIndex, String> codes;
+
+    /**
+     * @param counterValue value of the TOTP counter for which the codes were computed
+     * @param accounts accounts from which the codes were computed
+     * @param codes codes keyed by account, as returned by {@link OtpSource#getTotpCodes}
+     */
+    public Codes(long counterValue, List<AccountRecord> accounts, Map<AccountIndex, String> codes) {
+      this.counterValue = counterValue;
+      this.accounts = accounts;
+      this.codes = codes;
+    }
+
+    /** Returns the value of the TOTP counter for which the codes were computed. */
+    public long getCounterValue() {
+      return counterValue;
+    }
+
+    /** Returns the accounts from which the codes were computed. */
+    public List<AccountRecord> getAccounts() {
+      return accounts;
+    }
+
+    /** Returns the codes keyed by account, as returned by {@link OtpSource#getTotpCodes}. */
+    public Map<AccountIndex, String> getCodes() {
+      return codes;
+    }
+  }
+
+  private final Supplier<AccountDb> mAccountDbSupplier;
+  private final OtpSource mOtpSource;
+  private final Executor mBackgroundExecutor;
+  private final boolean mBackgroundExecutorServiceOwnedByThisPrefetcher;
+  private final long mLeadTimeMillis;
+
+  /** Most recently prefetched codes, or {@code null} if none are available. */
+  private final AtomicReference<Codes> mPrefetchedCodes = new AtomicReference<>();
+
+  /**
+   * Incremented on every invalidation. Codes computed from accounts read during an earlier
+   * generation are discarded.
+   */
+  private final AtomicInteger mGeneration = new AtomicInteger();
+
+  /** Counter value for which prefetching was last requested, to avoid requesting it repeatedly. */
+  private long mRequestedCounterValue = Long.MIN_VALUE;
+
+  /**
+   * @param accountDbSupplier supplier of the database, invoked on the background executor so that
+   *     the database is not opened on the thread creating this prefetcher
+   * @param otpSource source of the codes
+   * @param backgroundExecutor executor computing the codes
+   * @param backgroundExecutorServiceOwnedByThisPrefetcher whether the background executor is an
+   *     {@link ExecutorService} to shut down in {@link #shutdown()}
+   * @param leadTimeMillis time (milliseconds) before the TOTP counter changes its value to start
+   *     prefetching
+   */
+  public TotpCodePrefetcher(
+      Supplier<AccountDb> accountDbSupplier,
+      OtpSource otpSource,
+      Executor backgroundExecutor,
+      boolean backgroundExecutorServiceOwnedByThisPrefetcher,
+      long leadTimeMillis) {
+    mAccountDbSupplier = accountDbSupplier;
+    mOtpSource = otpSource;
+    mBackgroundExecutor = backgroundExecutor;
+    mBackgroundExecutorServiceOwnedByThisPrefetcher =
+        backgroundExecutorServiceOwnedByThisPrefetcher;
+    mLeadTimeMillis = leadTimeMillis;
+  }
+
+  public TotpCodePrefetcher(
+      AccountDb accountDb,
+      OtpSource otpSource,
+      Executor backgroundExecutor,
+      boolean backgroundExecutorServiceOwnedByThisPrefetcher,
+      long leadTimeMillis) {
+    this(
+        Suppliers.ofInstance(accountDb),
+        otpSource,
+        backgroundExecutor,
+        backgroundExecutorServiceOwnedByThisPrefetcher,
+        leadTimeMillis);
+  }
+
+  public TotpCodePrefetcher(Supplier<AccountDb> accountDbSupplier, OtpSource otpSource) {
+    this(
+        accountDbSupplier,
+        otpSource,
+        Executors.newSingleThreadExecutor(),
+        true,
+        DEFAULT_LEAD_TIME_MILLIS);
+  }
+
+  /**
+   * Notifies this prefetcher of the time remaining until the TOTP counter changes its value. Starts
+   * prefetching the codes for the next counter value if the time remaining is below the lead time.
+   *
+   * @param millisRemaining time (milliseconds) remaining, as reported by
+   *     {@link TotpCountdownTask.Listener#onTotpCountdown(long)}.
+   */
+  public void onTotpCountdown(long millisRemaining) {
+    if (millisRemaining > mLeadTimeMillis) {
+      return;
+    }
+    long nextCounterValue =
+        mOtpSource.getTotpCounter().getValueAtTime(
+            Utilities.millisToSeconds(mOtpSource.getTotpClock().nowMillis() + millisRemaining));
+    synchronized (this) {
+      if (mRequestedCounterValue == nextCounterValue) {
+        return;
+      }
+      mRequestedCounterValue = nextCounterValue;
+    }
+    prefetch(nextCounterValue);
+  }
+
+  /**
+   * Computes the codes for the specified counter value in the background.
+   */
+  public void prefetch(final long counterValue) {
+    final int generation = mGeneration.get();
+    try {
+      mBackgroundExecutor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              List<AccountRecord> accounts = mAccountDbSupplier.get().getAccountRecords();
+              Map<AccountIndex, String> codes = mOtpSource.getTotpCodes(accounts, counterValue);
+              // Only publish the codes if the accounts have not changed in the meantime. Check again
+              // after publishing in case invalidate() ran concurrently with the publication.
+              Codes prefetchedCodes = new Codes(counterValue, accounts, codes);
+              if (mGeneration.get() == generation) {
+                mPrefetchedCodes.set(prefetchedCodes);
+                if (mGeneration.get() != generation) {
+                  mPrefetchedCodes.compareAndSet(prefetchedCodes, null);
+                }
+              }
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      Log.w(LOG_TAG, "Failed to schedule prefetching of codes", e);
+    }
+  }
+
+  /**
+   * Takes the prefetched codes for the specified counter value. The codes are handed out only once.
+   *
+   * @return codes or {@code null} if codes for {@code counterValue} are not available.
+   */
+  public Codes takeCodes(long counterValue) {
+    Codes codes = mPrefetchedCodes.get();
+    if ((codes == null) || (codes.getCounterValue() != counterValue)) {
+      return null;
+    }
+    return mPrefetchedCodes.compareAndSet(codes, null) ? codes : null;
+  }
+
+  /**
+   * Discards the prefetched codes, including those currently being computed. Must be invoked
+   * whenever accounts are added, modified or removed.
+   */
+  public void invalidate() {
+    mGeneration.incrementAndGet();
+    mPrefetchedCodes.set(null);
+    synchronized (this) {
+      mRequestedCounterValue = Long.MIN_VALUE;
+    }
+  }
+
+  /**
+   * Stops this prefetcher, discarding any prefetched codes. The prefetcher must not be used after
+   * this method has been invoked.
+   */
+  public void shutdown() {
+    invalidate();
+    if (mBackgroundExecutorServiceOwnedByThisPrefetcher) {
+      ((ExecutorService) mBackgroundExecutor).shutdownNow();
+    }
+  }
+}
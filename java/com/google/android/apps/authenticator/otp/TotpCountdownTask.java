@@ -17,21 +17,53 @@
 package com.google.android.apps.authenticator.otp;
 
 import android.os.Handler;
-import com.google.android.apps.authenticator.time.Clock;
+import android.view.Choreographer;
 import com.google.android.apps.authenticator.util.Utilities;
+import com.google.common.annotations.VisibleForTesting;
 
 /**
- * Task that periodically notifies its listener about the time remaining until the value of a TOTP
- * counter changes.
+ * Task that notifies its listener about the time remaining until the value of a TOTP counter
+ * changes.
+ *
+ * <p>To avoid waking up the main thread needlessly, the task only wakes up when the counter value
+ * changes and, optionally, a fixed time before that (see
+ * {@link #TotpCountdownTask(TotpCounter, TotpClock, long, long)}). As these wakeups are scheduled
+ * ahead of time, the task reschedules them, and notifies its listener right away, whenever the time
+ * of the clock jumps (see {@link TotpClock.TimeChangeListener}). Periodic notifications, e.g., to
+ * animate a countdown indicator, are only delivered while enabled via
+ * {@link #setCountdownAnimationEnabled(boolean)}, and are then driven by display frames.
+ *
+ * <p>Must be used on a thread with a {@link android.os.Looper}, typically the main thread.
  */
 public class TotpCountdownTask implements Runnable {
   private final TotpCounter mCounter;
-  private final Clock mClock;
+  private final TotpClock mClock;
   private final long mRemainingTimeNotificationPeriod;
+  private final long mAdvanceNoticeMillis;
   private final Handler mHandler = new Handler();
+  private final Choreographer mChoreographer = Choreographer.getInstance();
+
+  /** Delivers the periodic notifications while the countdown animation is enabled. */
+  private final Choreographer.FrameCallback mFrameCallback =
+      new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+          onFrame();
+        }
+      };
+
+  /** Catches up with jumps of the clock, which the scheduled wakeup does not account for. */
+  private final TotpClock.TimeChangeListener mTimeChangeListener =
+      new TotpClock.TimeChangeListener() {
+        @Override
+        public void onTimeChanged() {
+          run();
+        }
+      };
 
   private long mLastSeenCounterValue = Long.MIN_VALUE;
   private boolean mShouldStop;
+  private boolean mCountdownAnimationEnabled;
   private Listener mListener;
 
   /**
@@ -57,17 +89,35 @@ public class TotpCountdownTask implements Runnable {
    * @param clock TOTP clock that drives this task.
    * @param remainingTimeNotificationPeriod approximate interval (milliseconds) at which this task
    *        notifies its listener about the time remaining until the @{code counter} changes its
-   *        value.
+   *        value, while the countdown animation is enabled.
    */
   public TotpCountdownTask(TotpCounter counter, TotpClock clock,
       long remainingTimeNotificationPeriod) {
+    this(counter, clock, remainingTimeNotificationPeriod, 0);
+  }
+
+  /**
+   * Constructs a new {@code TotpRefreshTask}.
+   *
+   * @param counter TOTP counter this task monitors.
+   * @param clock TOTP clock that drives this task.
+   * @param remainingTimeNotificationPeriod approximate interval (milliseconds) at which this task
+   *        notifies its listener about the time remaining until the @{code counter} changes its
+   *        value, while the countdown animation is enabled.
+   * @param advanceNoticeMillis time (milliseconds) before each change of the {@code counter} value
+   *        at which the listener is additionally notified about the time remaining, even while the
+   *        countdown animation is disabled, or {@code 0} for no such notification.
+   */
+  public TotpCountdownTask(TotpCounter counter, TotpClock clock,
+      long remainingTimeNotificationPeriod, long advanceNoticeMillis) {
     mCounter = counter;
     mClock = clock;
     mRemainingTimeNotificationPeriod = remainingTimeNotificationPeriod;
+    mAdvanceNoticeMillis = advanceNoticeMillis;
   }
 
   /**
-   * Sets the listener that this task will periodically notify about the state of the TOTP counter.
+   * Sets the listener that this task will notify about the state of the TOTP counter.
    *
    * @param listener listener or {@code null} for no listener.
    */
@@ -88,6 +138,7 @@ public class TotpCountdownTask implements Runnable {
       throw new IllegalStateException("Task already stopped and cannot be restarted.");
     }
 
+    mClock.addTimeChangeListener(mTimeChangeListener);
     run();
   }
 
@@ -96,6 +147,30 @@ public class TotpCountdownTask implements Runnable {
    */
   public void stop() {
     mShouldStop = true;
+    mClock.removeTimeChangeListener(mTimeChangeListener);
+    mHandler.removeCallbacks(this);
+    mChoreographer.removeFrameCallback(mFrameCallback);
+  }
+
+  /**
+   * Enables or disables the periodic notifications about the time remaining, which should only be
+   * enabled while a countdown is actually visible to the user.
+   */
+  public void setCountdownAnimationEnabled(boolean enabled) {
+    if ((enabled == mCountdownAnimationEnabled) || mShouldStop) {
+      return;
+    }
+    mCountdownAnimationEnabled = enabled;
+    if (enabled) {
+      mChoreographer.postFrameCallback(mFrameCallback);
+    } else {
+      mChoreographer.removeFrameCallback(mFrameCallback);
+    }
+  }
+
+  /** Returns whether the periodic notifications about the time remaining are enabled. */
+  public boolean isCountdownAnimationEnabled() {
+    return mCountdownAnimationEnabled;
   }
 
   @Override
@@ -104,6 +179,36 @@ public class TotpCountdownTask implements Runnable {
       return;
     }
 
+    long now = notifyListener();
+    if (mShouldStop) {
+      // The listener stopped this task
+      return;
+    }
+    mHandler.removeCallbacks(this);
+    mHandler.postDelayed(
+        this, getTimeTillNextWakeup(getTimeTillNextCounterValue(now), mAdvanceNoticeMillis));
+  }
+
+  private void onFrame() {
+    if (mShouldStop || !mCountdownAnimationEnabled) {
+      return;
+    }
+
+    long now = notifyListener();
+    // The listener may have disabled the animation
+    if (mCountdownAnimationEnabled && !mShouldStop) {
+      mChoreographer.postFrameCallbackDelayed(
+          mFrameCallback,
+          getTimeTillNextNotification(getCounterValueAge(now), mRemainingTimeNotificationPeriod));
+    }
+  }
+
+  /**
+   * Notifies the listener about the current state of the counter.
+   *
+   * @return the time (milliseconds since epoch) the notifications are for.
+   */
+  private long notifyListener() {
     long now = mClock.nowMillis();
     long counterValue = getCounterValue(now);
     if (mLastSeenCounterValue != counterValue) {
@@ -111,16 +216,34 @@ public class TotpCountdownTask implements Runnable {
       fireTotpCounterValueChanged();
     }
     fireTotpCountdown(getTimeTillNextCounterValue(now));
+    return now;
+  }
 
-    scheduleNextInvocation();
+  /**
+   * Gets the delay until the task needs to wake up next: when the counter value changes or, if
+   * sooner, when the advance notice is due.
+   *
+   * @param timeTillNextCounterValue time (milliseconds) till the counter assumes its next value.
+   * @param advanceNoticeMillis time (milliseconds) before the change to notify at, or {@code 0}.
+   */
+  @VisibleForTesting
+  static long getTimeTillNextWakeup(long timeTillNextCounterValue, long advanceNoticeMillis) {
+    if ((advanceNoticeMillis > 0) && (timeTillNextCounterValue > advanceNoticeMillis)) {
+      return timeTillNextCounterValue - advanceNoticeMillis;
+    }
+    return timeTillNextCounterValue;
   }
 
-  private void scheduleNextInvocation() {
-    long now = mClock.nowMillis();
-    long counterValueAge = getCounterValueAge(now);
-    long timeTillNextInvocation =
-        mRemainingTimeNotificationPeriod - (counterValueAge % mRemainingTimeNotificationPeriod);
-    mHandler.postDelayed(this, timeTillNextInvocation);
+  /**
+   * Gets the delay until the next periodic notification, aligned to the start of the counter value
+   * so that all notifications of a countdown show the same phases.
+   *
+   * @param counterValueAge age (milliseconds) of the counter value.
+   * @param period interval (milliseconds) between notifications.
+   */
+  @VisibleForTesting
+  static long getTimeTillNextNotification(long counterValueAge, long period) {
+    return period - (counterValueAge % period);
   }
 
   private void fireTotpCountdown(long timeRemaining) {
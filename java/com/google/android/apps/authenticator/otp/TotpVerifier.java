@@ -0,0 +1,197 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.otp;
+
+import com.google.android.apps.authenticator.otp.AccountDb.AccountIndex;
+import com.google.android.apps.authenticator.otp.PasscodeGenerator.Signer;
+import com.google.android.apps.authenticator.util.Utilities;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifier of TOTP codes which tolerates a configurable clock skew and rejects replayed codes.
+ *
+ * <p>A code is accepted if it matches the code of the account for any value of the TOTP counter
+ * from {@code pastIntervals} before to {@code futureIntervals} after the value at the time of
+ * verification. Candidates are compared as integers, so no strings are generated.
+ *
+ * <p>A code accepted once for an account is rejected as a replay if presented again for the same
+ * counter value. Used codes are kept in buckets keyed by counter value, and a bucket is evicted once
+ * its counter value drops out of the window, as codes for it can no longer be accepted. Codes for
+ * counter values below the latest eviction are rejected as replays, even when verified for an
+ * earlier time, as the record of their use is gone.
+ *
+ * <p>Thread-safety: Instances of this class are thread-safe, provided that the {@link Signer}
+ * instances passed to {@link #verify} are safe to use concurrently (e.g., those from
+ * {@link SignerCache}). A code presented concurrently by several threads is accepted by exactly
+ * one of them.
+ */
+public class TotpVerifier {
+
+  /** Result of the verification of a code. */
+  public enum Result {
+    /** The code is valid and has not been used before. */
+    VALID,
+    /** The code does not match any time window checked. */
+    INVALID,
+    /** The code is valid but has already been used. */
+    REPLAYED,
+  }
+
+  private final TotpCounter mCounter;
+  private final int mPastIntervals;
+  private final int mFutureIntervals;
+  private final int mCodeLength;
+
+  /** Accounts that used a code, keyed by the counter value the code was accepted for. */
+  private final ConcurrentNavigableMap<Long, Set<AccountIndex>> mUsedCodes =
+      new ConcurrentSkipListMap<>();
+
+  /** Counter value below which used codes have been evicted. Never decreases. */
+  private final AtomicLong mEvictedBefore = new AtomicLong(Long.MIN_VALUE);
+
+  /**
+   * @param counter counter deriving the time windows from the time
+   * @param pastIntervals number of time windows before the current one to check
+   * @param futureIntervals number of time windows after the current one to check
+   * @param codeLength length of the codes in digits
+   */
+  public TotpVerifier(TotpCounter counter, int pastIntervals, int futureIntervals, int codeLength) {
+    Preconditions.checkArgument(pastIntervals >= 0, "pastIntervals must not be negative");
+    Preconditions.checkArgument(futureIntervals >= 0, "futureIntervals must not be negative");
+    Preconditions.checkArgument(
+        (codeLength > 0) && (codeLength <= PasscodeGenerator.MAX_PASSCODE_LENGTH),
+        "Invalid code length: %s", codeLength);
+    mCounter = Preconditions.checkNotNull(counter);
+    mPastIntervals = pastIntervals;
+    mFutureIntervals = futureIntervals;
+    mCodeLength = codeLength;
+  }
+
+  /**
+   * Verifies a code of an account, recording it as used if it is valid.
+   *
+   * @param account account the code is presented for, used to tell replays apart
+   * @param signer signer of the account
+   * @param code the code to verify
+   * @param timeMillis time of the verification (milliseconds since epoch)
+   * @return the result of the verification
+   */
+  public Result verify(AccountIndex account, Signer signer, String code, long timeMillis)
+      throws GeneralSecurityException {
+    Preconditions.checkNotNull(account);
+    Preconditions.checkNotNull(signer);
+
+    int codeValue = parseCode(code);
+    if (codeValue < 0) {
+      return Result.INVALID;
+    }
+
+    long currentValue = mCounter.getValueAtTime(Utilities.millisToSeconds(timeMillis));
+    evictUsedCodesBefore(currentValue - mPastIntervals);
+
+    // Check the current window first, then alternate outwards as that's where codes usually are
+    PasscodeGenerator generator = new PasscodeGenerator(signer, mCodeLength);
+    int maxDistance = Math.max(mPastIntervals, mFutureIntervals);
+    for (int distance = 0; distance <= maxDistance; distance++) {
+      if ((distance <= mPastIntervals)
+          && (generator.generateResponseCodeValue(currentValue - distance) == codeValue)) {
+        return markUsed(account, currentValue - distance);
+      }
+      if ((distance > 0)
+          && (distance <= mFutureIntervals)
+          && (generator.generateResponseCodeValue(currentValue + distance) == codeValue)) {
+        return markUsed(account, currentValue + distance);
+      }
+    }
+    return Result.INVALID;
+  }
+
+  /**
+   * Gets the number of counter values for which used codes are currently remembered.
+   */
+  @VisibleForTesting
+  int getUsedCodeBucketCount() {
+    return mUsedCodes.size();
+  }
+
+  private Result markUsed(AccountIndex account, long counterValue) {
+    if (counterValue < mEvictedBefore.get()) {
+      // Whether the code was used has been forgotten
+      return Result.REPLAYED;
+    }
+    Set<AccountIndex> accounts = mUsedCodes.get(counterValue);
+    if (accounts == null) {
+      Set<AccountIndex> newAccounts =
+          Collections.newSetFromMap(new ConcurrentHashMap<AccountIndex, Boolean>());
+      accounts = mUsedCodes.putIfAbsent(counterValue, newAccounts);
+      if (accounts == null) {
+        accounts = newAccounts;
+      }
+    }
+    if (!accounts.add(account)) {
+      return Result.REPLAYED;
+    }
+    // The bucket may have been evicted concurrently, in which case a later use of the code would
+    // not be detected
+    return (counterValue < mEvictedBefore.get()) ? Result.REPLAYED : Result.VALID;
+  }
+
+  private void evictUsedCodesBefore(long counterValue) {
+    long evictedBefore = mEvictedBefore.get();
+    while (evictedBefore < counterValue) {
+      if (mEvictedBefore.compareAndSet(evictedBefore, counterValue)) {
+        evictedBefore = counterValue;
+        break;
+      }
+      evictedBefore = mEvictedBefore.get();
+    }
+
+    Map.Entry<Long, Set<AccountIndex>> oldest = mUsedCodes.firstEntry();
+    if ((oldest != null) && (oldest.getKey() < evictedBefore)) {
+      mUsedCodes.headMap(evictedBefore).clear();
+    }
+  }
+
+  /**
+   * Parses the code into its numeric value.
+   *
+   * @return the value or {@code -1} if the code is not a string of {@code mCodeLength} digits.
+   */
+  private int parseCode(String code) {
+    if ((code == null) || (code.length() != mCodeLength)) {
+      return -1;
+    }
+    int value = 0;
+    for (int i = 0; i < mCodeLength; i++) {
+      char c = code.charAt(i);
+      if ((c < '0') || (c > '9')) {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+}
@@ -18,6 +18,7 @@ package com.google.android.apps.authenticator.testability;
 
 import android.content.Context;
 import com.google.android.apps.authenticator.otp.AccountDb;
+import com.google.android.apps.authenticator.otp.AsyncAccountDb;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 
@@ -59,6 +60,14 @@ public final class DependencyInjector {
     return getModule().getAccountDb();
   }
 
+  /**
+   * Gets the {@link AsyncAccountDb} through which activities access the {@link AccountDb} without
+   * blocking the UI thread.
+   */
+  public static AsyncAccountDb getAsyncAccountDb() {
+    return getModule().getAsyncAccountDb();
+  }
+
   /**
    * Sets the {@link StartActivityListener} instance returned by this injector.
    */
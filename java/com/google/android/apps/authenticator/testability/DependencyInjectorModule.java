@@ -20,6 +20,7 @@ import android.content.Context;
 import com.google.android.apps.authenticator.AuthenticatorActivity;
 import com.google.android.apps.authenticator.AuthenticatorApplication;
 import com.google.android.apps.authenticator.otp.AccountDb;
+import com.google.android.apps.authenticator.otp.AsyncAccountDb;
 import com.google.common.base.Preconditions;
 
 /**
@@ -35,6 +36,7 @@ public class DependencyInjectorModule {
   private Context mContext;
 
   private AccountDb mAccountDb;
+  private AsyncAccountDb mAsyncAccountDb;
   private StartActivityListener mStartActivityListener;
   private StartServiceListener mStartServiceListener;
 
@@ -57,6 +59,18 @@ public class DependencyInjectorModule {
     return new AccountDb(getContext());
   }
 
+  public synchronized AsyncAccountDb getAsyncAccountDb() {
+    if (mAsyncAccountDb == null) {
+      mAsyncAccountDb = createAsyncAccountDb();
+    }
+    return mAsyncAccountDb;
+  }
+
+  protected AsyncAccountDb createAsyncAccountDb() {
+    // The database is opened lazily, on the worker thread
+    return new AsyncAccountDb(this::getAccountDb);
+  }
+
   /**
    * Sets the {@link StartActivityListener} instance returned by this injector.
    */
@@ -91,14 +105,27 @@ public class DependencyInjectorModule {
    * Closes any resources and objects held by this module. The module cannot be used after this
    * operation.
    */
-  public synchronized void close() {
-    if (mAccountDb != null) {
-      mAccountDb.close();
+  public void close() {
+    AsyncAccountDb asyncAccountDb;
+    synchronized (this) {
+      asyncAccountDb = mAsyncAccountDb;
+      mAsyncAccountDb = null;
+    }
+    // Let the pending operations finish before closing the database they use. This must not hold
+    // the lock, as the operations obtain the database from this module.
+    if (asyncAccountDb != null) {
+      asyncAccountDb.shutdown();
     }
 
-    mContext = null;
-    mAccountDb = null;
-    mStartActivityListener = null;
-    mStartServiceListener = null;
+    synchronized (this) {
+      if (mAccountDb != null) {
+        mAccountDb.close();
+      }
+
+      mContext = null;
+      mAccountDb = null;
+      mStartActivityListener = null;
+      mStartServiceListener = null;
+    }
   }
 }
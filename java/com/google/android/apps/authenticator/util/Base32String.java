@@ -16,10 +16,10 @@
 
 package com.google.android.apps.authenticator.util;
 
-import com.google.common.collect.Maps;
-
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Locale;
-import java.util.Map;
 
 /**
  * Encodes arbitrary byte arrays as case-insensitive base-32 strings.
@@ -29,51 +29,163 @@ import java.util.Map;
  * that multiple strings decode to the same byte array, for example, string of sixteen 7s ("7...7")
  * and seventeen 7s both decode to the same byte array.
  *
+ * <p>During decoding, leading and trailing whitespace, separators ({@code -}) and spaces anywhere,
+ * as well as trailing padding ({@code =}) are ignored.
+ *
  * <p>TODO: Revisit this encoding and whether this ambiguity needs fixing.
  */
 public class Base32String {
-  private static final String SEPARATOR = "-";
+  private static final char SEPARATOR = '-';
+  private static final char PADDING = '=';
   private static final char[] DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567".toCharArray();
   private static final int MASK = DIGITS.length - 1;
   private static final int SHIFT = Integer.numberOfTrailingZeros(DIGITS.length);
-  private static final Map<Character, Integer> CHAR_MAP =
-      Maps.newHashMapWithExpectedSize(DIGITS.length);
+
+  /** Values of the ASCII characters, or one of the negative markers below. */
+  private static final byte[] DECODE_TABLE = new byte[128];
+  private static final byte ILLEGAL = -1;
+  private static final byte IGNORED = -2;
 
   static {
+    Arrays.fill(DECODE_TABLE, ILLEGAL);
     for (int i = 0; i < DIGITS.length; i++) {
-      CHAR_MAP.put(DIGITS[i], i);
+      DECODE_TABLE[DIGITS[i]] = (byte) i;
+      DECODE_TABLE[Character.toLowerCase(DIGITS[i])] = (byte) i;
     }
+    DECODE_TABLE[SEPARATOR] = IGNORED;
+    DECODE_TABLE[' '] = IGNORED;
   }
 
-  public static byte[] decode(String encoded) throws DecodingException {
-    // Remove whitespace and separators
-    encoded = encoded.trim().replaceAll(SEPARATOR, "").replaceAll(" ", "");
+  public static byte[] decode(CharSequence encoded) throws DecodingException {
+    encoded = canonicalize(encoded);
+    byte[] result = new byte[decode(encoded, null, 0, 0)];
+    decode(encoded, result, 0, result.length);
+    return result;
+  }
 
-    // Remove padding. Note: the padding is used as hint to determine how many
-    // bits to decode from the last incomplete chunk (which is commented out
-    // below, so this may have been wrong to start with).
-    encoded = encoded.replaceFirst("[=]*$", "");
+  /**
+   * Decodes into the provided array, without allocating.
+   *
+   * @param encoded the base-32 string
+   * @param output array to write the decoded bytes to
+   * @param offset index in {@code output} of the first decoded byte
+   * @return the number of bytes written
+   * @throws DecodingException if {@code encoded} contains an illegal character
+   * @throws IndexOutOfBoundsException if {@code output} is too small, in which case its contents
+   *     after {@code offset} are undefined
+   */
+  public static int decode(CharSequence encoded, byte[] output, int offset)
+      throws DecodingException {
+    if ((offset < 0) || (offset > output.length)) {
+      throw new IndexOutOfBoundsException("Offset: " + offset + ", length: " + output.length);
+    }
+    return decode(canonicalize(encoded), output, offset, output.length);
+  }
 
-    // Canonicalize to all upper case
-    encoded = encoded.toUpperCase(Locale.US);
-    if (encoded.length() == 0) {
-      return new byte[0];
+  /**
+   * Decodes into the provided buffer, starting at its current position, which is advanced past
+   * the decoded bytes.
+   *
+   * @return the number of bytes written
+   * @throws DecodingException if {@code encoded} contains an illegal character
+   * @throws BufferOverflowException if the buffer does not have enough space remaining, in which
+   *     case its position is left unchanged
+   */
+  public static int decode(CharSequence encoded, ByteBuffer output) throws DecodingException {
+    if (!output.hasArray()) {
+      byte[] decoded = decode(encoded);
+      output.put(decoded);
+      return decoded.length;
     }
-    int encodedLength = encoded.length();
-    int outLength = encodedLength * SHIFT / 8;
-    byte[] result = new byte[outLength];
+    int start = output.arrayOffset() + output.position();
+    int limit = output.arrayOffset() + output.limit();
+    int decodedLength;
+    try {
+      decodedLength = decode(canonicalize(encoded), output.array(), start, limit);
+    } catch (IndexOutOfBoundsException e) {
+      throw new BufferOverflowException();
+    }
+    output.position(output.position() + decodedLength);
+    return decodedLength;
+  }
+
+  /**
+   * Gets the number of bytes {@code encoded} decodes to, without allocating.
+   *
+   * @throws DecodingException if {@code encoded} contains an illegal character
+   */
+  public static int getDecodedLength(CharSequence encoded) throws DecodingException {
+    return decode(canonicalize(encoded), null, 0, 0);
+  }
+
+  /**
+   * Upper-cases strings containing non-ASCII characters, some of which (e.g., dotless i) upper-case
+   * to ASCII letters. ASCII strings are returned as is, as the decode table covers lower case.
+   */
+  private static CharSequence canonicalize(CharSequence encoded) {
+    for (int i = 0; i < encoded.length(); i++) {
+      if (encoded.charAt(i) >= DECODE_TABLE.length) {
+        return encoded.toString().toUpperCase(Locale.US);
+      }
+    }
+    return encoded;
+  }
+
+  /**
+   * Decodes a canonicalized string in a single pass.
+   *
+   * @param output array to write the decoded bytes to, or {@code null} to only validate the string
+   *     and count the bytes
+   * @param offset index in {@code output} of the first decoded byte
+   * @param limit index in {@code output} past which no byte may be written
+   * @return the number of decoded bytes
+   */
+  private static int decode(CharSequence encoded, byte[] output, int offset, int limit)
+      throws DecodingException {
+    // Skip leading and trailing whitespace (as String.trim does)
+    int start = 0;
+    int end = encoded.length();
+    while ((start < end) && (encoded.charAt(start) <= ' ')) {
+      start++;
+    }
+    while ((end > start) && (encoded.charAt(end - 1) <= ' ')) {
+      end--;
+    }
+
+    // Skip padding, and any separators or spaces mixed in with it. Note: the padding is used as
+    // hint to determine how many bits to decode from the last incomplete chunk (which is commented
+    // out below, so this may have been wrong to start with).
+    while (end > start) {
+      char c = encoded.charAt(end - 1);
+      if ((c != PADDING) && (c != SEPARATOR) && (c != ' ')) {
+        break;
+      }
+      end--;
+    }
+
     int buffer = 0;
-    int next = 0;
+    int next = offset;
     int bitsLeft = 0;
-    for (char c : encoded.toCharArray()) {
-      if (!CHAR_MAP.containsKey(c)) {
+    for (int i = start; i < end; i++) {
+      char c = encoded.charAt(i);
+      int value = (c < DECODE_TABLE.length) ? DECODE_TABLE[c] : ILLEGAL;
+      if (value == IGNORED) {
+        continue;
+      }
+      if (value == ILLEGAL) {
         throw new DecodingException("Illegal character: " + c);
       }
       buffer <<= SHIFT;
-      buffer |= CHAR_MAP.get(c) & MASK;
+      buffer |= value & MASK;
       bitsLeft += SHIFT;
       if (bitsLeft >= 8) {
-        result[next++] = (byte) (buffer >> (bitsLeft - 8));
+        if (output != null) {
+          if (next >= limit) {
+            throw new IndexOutOfBoundsException("Output too small: " + (limit - offset));
+          }
+          output[next] = (byte) (buffer >> (bitsLeft - 8));
+        }
+        next++;
         bitsLeft -= 8;
       }
     }
@@ -82,7 +194,7 @@ public class Base32String {
     // if (next != outLength || bitsLeft >= SHIFT) {
     //  throw new DecodingException("Bits left: " + bitsLeft);
     // }
-    return result;
+    return next - offset;
   }
 
   public static String encode(byte[] data) {
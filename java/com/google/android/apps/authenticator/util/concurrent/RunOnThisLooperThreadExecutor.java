@@ -17,15 +17,29 @@
 package com.google.android.apps.authenticator.util.concurrent;
 
 import android.os.Handler;
+import android.os.Looper;
 import java.util.concurrent.Executor;
 
 /**
- * {@link Executor} that invokes {@link Runnable} instances on the thread on which it was created.
- * The assumption is that the thread has a {@link android.os.Looper} associated with it.
+ * {@link Executor} that invokes {@link Runnable} instances on the thread on which it was created
+ * (or the thread of the {@link Looper} it was created with). The assumption is that the thread has
+ * a {@link Looper} associated with it.
  */
 public class RunOnThisLooperThreadExecutor implements Executor {
 
-  private final Handler handler = new Handler();
+  private final Handler handler;
+
+  public RunOnThisLooperThreadExecutor() {
+    handler = new Handler();
+  }
+
+  /**
+   * @param looper looper of the thread on which to invoke {@link Runnable} instances, e.g.,
+   *     {@link Looper#getMainLooper()} when created on a thread without a looper.
+   */
+  public RunOnThisLooperThreadExecutor(Looper looper) {
+    handler = new Handler(looper);
+  }
 
   @Override
   public void execute(Runnable command) {
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator;
+
+import static androidx.test.espresso.Espresso.onView;
+import static androidx.test.espresso.action.ViewActions.click;
+import static androidx.test.espresso.matcher.ViewMatchers.withText;
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.StrictMode;
+import android.view.View;
+import android.widget.ListView;
+import android.widget.TextView;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.rule.ActivityTestRule;
+import com.google.android.apps.authenticator.barcode.BarcodeConditionChecker;
+import com.google.android.apps.authenticator.otp.AccountDb;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountIndex;
+import com.google.android.apps.authenticator.otp.AccountDb.OtpType;
+import com.google.android.apps.authenticator.otp.AsyncAccountDb;
+import com.google.android.apps.authenticator.otp.CheckCodeActivity;
+import com.google.android.apps.authenticator.otp.OtpProvider;
+import com.google.android.apps.authenticator.otp.OtpSource;
+import com.google.android.apps.authenticator.otp.TotpClock;
+import com.google.android.apps.authenticator.testability.DaggerInjector;
+import com.google.android.apps.authenticator.testability.DependencyInjector;
+import com.google.android.apps.authenticator.testability.DependencyInjectorModule;
+import com.google.android.apps.authenticator.testability.DependencyInjectorModuleForIntegrationTesting;
+import com.google.android.apps.authenticator.testing.TestUtilities;
+import com.google.android.apps.authenticator.util.Utilities;
+import com.google.android.apps.authenticator2.R;
+import dagger.Module;
+import dagger.Provides;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Singleton;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+
+/**
+ * Checks that the main flows of {@link AuthenticatorActivity} and {@link CheckCodeActivity} do not
+ * access the disk on the main thread, now that the {@link AccountDb} is accessed through the
+ * {@link AsyncAccountDb}.
+ *
+ * <p>Unlike the other tests, these tests use an {@link AsyncAccountDb} which runs the operations on
+ * its background thread. The database of the app is only opened once the activities are launched,
+ * so that opening it, and creating its schema, happen under the StrictMode policy too. A violation
+ * of the policy kills the process, failing the run.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AuthenticatorActivityStrictModeTest {
+
+  private static final String SECRET = "7777777777777777"; // 16 sevens
+
+  /** Number of times to wait for the database operations, as callbacks submit more of them. */
+  private static final int MAX_CHAINED_OPERATIONS = 3;
+
+  private Context context;
+  private StrictMode.ThreadPolicy originalThreadPolicy;
+  @Mock private TotpClock mockTotpClock;
+
+  @Rule public ActivityTestRule<AuthenticatorActivity> activityTestRule =
+      new ActivityTestRule<>(
+          AuthenticatorActivity.class, /* initialTouchMode= */ true, /* launchActivity= */ false);
+
+  @Rule public ActivityTestRule<CheckCodeActivity> checkCodeActivityTestRule =
+      new ActivityTestRule<>(
+          CheckCodeActivity.class, /* initialTouchMode= */ false, /* launchActivity= */ false);
+
+  @Before
+  public void setUp() throws Exception {
+    context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    DependencyInjectorModule module =
+        new DependencyInjectorModuleForIntegrationTesting() {
+          @Override
+          protected AccountDb createAccountDb() {
+            // Not deleted here, as the tests add accounts before the app opens the database
+            return new AccountDb(getContext());
+          }
+
+          @Override
+          protected AsyncAccountDb createAsyncAccountDb() {
+            return new AsyncAccountDb(this::getAccountDb);
+          }
+        };
+    module.initialize(context);
+    DependencyInjector.configure(module);
+    AccountDb.deleteDatabase(context);
+
+    initMocks(this);
+    when(mockTotpClock.nowMillis()).thenReturn(1000L);
+    DaggerInjector.init(new MockModule());
+
+    InstrumentationRegistry.getInstrumentation()
+        .runOnMainSync(
+            () -> {
+              originalThreadPolicy = StrictMode.getThreadPolicy();
+              StrictMode.setThreadPolicy(
+                  new StrictMode.ThreadPolicy.Builder()
+                      .detectDiskReads()
+                      .detectDiskWrites()
+                      .penaltyLog()
+                      .penaltyDeath()
+                      .build());
+            });
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    InstrumentationRegistry.getInstrumentation()
+        .runOnMainSync(() -> StrictMode.setThreadPolicy(originalThreadPolicy));
+
+    // Stop the activities to avoid them using the DependencyInjector after it's been closed.
+    TestUtilities.invokeFinishActivityOnUiThread(activityTestRule.getActivity());
+    TestUtilities.invokeFinishActivityOnUiThread(checkCodeActivityTestRule.getActivity());
+
+    DependencyInjector.close();
+  }
+
+  @Test
+  public void testDisplayAccounts() throws Exception {
+    addAccount("johndoe@gmail.com", OtpType.TOTP, null);
+    addAccount("maryweiss@yahoo.com", OtpType.HOTP, "Yahoo");
+
+    activityTestRule.launchActivity(null);
+    waitForAccountDbOperations();
+
+    ListView userList = activityTestRule.getActivity().findViewById(R.id.user_list);
+    assertThat(userList.getChildCount()).isEqualTo(2);
+    assertThat(activityTestRule.getActivity().users[0].getIndex())
+        .isEqualTo(new AccountIndex("johndoe@gmail.com", null));
+    assertThat(activityTestRule.getActivity().users[1].getIndex())
+        .isEqualTo(new AccountIndex("maryweiss@yahoo.com", "Yahoo"));
+  }
+
+  @Test
+  public void testAddAccountViaReceivedIntent() throws Exception {
+    activityTestRule.launchActivity(
+        new Intent(Intent.ACTION_VIEW)
+            .setData(Uri.parse("otpauth://totp/johndoe@gmail.com?secret=" + SECRET)));
+    waitForAccountDbOperations();
+
+    // The Activity is supposed to display a dialog prompting the user whether to add the account.
+    onView(withText(R.string.ok)).perform(click());
+    waitForAccountDbOperations();
+
+    AccountIndex index = new AccountIndex("johndoe@gmail.com", null);
+    assertThat(DependencyInjector.getAccountDb().getAccounts()).containsExactly(index);
+    assertThat(activityTestRule.getActivity().users).hasLength(1);
+    assertThat(activityTestRule.getActivity().users[0].getIndex()).isEqualTo(index);
+  }
+
+  @Test
+  public void testNextHotpCode() throws Exception {
+    AccountIndex index = new AccountIndex("johndoe@gmail.com", null);
+    addAccount(index.getName(), OtpType.HOTP, null);
+
+    activityTestRule.launchActivity(null);
+    waitForAccountDbOperations();
+
+    ListView userList = activityTestRule.getActivity().findViewById(R.id.user_list);
+    View buttonView = userList.getChildAt(0).findViewById(R.id.next_otp);
+    // The second tap arrives while the first code is being computed and must not generate a code
+    InstrumentationRegistry.getInstrumentation()
+        .runOnMainSync(
+            () -> {
+              buttonView.performClick();
+              buttonView.performClick();
+            });
+    waitForAccountDbOperations();
+
+    assertThat(activityTestRule.getActivity().users[0].getPin()).isEqualTo("683298");
+    TextView pinView = userList.getChildAt(0).findViewById(R.id.pin_value);
+    assertThat(pinView.getText().toString()).isEqualTo(Utilities.getStyledPincode("683298"));
+    assertThat(DependencyInjector.getAccountDb().getCounter(index)).isEqualTo(Integer.valueOf(1));
+  }
+
+  @Test
+  public void testCheckCode() throws Exception {
+    addAccount("johndoe@gmail.com", OtpType.TOTP, null);
+
+    CheckCodeActivity activity =
+        checkCodeActivityTestRule.launchActivity(
+            new Intent(Intent.ACTION_MAIN)
+                .putExtra("index", new AccountIndex("johndoe@gmail.com", null)));
+    waitForAccountDbOperations();
+
+    TextView codeTextView = activity.findViewById(R.id.code_value);
+    assertThat(codeTextView.getText().toString()).isEqualTo(Utilities.getStyledPincode("724477"));
+  }
+
+  /**
+   * Adds an account through an instance of its own, leaving the database of the app unopened until
+   * the activities are launched.
+   */
+  private void addAccount(String name, OtpType type, String issuer) {
+    AccountDb accountDb = new AccountDb(context);
+    try {
+      accountDb.add(name, SECRET, type, null, null, issuer);
+    } finally {
+      accountDb.close();
+    }
+  }
+
+  /**
+   * Waits for the {@link AsyncAccountDb} operations submitted so far, and those submitted by their
+   * callbacks, to complete and deliver their results.
+   */
+  private static void waitForAccountDbOperations() throws InterruptedException {
+    for (int i = 0; i < MAX_CHAINED_OPERATIONS; i++) {
+      // Operations are serialized, so this one completes after those submitted before it
+      CountDownLatch done = new CountDownLatch(1);
+      DependencyInjector.getAsyncAccountDb().submit(db -> null, result -> done.countDown());
+      assertThat(done.await(TestUtilities.UI_ACTION_EFFECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+          .isTrue();
+      InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+    }
+  }
+
+  /** Dagger module for unit tests */
+  @Module(
+      library = true,
+      injects = {
+        AuthenticatorActivity.class,
+      })
+  public class MockModule {
+    @Provides
+    OtpSource providesOtpSource() {
+      // Like the app's, only opens the database when it first needs it
+      return new OtpProvider(DependencyInjector::getAccountDb, mockTotpClock);
+    }
+
+    @Provides
+    @Singleton
+    public BarcodeConditionChecker provideGoogleApiAvailabilityHelper() {
+      return new BarcodeConditionChecker();
+    }
+  }
+}
@@ -1163,6 +1163,12 @@ public class AuthenticatorActivityTest {
     assertThat(firstPinInfo.getIndex().getName()).isEqualTo("second");
     assertThat(secondPinInfo.getIndex().getName()).isEqualTo("third");
     assertThat(thirdPinInfo.getIndex().getName()).isEqualTo("first");
+
+    // The new order is persisted
+    assertThat(accountDb.getAccounts())
+        .containsExactly(
+            firstPinInfo.getIndex(), secondPinInfo.getIndex(), thirdPinInfo.getIndex())
+        .inOrder();
   }
 
   @Test
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link CountdownPhase}. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CountdownPhaseTest {
+
+  @Test
+  public void testSetPhase() {
+    CountdownPhase phase = new CountdownPhase();
+    assertThat(phase.getPhase()).isEqualTo(1.0);
+    phase.setPhase(0.25);
+    assertThat(phase.getPhase()).isEqualTo(0.25);
+    phase.setPhase(0);
+    assertThat(phase.getPhase()).isEqualTo(0.0);
+  }
+
+  @Test
+  public void testSetPhaseOutOfRange() {
+    CountdownPhase phase = new CountdownPhase();
+    try {
+      phase.setPhase(1.5);
+      fail("IllegalArgumentException should have been thrown");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+    try {
+      phase.setPhase(-0.5);
+      fail("IllegalArgumentException should have been thrown");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+    assertThat(phase.getPhase()).isEqualTo(1.0);
+  }
+
+  @Test
+  public void testDetachedIndicatorsAreNotShown() {
+    CountdownPhase phase = new CountdownPhase();
+    CountdownIndicator indicator =
+        new CountdownIndicator(InstrumentationRegistry.getInstrumentation().getTargetContext());
+    indicator.setPhaseSource(phase);
+    // The indicator only registers with the phase once attached to a window
+    assertThat(phase.isAnyIndicatorShown()).isFalse();
+    phase.setPhase(0.5);
+    indicator.setPhase(0.75);
+    assertThat(phase.getPhase()).isEqualTo(0.5);
+  }
+}
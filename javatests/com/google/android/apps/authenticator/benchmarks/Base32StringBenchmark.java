@@ -0,0 +1,75 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.benchmarks;
+
+import com.google.android.apps.authenticator.util.Base32String;
+import com.google.android.apps.authenticator.util.Base32String.DecodingException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures encoding and decoding secrets with {@link Base32String}. */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Base32StringBenchmark {
+
+  /** Length (bytes) of the secret: 10 is what most issuers use, 20 and 64 are less common. */
+  @Param({"10", "20", "64"})
+  public int secretLength;
+
+  private byte[] secret;
+  private String encodedSecret;
+  private byte[] decodeBuffer;
+
+  @Setup
+  public void setUp() {
+    secret = new byte[secretLength];
+    new Random(0).nextBytes(secret);
+    encodedSecret = Base32String.encode(secret);
+    decodeBuffer = new byte[secretLength];
+  }
+
+  @Benchmark
+  public byte[] decode() throws DecodingException {
+    return Base32String.decode(encodedSecret);
+  }
+
+  @Benchmark
+  public byte[] decodeIntoBuffer() throws DecodingException {
+    Base32String.decode(encodedSecret, decodeBuffer, 0);
+    return decodeBuffer;
+  }
+
+  @Benchmark
+  public String encode() {
+    return Base32String.encode(secret);
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.benchmarks;
+
+import com.google.android.apps.authenticator.util.CryptoUtils;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures {@link CryptoUtils#generateMac}, which initializes a new {@link javax.crypto.Mac}. */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoUtilsBenchmark {
+
+  private SecretKey key;
+  private byte[] data;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(0);
+    byte[] keyBytes = new byte[32];
+    random.nextBytes(keyBytes);
+    key = new SecretKeySpec(keyBytes, CryptoUtils.HMAC_SHA_256);
+    data = new byte[64];
+    random.nextBytes(data);
+  }
+
+  @Benchmark
+  public byte[] generateMac() {
+    return CryptoUtils.generateMac(CryptoUtils.HMAC_SHA_256, key, data);
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.benchmarks;
+
+import com.google.android.apps.authenticator.otp.HmacSha1Signer;
+import com.google.android.apps.authenticator.otp.PasscodeGenerator;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares signing the 8-byte HOTP/TOTP state with the JCA {@link Mac} against
+ * {@link HmacSha1Signer}, both directly and as part of generating a code.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HmacSha1SignerBenchmark {
+
+  private final byte[] state = new byte[8];
+  private final byte[] signature = new byte[HmacSha1Signer.SIGNATURE_LENGTH];
+  private Mac mac;
+  private HmacSha1Signer signer;
+  private PasscodeGenerator macGenerator;
+  private PasscodeGenerator signerGenerator;
+  private long counterValue;
+
+  @Setup
+  public void setUp() throws GeneralSecurityException {
+    byte[] key = new byte[10];
+    new Random(0).nextBytes(key);
+    mac = Mac.getInstance("HMACSHA1");
+    mac.init(new SecretKeySpec(key, ""));
+    signer = new HmacSha1Signer(key);
+
+    Mac generatorMac = Mac.getInstance("HMACSHA1");
+    generatorMac.init(new SecretKeySpec(key, ""));
+    macGenerator = new PasscodeGenerator(generatorMac, 6);
+    signerGenerator = new PasscodeGenerator(new HmacSha1Signer(key), 6);
+  }
+
+  @Benchmark
+  public byte[] signWithMac() throws GeneralSecurityException {
+    mac.update(state);
+    mac.doFinal(signature, 0);
+    return signature;
+  }
+
+  @Benchmark
+  public byte[] signWithHmacSha1Signer() throws GeneralSecurityException {
+    signer.sign(state, signature);
+    return signature;
+  }
+
+  @Benchmark
+  public int generateCodeWithMac() throws GeneralSecurityException {
+    return macGenerator.generateResponseCodeValue(counterValue++);
+  }
+
+  @Benchmark
+  public int generateCodeWithHmacSha1Signer() throws GeneralSecurityException {
+    return signerGenerator.generateResponseCodeValue(counterValue++);
+  }
+}
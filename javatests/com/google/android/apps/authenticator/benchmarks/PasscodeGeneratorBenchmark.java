@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.benchmarks;
+
+import com.google.android.apps.authenticator.otp.AccountDb;
+import com.google.android.apps.authenticator.otp.PasscodeGenerator;
+import com.google.android.apps.authenticator.util.Base32String;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures generating and verifying codes with {@link PasscodeGenerator}, and initializing the
+ * signer it uses with {@link AccountDb#getSigningOracle(String)}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PasscodeGeneratorBenchmark {
+
+  private static final int PIN_LENGTH = 6;
+
+  private String secret;
+  private PasscodeGenerator generator;
+  private long counterValue;
+  private String currentCode;
+
+  @Setup
+  public void setUp() throws GeneralSecurityException {
+    byte[] key = new byte[10];
+    new Random(0).nextBytes(key);
+    secret = Base32String.encode(key);
+    generator = new PasscodeGenerator(AccountDb.getSigningOracle(secret), PIN_LENGTH);
+    counterValue = System.currentTimeMillis() / 1000 / 30;
+    currentCode = generator.generateResponseCode(counterValue);
+  }
+
+  @Benchmark
+  public String generateResponseCode() throws GeneralSecurityException {
+    return generator.generateResponseCode(counterValue);
+  }
+
+  /** Verifies the code of the current interval, which is the first one checked. */
+  @Benchmark
+  public boolean verifyTimeoutCode_current() throws GeneralSecurityException {
+    return generator.verifyTimeoutCode(counterValue, currentCode);
+  }
+
+  /** Verifies an invalid code, which requires checking all adjacent intervals. */
+  @Benchmark
+  public boolean verifyTimeoutCode_invalid() throws GeneralSecurityException {
+    return generator.verifyTimeoutCode(counterValue + 10, currentCode);
+  }
+
+  @Benchmark
+  public PasscodeGenerator.Signer getSigningOracle() {
+    return AccountDb.getSigningOracle(secret);
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.benchmarks;
+
+import com.google.android.apps.authenticator.otp.AccountDb;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountIndex;
+import com.google.android.apps.authenticator.otp.PasscodeGenerator;
+import com.google.android.apps.authenticator.otp.SignerCache;
+import com.google.android.apps.authenticator.util.Base32String;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the cost of computing the TOTP codes of all accounts at an interval rollover, with a
+ * {@link com.google.android.apps.authenticator.otp.PasscodeGenerator.Signer} initialized per code
+ * (as {@code OtpProvider} used to do) versus one reused from a {@link SignerCache}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SignerCacheBenchmark {
+
+  private static final int PIN_LENGTH = 6;
+
+  @Param({"150"})
+  public int accountCount;
+
+  private AccountIndex[] accounts;
+  private String[] secrets;
+  private SignerCache signerCache;
+  private long otpState;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(0);
+    accounts = new AccountIndex[accountCount];
+    secrets = new String[accountCount];
+    for (int i = 0; i < accountCount; i++) {
+      byte[] key = new byte[10];
+      random.nextBytes(key);
+      accounts[i] = new AccountIndex("user" + i + "@example.com", "Issuer" + i);
+      secrets[i] = Base32String.encode(key);
+    }
+
+    signerCache = new SignerCache();
+    for (int i = 0; i < accountCount; i++) {
+      signerCache.getSigner(accounts[i], secrets[i]);
+    }
+    otpState = System.currentTimeMillis() / 1000 / 30;
+  }
+
+  @Benchmark
+  public void rolloverWithNewSigners(Blackhole blackhole) throws GeneralSecurityException {
+    for (int i = 0; i < accountCount; i++) {
+      PasscodeGenerator pcg =
+          new PasscodeGenerator(AccountDb.getSigningOracle(secrets[i]), PIN_LENGTH);
+      blackhole.consume(pcg.generateResponseCode(otpState));
+    }
+  }
+
+  @Benchmark
+  public void rolloverWithCachedSigners(Blackhole blackhole) throws GeneralSecurityException {
+    for (int i = 0; i < accountCount; i++) {
+      PasscodeGenerator pcg =
+          new PasscodeGenerator(signerCache.getSigner(accounts[i], secrets[i]), PIN_LENGTH);
+      blackhole.consume(pcg.generateResponseCode(otpState));
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.otp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountIndex;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountRecord;
+import com.google.android.apps.authenticator.otp.AccountDb.OtpType;
+import com.google.android.apps.authenticator.testability.DependencyInjector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures the time taken to import 1000 accounts into {@link AccountDb}, one {@code add} at a
+ * time, each in its own implicit transaction, versus with a single {@code addAll}.
+ *
+ * <p>Results depend on the device, so they are logged. The only assertion is a generous bound on
+ * the time taken by {@code addAll}, which should be well under a second, so that it holds on slow
+ * emulators too while still catching a return to a transaction per account.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AccountDbImportBenchmarkTest {
+
+  private static final String LOCAL_TAG = "AccountDbImportBenchmark";
+
+  private static final int ACCOUNT_COUNT = 1000;
+  private static final int ISSUER_COUNT = 10;
+
+  /** Upper bound (milliseconds) on the time taken to import the accounts with {@code addAll}. */
+  private static final long MAX_ADD_ALL_MILLIS = 5000;
+  private static final String SECRET = "7777777777777777"; // 16 sevens
+
+  private AccountDb accountDb;
+
+  @Before
+  public void setUp() throws Exception {
+    DependencyInjector.resetForIntegrationTesting(
+        InstrumentationRegistry.getInstrumentation().getTargetContext());
+    AccountDb.deleteDatabase(DependencyInjector.getContext());
+    accountDb = new AccountDb(DependencyInjector.getContext());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    accountDb.close();
+    DependencyInjector.close();
+  }
+
+  @Test
+  public void testImportTime() {
+    List<AccountRecord> records = new ArrayList<>();
+    for (int i = 0; i < ACCOUNT_COUNT; i++) {
+      // Every tenth account has no issuer. The second half repeats the accounts of the first,
+      // overwriting those with an issuer and adding the others again with a "(1)" suffix.
+      int n = i % (ACCOUNT_COUNT / 2);
+      String issuer = ((n % 10) == 0) ? null : "Issuer" + (n % ISSUER_COUNT);
+      records.add(new AccountRecord(
+          new AccountIndex("user" + n + "@example.com", issuer), SECRET, OtpType.TOTP, null));
+    }
+
+    long startMillis = SystemClock.elapsedRealtime();
+    for (AccountRecord record : records) {
+      AccountIndex index = record.getIndex();
+      accountDb.add(index.getName(), record.getSecret(), record.getType(), record.getCounter(),
+          null, index.getIssuer());
+    }
+    long addMillis = SystemClock.elapsedRealtime() - startMillis;
+    int accountCount = accountDb.getAccounts().size();
+
+    accountDb.deleteAllData();
+    startMillis = SystemClock.elapsedRealtime();
+    accountDb.addAll(records);
+    long addAllMillis = SystemClock.elapsedRealtime() - startMillis;
+    assertThat(accountDb.getAccounts()).hasSize(accountCount);
+
+    Log.i(LOCAL_TAG, String.format(Locale.US,
+        "Importing %d accounts: %d ms with add, %d ms with addAll",
+        ACCOUNT_COUNT, addMillis, addAllMillis));
+    assertThat(addAllMillis).isLessThan(MAX_ADD_ALL_MILLIS);
+  }
+}
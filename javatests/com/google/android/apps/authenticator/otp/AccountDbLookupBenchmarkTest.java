@@ -0,0 +1,151 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.otp;
+
+import static org.junit.Assert.fail;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountIndex;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountRecord;
+import com.google.android.apps.authenticator.otp.AccountDb.OtpType;
+import com.google.android.apps.authenticator.testability.DependencyInjector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures the throughput of looking up the record of an account in {@link AccountDb} with 10 to
+ * 10,000 accounts. Lookups with the name and issuer bound as arguments, as {@link AccountDb}
+ * does, are compared against lookups with them inlined as escaped literals, as it used to do,
+ * which SQLite has to compile again for every account.
+ *
+ * <p>Results depend on the device, so they are logged rather than asserted. That lookups use an
+ * index is checked by {@link AccountDbTest#testLookupsUseIndexes}.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AccountDbLookupBenchmarkTest {
+
+  private static final String LOCAL_TAG = "AccountDbLookupBenchmark";
+
+  private static final int[] ACCOUNT_COUNTS = {10, 100, 1000, 10000};
+  private static final int ISSUER_COUNT = 10;
+  private static final long WARMUP_MILLIS = 200;
+  private static final long MEASUREMENT_MILLIS = 1000;
+  private static final String SECRET = "7777777777777777"; // 16 sevens
+
+  /** A lookup of an account, returning whether it was found. */
+  private interface Lookup {
+    boolean lookUp(AccountIndex index);
+  }
+
+  private AccountDb accountDb;
+
+  @Before
+  public void setUp() throws Exception {
+    DependencyInjector.resetForIntegrationTesting(
+        InstrumentationRegistry.getInstrumentation().getTargetContext());
+    AccountDb.deleteDatabase(DependencyInjector.getContext());
+    accountDb = new AccountDb(DependencyInjector.getContext());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    accountDb.close();
+    DependencyInjector.close();
+  }
+
+  @Test
+  public void testLookupsPerSecond() {
+    for (int accountCount : ACCOUNT_COUNTS) {
+      AccountIndex[] accounts = addAccounts(accountCount);
+
+      double inlinedRate = measureLookupsPerSecond(accounts, this::lookUpWithInlinedLiterals);
+      double boundRate =
+          measureLookupsPerSecond(accounts, index -> accountDb.getAccountRecord(index) != null);
+      Log.i(LOCAL_TAG, String.format(Locale.US,
+          "%d accounts: %.0f lookups/s with inlined literals, %.0f lookups/s with bound arguments",
+          accountCount, inlinedRate, boundRate));
+    }
+  }
+
+  /** Replaces all the accounts with the specified number of new ones, added in a single batch. */
+  private AccountIndex[] addAccounts(int accountCount) {
+    accountDb.deleteAllData();
+    List<AccountRecord> records = new ArrayList<>(accountCount);
+    for (int i = 0; i < accountCount; i++) {
+      String issuer = "Issuer" + (i % ISSUER_COUNT);
+      records.add(new AccountRecord(
+          new AccountIndex("user" + i + "@example.com", issuer), SECRET, OtpType.HOTP, 0));
+    }
+    return accountDb.addAll(records).toArray(new AccountIndex[0]);
+  }
+
+  /**
+   * Looks up the record of an account the way {@link AccountDb} used to, with the name and issuer
+   * inlined into the SQL as escaped literals. The projection and the reading of the record are
+   * those of {@link AccountDb#getAccountRecord}, so that only the selection differs.
+   */
+  private boolean lookUpWithInlinedLiterals(AccountIndex index) {
+    String whereClause =
+        AccountDb.NAME_COLUMN + " = " + DatabaseUtils.sqlEscapeString(index.getName()) + " AND "
+        + AccountDb.ISSUER_COLUMN + " = " + DatabaseUtils.sqlEscapeString(index.getIssuer());
+    Cursor cursor = accountDb.mDatabase.query(
+        AccountDb.TABLE_NAME, AccountDb.ACCOUNT_PROJECTION, whereClause, null, null, null, null);
+    try {
+      return cursor.moveToFirst() && (AccountDb.readAccountRecord(cursor) != null);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Looks up the accounts round-robin for {@link #MEASUREMENT_MILLIS}, after a warm-up.
+   *
+   * @return the number of lookups per second
+   */
+  private static double measureLookupsPerSecond(AccountIndex[] accounts, Lookup lookup) {
+    runLookups(accounts, lookup, WARMUP_MILLIS);
+    long startMillis = SystemClock.elapsedRealtime();
+    long lookupCount = runLookups(accounts, lookup, MEASUREMENT_MILLIS);
+    long elapsedMillis = SystemClock.elapsedRealtime() - startMillis;
+    return lookupCount * 1000.0 / elapsedMillis;
+  }
+
+  private static long runLookups(AccountIndex[] accounts, Lookup lookup, long durationMillis) {
+    long endMillis = SystemClock.elapsedRealtime() + durationMillis;
+    long lookupCount = 0;
+    while (SystemClock.elapsedRealtime() < endMillis) {
+      AccountIndex index = accounts[(int) (lookupCount % accounts.length)];
+      if (!lookup.lookUp(index)) {
+        fail("Account not found: " + index);
+      }
+      lookupCount++;
+    }
+    return lookupCount;
+  }
+}
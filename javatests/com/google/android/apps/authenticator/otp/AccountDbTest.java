@@ -18,24 +18,48 @@ package com.google.android.apps.authenticator.otp;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import androidx.test.filters.SmallTest;
 import androidx.test.platform.app.InstrumentationRegistry;
-import com.google.android.apps.authenticator.otp.AccountDb.AccountDbIdUpdateFailureException;
 import com.google.android.apps.authenticator.otp.AccountDb.AccountIndex;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountRecord;
 import com.google.android.apps.authenticator.otp.AccountDb.OtpType;
 import com.google.android.apps.authenticator.otp.PasscodeGenerator.Signer;
 import com.google.android.apps.authenticator.testability.DependencyInjector;
 import com.google.android.apps.authenticator.util.Base32String;
 import com.google.android.apps.authenticator.util.FileUtilities;
+import com.google.common.base.Strings;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 
 /**
  * Unit tests for {@link AccountDb}.
@@ -222,6 +246,47 @@ public class AccountDbTest {
     assertThat(accountDb.indexExists(index("marywinehouse@aol.com", null))).isFalse();
   }
 
+  @Test
+  public void testGetAccountRecords() {
+    assertThat(accountDb.getAccountRecords()).isEmpty();
+
+    addAllTestRecords();
+    List<AccountIndex> accounts = accountDb.getAccounts();
+    List<AccountRecord> records = accountDb.getAccountRecords();
+    assertThat(records).hasSize(accounts.size());
+    for (int i = 0; i < records.size(); i++) {
+      AccountRecord record = records.get(i);
+      assertThat(record.getIndex()).isEqualTo(accounts.get(i));
+      assertThat(record.getSecret()).isEqualTo(accountDb.getSecret(record.getIndex()));
+      assertThat(record.getType()).isEqualTo(accountDb.getType(record.getIndex()));
+      assertThat(record.getCounter()).isEqualTo(accountDb.getCounter(record.getIndex()));
+    }
+  }
+
+  @Test
+  public void testGetAccountRecord() {
+    assertThat(accountDb.getAccountRecord(index("johndoe@gmail.com", null))).isNull();
+
+    addAllTestRecords();
+    for (TestAccount t : TEST_ACCOUNTS) {
+      AccountRecord record = accountDb.getAccountRecord(t);
+      assertThat(record.getIndex()).isEqualTo(t);
+      assertThat(record.getSecret()).isEqualTo(t.secret);
+      assertThat(record.getType()).isEqualTo(t.type);
+      assertThat(record.getCounter()).isEqualTo((t.counter != null) ? t.counter : 0);
+    }
+    // Consistent with the records of all accounts
+    for (AccountRecord record : accountDb.getAccountRecords()) {
+      assertThat(accountDb.getAccountRecord(record.getIndex())).isEqualTo(record);
+    }
+    // non-existent record
+    assertThat(accountDb.getAccountRecord(index("marywinehouse@aol.com", null))).isNull();
+
+    accountDb.incrementCounter(index("maryweiss@yahoo.com", null));
+    assertThat(accountDb.getAccountRecord(index("maryweiss@yahoo.com", null)).getCounter())
+        .isEqualTo(1);
+  }
+
   @Test
   public void testIssuerNotParsedFromName() {
     addSomeRecordsWithNullIssuer();
@@ -368,6 +433,105 @@ public class AccountDbTest {
     }
   }
 
+  @Test
+  public void testIncrementAndGetCounter() {
+    addAllTestRecords();
+    AccountIndex hotp = index("maryweiss@yahoo.com", null);
+    assertThat(accountDb.incrementAndGetCounter(hotp)).isEqualTo(1);
+    assertThat(accountDb.incrementAndGetCounter(hotp)).isEqualTo(2);
+    assertThat(accountDb.getCounter(hotp)).isEqualTo(2);
+    // non-existent record
+    assertThat(accountDb.incrementAndGetCounter(index("MARYwinehouse@yahoo.com", null))).isNull();
+  }
+
+  @Test
+  public void testIncrementAndGetCounter_onlyInvalidatesSnapshotWhenIncremented() {
+    AccountIndex hotp = index("hotp@example.com", ISSUER);
+    accountDb.add(hotp.getName(), SECRET, OtpType.HOTP, 0, null, hotp.getIssuer());
+    AccountDb.Snapshot snapshot = accountDb.getSnapshot();
+
+    assertThat(accountDb.incrementAndGetCounter(index("missing@example.com", ISSUER))).isNull();
+    assertThat(accountDb.getSnapshot()).isSameAs(snapshot);
+
+    assertThat(accountDb.incrementAndGetCounter(hotp)).isEqualTo(1);
+    assertThat(accountDb.getSnapshot()).isNotSameAs(snapshot);
+  }
+
+  @Test
+  public void testIncrementAndGetCounter_withAndWithoutIssuer() {
+    AccountIndex withIssuer = index("johndoe@example.com", ISSUER);
+    AccountIndex withoutIssuer = index("johndoe@example.com", null);
+    accountDb.add(withIssuer.getName(), SECRET, OtpType.HOTP, 0, null, withIssuer.getIssuer());
+    accountDb.add(withoutIssuer.getName(), SECRET2, OtpType.HOTP, 10, null, null);
+
+    // Each kind of account uses its own statement, which is reused by later increments
+    assertThat(accountDb.incrementAndGetCounter(withIssuer)).isEqualTo(1);
+    assertThat(accountDb.incrementAndGetCounter(withoutIssuer)).isEqualTo(11);
+    assertThat(accountDb.incrementAndGetCounter(withIssuer)).isEqualTo(2);
+    assertThat(accountDb.incrementAndGetCounter(withoutIssuer)).isEqualTo(12);
+    assertThat(accountDb.incrementAndGetCounter(index("janedoe@example.com", ISSUER))).isNull();
+    assertThat(accountDb.incrementAndGetCounter(withIssuer)).isEqualTo(3);
+  }
+
+  @Test
+  public void testIncrementAndGetCounter_whenCounterIsNull() {
+    assertThat(AccountDb.deleteDatabase(DependencyInjector.getContext())).isTrue();
+    SQLiteDatabase database = createOlderDatabaseWithRecords();
+    database.close();
+    database = null;
+    accountDb = new AccountDb(DependencyInjector.getContext());
+
+    // Older databases store NULL as the counter of TOTP accounts, which reads as 0
+    TestAccount totp = findTestAccountByName(TEST_ACCOUNTS_WITH_NULL_ISSUER, "johndoe@gmail.com");
+    assertThat(accountDb.getCounter(totp)).isEqualTo(0);
+    assertThat(accountDb.incrementAndGetCounter(totp)).isEqualTo(1);
+  }
+
+  @Test
+  public void testIncrementAndGetCounter_concurrently() throws Exception {
+    final AccountIndex hotp = index("hotp@example.com", ISSUER);
+    accountDb.add(hotp.getName(), SECRET, OtpType.HOTP, 0, null, hotp.getIssuer());
+
+    int threadCount = 8;
+    final int incrementsPerThread = 50;
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<List<Integer>>> results = new ArrayList<>();
+      for (int i = 0; i < threadCount; i++) {
+        results.add(
+            executor.submit(
+                new Callable<List<Integer>>() {
+                  @Override
+                  public List<Integer> call() throws Exception {
+                    startLatch.await();
+                    List<Integer> counters = new ArrayList<>();
+                    for (int j = 0; j < incrementsPerThread; j++) {
+                      counters.add(accountDb.incrementAndGetCounter(hotp));
+                    }
+                    return counters;
+                  }
+                }));
+      }
+      startLatch.countDown();
+
+      // Every value is issued exactly once
+      Set<Integer> issuedCounters = new HashSet<>();
+      for (Future<List<Integer>> result : results) {
+        for (Integer counter : result.get()) {
+          assertThat(issuedCounters.add(counter)).isTrue();
+        }
+      }
+      int incrementCount = threadCount * incrementsPerThread;
+      assertThat(issuedCounters).hasSize(incrementCount);
+      assertThat(Collections.min(issuedCounters)).isEqualTo(1);
+      assertThat(Collections.max(issuedCounters)).isEqualTo(incrementCount);
+      assertThat(accountDb.getCounter(hotp)).isEqualTo(incrementCount);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   @Test
   public void testGetType() {
     addAllTestRecords();
@@ -399,6 +563,92 @@ public class AccountDbTest {
     }
   }
 
+  @Test
+  public void testDeleteReclaimsSpaceOnceAfterQuietPeriod() {
+    ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+    ScheduledFuture<?> pendingVacuum = mock(ScheduledFuture.class);
+    doReturn(pendingVacuum)
+        .when(executor)
+        .schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    accountDb.close();
+    accountDb = new AccountDb(DependencyInjector.getContext(), executor);
+
+    // Enough data to span many pages
+    int accountCount = 100;
+    String longSecret = Strings.repeat(SECRET, 64);
+    for (int i = 0; i < accountCount; i++) {
+      accountDb.add("user" + i + "@example.com", longSecret, OtpType.TOTP, null, null, ISSUER);
+    }
+    for (int i = 0; i < accountCount; i++) {
+      accountDb.delete(index("user" + i + "@example.com", ISSUER));
+    }
+
+    // Each deletion postpones the reclamation scheduled by the previous one
+    ArgumentCaptor<Runnable> vacuum = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor, times(accountCount))
+        .schedule(vacuum.capture(), eq(AccountDb.VACUUM_DELAY_MILLIS), eq(TimeUnit.MILLISECONDS));
+    verify(pendingVacuum, times(accountCount - 1)).cancel(false);
+    assertThat(accountDb.queryPragma("PRAGMA freelist_count")).isGreaterThan(0L);
+
+    vacuum.getValue().run();
+    assertThat(accountDb.queryPragma("PRAGMA freelist_count")).isEqualTo(0L);
+  }
+
+  @Test
+  public void testClose_skipsReclamationScheduledBeforeIt() {
+    ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+    doReturn(mock(ScheduledFuture.class))
+        .when(executor)
+        .schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    accountDb.close();
+    accountDb = new AccountDb(DependencyInjector.getContext(), executor);
+    accountDb.add("johndoe@gmail.com", SECRET, OtpType.TOTP, null, null, ISSUER);
+    accountDb.delete(index("johndoe@gmail.com", ISSUER));
+    ArgumentCaptor<Runnable> vacuum = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor).schedule(vacuum.capture(), anyLong(), any(TimeUnit.class));
+
+    // Starts once the database is closed, which must not fail
+    accountDb.close();
+    vacuum.getValue().run();
+
+    accountDb = new AccountDb(DependencyInjector.getContext());
+  }
+
+  @Test
+  public void testWhereClauseBindsValues() {
+    AccountIndex withIssuer = index("o'brien@example.com", "O'Reilly");
+    AccountIndex withNullIssuer = index("o'brien@example.com", null);
+    assertThat(AccountDb.whereClause(withIssuer)).isEqualTo(
+        AccountDb.whereClause(index("johndoe@gmail.com", GOOGLE_ISSUER)));
+    assertThat(AccountDb.whereArgs(withIssuer))
+        .asList()
+        .containsExactly("o'brien@example.com", "O'Reilly")
+        .inOrder();
+    assertThat(AccountDb.whereClause(withNullIssuer)).isNotEqualTo(
+        AccountDb.whereClause(withIssuer));
+    assertThat(AccountDb.whereArgs(withNullIssuer)).asList().containsExactly("o'brien@example.com");
+  }
+
+  @Test
+  public void testAccountsWithQuotesInNameAndIssuer() {
+    AccountIndex quoted = index("o'brien@example.com", "O'Reilly");
+    accountDb.add(quoted.getName(), SECRET, OtpType.HOTP, 5, null, quoted.getIssuer());
+    validateAccountRecord(quoted, SECRET, OtpType.HOTP, 5, false);
+    assertThat(accountDb.findSimilarExistingIndex(index("  o'brien@example.com", "O'Reilly")))
+        .isEqualTo(quoted);
+
+    accountDb.incrementCounter(quoted);
+    assertThat(accountDb.getCounter(quoted)).isEqualTo(6);
+
+    assertThat(accountDb.rename(quoted, "\"o'brien\"@example.com")).isTrue();
+    AccountIndex renamed = index("\"o'brien\"@example.com", "O'Reilly");
+    assertThat(accountDb.indexExists(quoted)).isFalse();
+    assertThat(accountDb.indexExists(renamed)).isTrue();
+
+    accountDb.delete(renamed);
+    assertThat(accountDb.getAccounts()).isEmpty();
+  }
+
   @Test
   public void testAddWithNullIssuer() {
     String accountName = "johndoe@dasher.com";
@@ -535,15 +785,213 @@ public class AccountDbTest {
   }
 
   @Test
-  public void testSwapId() throws AccountDbIdUpdateFailureException {
+  public void testAddAll_matchesSequentialAdds() {
+    List<AccountRecord> batch = new ArrayList<>();
+    for (TestAccount t : TEST_ACCOUNTS) {
+      // Overwrite with the stripped and full names, as testAddAndOverwrite does
+      batch.add(new AccountRecord(index(t.getStrippedName(), t.getIssuer()), SECRET3, t.type,
+          t.counter));
+      batch.add(new AccountRecord(index(t.toString(), t.getIssuer()), SECRET3, t.type, t.counter));
+    }
+    // Similar accounts, duplicates with a null issuer and the corp account within the batch itself
+    batch.add(new AccountRecord(index("LostPass:  whitespace@some.com", "LostPass"), SECRET,
+        OtpType.TOTP, null));
+    batch.add(new AccountRecord(index("whitespace@some.com", "LostPass"), SECRET2, OtpType.TOTP,
+        null));
+    batch.add(new AccountRecord(index("dup@example.com", null), SECRET, OtpType.TOTP, null));
+    batch.add(new AccountRecord(index("dup@example.com", ""), SECRET2, OtpType.HOTP, 5));
+    batch.add(new AccountRecord(index("dup@example.com", null), SECRET3, OtpType.TOTP, null));
+    batch.add(new AccountRecord(index(AccountDb.GOOGLE_CORP_ACCOUNT_NAME, null), SECRET2,
+        OtpType.HOTP, 7));
+
     addAllTestRecords();
-    int firstIdBeforeUpdate = accountDb.getId(TEST_ACCOUNTS[0]);
-    int secondIdBeforeUpdate = accountDb.getId(TEST_ACCOUNTS[1]);
+    List<AccountIndex> expectedIndexes = new ArrayList<>();
+    for (AccountRecord record : batch) {
+      AccountIndex index = record.getIndex();
+      expectedIndexes.add(accountDb.add(index.getName(), record.getSecret(), record.getType(),
+          record.getCounter(), null, index.getIssuer()));
+    }
+    List<AccountRecord> expectedRecords = accountDb.getAccountRecords();
 
-    accountDb.swapId(TEST_ACCOUNTS[0], TEST_ACCOUNTS[1]);
+    accountDb.deleteAllData();
+    addAllTestRecords();
+    assertThat(accountDb.addAll(batch)).containsExactlyElementsIn(expectedIndexes).inOrder();
+    assertThat(accountDb.getAccountRecords()).containsExactlyElementsIn(expectedRecords).inOrder();
+    assertSnapshotMatchesDatabase();
+  }
 
-    assertThat(accountDb.getId(TEST_ACCOUNTS[1])).isEqualTo(firstIdBeforeUpdate);
-    assertThat(accountDb.getId(TEST_ACCOUNTS[0])).isEqualTo(secondIdBeforeUpdate);
+  @Test
+  public void testAddAll_whenDuplicateLimitExceeded_addsNothing() {
+    addSomeRecordsWithIssuer();
+    List<AccountRecord> expectedRecords = accountDb.getAccountRecords();
+
+    List<AccountRecord> batch = new ArrayList<>();
+    batch.add(new AccountRecord(index("new@example.com", ISSUER), SECRET, OtpType.TOTP, null));
+    for (int i = 0; i <= AccountDb.MAX_DUPLICATE_NAMES; i++) {
+      batch.add(new AccountRecord(index("janedoe@example.com", null), SECRET, OtpType.TOTP, null));
+    }
+    try {
+      accountDb.addAll(batch);
+      fail("AccountDbDuplicateLimitException should have been thrown");
+    } catch (AccountDb.AccountDbDuplicateLimitException expected) {
+      // Expected
+    }
+
+    assertThat(accountDb.getAccountRecords()).containsExactlyElementsIn(expectedRecords).inOrder();
+    assertSnapshotMatchesDatabase();
+  }
+
+  @Test
+  public void testMoveAccount() {
+    addAllTestRecords();
+    List<AccountIndex> expectedAccounts = new ArrayList<>(accountDb.getAccounts());
+    int[] idsBeforeMove = new int[TEST_ACCOUNTS.length];
+    for (int i = 0; i < TEST_ACCOUNTS.length; i++) {
+      idsBeforeMove[i] = accountDb.getId(TEST_ACCOUNTS[i]);
+    }
+
+    // Down, up, and onto itself
+    assertThat(accountDb.moveAccount(expectedAccounts.get(1), expectedAccounts.get(30))).isTrue();
+    expectedAccounts.add(30, expectedAccounts.remove(1));
+    assertThat(accountDb.getAccounts()).containsExactlyElementsIn(expectedAccounts).inOrder();
+
+    assertThat(accountDb.moveAccount(expectedAccounts.get(20), expectedAccounts.get(0))).isTrue();
+    expectedAccounts.add(0, expectedAccounts.remove(20));
+    assertThat(accountDb.getAccounts()).containsExactlyElementsIn(expectedAccounts).inOrder();
+
+    assertThat(accountDb.moveAccount(expectedAccounts.get(5), expectedAccounts.get(5))).isTrue();
+    assertThat(accountDb.getAccounts()).containsExactlyElementsIn(expectedAccounts).inOrder();
+
+    // The order is persisted, rather than derived from the row ids
+    for (int i = 0; i < TEST_ACCOUNTS.length; i++) {
+      assertThat(accountDb.getId(TEST_ACCOUNTS[i])).isEqualTo(idsBeforeMove[i]);
+    }
+    assertSnapshotMatchesDatabase();
+
+    // New accounts come last
+    AccountIndex newIndex = accountDb.add("new@example.com", SECRET, OtpType.TOTP, null, null,
+        ISSUER);
+    expectedAccounts.add(newIndex);
+    assertThat(accountDb.getAccounts()).containsExactlyElementsIn(expectedAccounts).inOrder();
+  }
+
+  @Test
+  public void testMoveAccount_whenAccountDoesNotExist() {
+    addAllTestRecords();
+    List<AccountIndex> accounts = accountDb.getAccounts();
+    AccountIndex missing = index("missing@example.com", ISSUER);
+
+    assertThat(accountDb.moveAccount(missing, accounts.get(0))).isFalse();
+    assertThat(accountDb.moveAccount(accounts.get(0), missing)).isFalse();
+    assertThat(accountDb.getAccounts()).containsExactlyElementsIn(accounts).inOrder();
+  }
+
+  @Test
+  public void testCheckConsistency() {
+    addAllTestRecords();
+    AccountDb.ConsistencyReport report = accountDb.checkConsistency();
+    assertThat(report.isConsistent()).isTrue();
+    assertThat(report.getMissingColumns()).isEmpty();
+    assertThat(report.hasExtraColumns()).isFalse();
+    assertThat(report.getDuplicateAccounts()).isEmpty();
+  }
+
+  @Test
+  public void testCheckConsistency_withDuplicates() throws Exception {
+    expectDbConsistent = false;
+    addAllTestRecords();
+    dropUniquenessConstraints();
+    AccountIndex withIssuer = TEST_ACCOUNTS_WITH_ISSUER[0];
+    AccountIndex withNullIssuer = TEST_ACCOUNTS_WITH_NULL_ISSUER[0];
+    insertRowBypassingChecks(withIssuer);
+    insertRowBypassingChecks(withNullIssuer);
+    insertRowBypassingChecks(withNullIssuer);
+
+    AccountDb.ConsistencyReport report = accountDb.checkConsistency();
+    assertThat(report.isConsistent()).isFalse();
+    assertThat(report.getMissingColumns()).isEmpty();
+    assertThat(report.getDuplicateAccounts()).containsExactly(withIssuer, withNullIssuer);
+    assertThat(accountDb.isDbConsistent()).isFalse();
+
+    AccountDb.ConsistencyReport backgroundReport =
+        accountDb.checkConsistencyInBackground().get(5, TimeUnit.SECONDS);
+    assertThat(backgroundReport.getDuplicateAccounts()).containsExactly(withIssuer, withNullIssuer);
+  }
+
+  @Test
+  public void testSnapshotReusedUntilWrite() {
+    addAllTestRecords();
+    AccountDb.Snapshot snapshot = accountDb.getSnapshot();
+    assertThat(accountDb.getSnapshot()).isSameAs(snapshot);
+    assertThat(accountDb.getAccounts()).isSameAs(snapshot.accounts);
+    assertThat(accountDb.getAccountRecords()).isSameAs(snapshot.records);
+
+    accountDb.incrementCounter(TEST_ACCOUNTS[0]);
+    AccountDb.Snapshot newSnapshot = accountDb.getSnapshot();
+    assertThat(newSnapshot).isNotSameAs(snapshot);
+    assertThat(newSnapshot.version).isGreaterThan(snapshot.version);
+    assertThat(accountDb.getSnapshot()).isSameAs(newSnapshot);
+  }
+
+  @Test
+  public void testSnapshotMatchesDatabaseAfterEachWrite() {
+    assertSnapshotMatchesDatabase();
+
+    for (TestAccount t : TEST_ACCOUNTS) {
+      addTestAccount(t);
+      assertSnapshotMatchesDatabase();
+    }
+
+    // Overwrite an existing account with an issuer, and add a renamed duplicate without one
+    accountDb.add("5@yahoo.co.uk", SECRET3, OtpType.TOTP, null, null, ISSUER2);
+    assertSnapshotMatchesDatabase();
+    accountDb.add("johndoe@gmail.com", SECRET2, OtpType.TOTP, null, null, null);
+    assertSnapshotMatchesDatabase();
+
+    accountDb.update(TEST_ACCOUNTS[0], SECRET3, OtpType.HOTP, 5, null);
+    assertSnapshotMatchesDatabase();
+
+    accountDb.incrementCounter(TEST_ACCOUNTS[0]);
+    assertSnapshotMatchesDatabase();
+
+    assertThat(accountDb.rename(TEST_ACCOUNTS[1], "renamed@example.com")).isTrue();
+    assertSnapshotMatchesDatabase();
+
+    assertThat(accountDb.moveAccount(TEST_ACCOUNTS[0], TEST_ACCOUNTS[2])).isTrue();
+    assertSnapshotMatchesDatabase();
+
+    accountDb.delete(TEST_ACCOUNTS[0]);
+    assertSnapshotMatchesDatabase();
+
+    accountDb.deleteAllData();
+    assertSnapshotMatchesDatabase();
+    assertThat(accountDb.getAccounts()).isEmpty();
+  }
+
+  @Test
+  public void testSnapshotMatchesDatabaseAfterUpgrade() {
+    assertThat(AccountDb.deleteDatabase(DependencyInjector.getContext())).isTrue();
+    SQLiteDatabase database = createOlderDatabaseWithRecords();
+    database.close();
+    database = null;
+
+    accountDb = new AccountDb(DependencyInjector.getContext());
+    assertSnapshotMatchesDatabase();
+  }
+
+  /**
+   * Asserts that the in-memory copy of the accounts table holds exactly the rows currently in the
+   * database, in the same order.
+   */
+  private void assertSnapshotMatchesDatabase() {
+    List<AccountRecord> expectedRecords = accountDb.queryAccountRecords();
+    assertThat(accountDb.getAccountRecords()).containsExactlyElementsIn(expectedRecords).inOrder();
+
+    List<AccountIndex> accounts = accountDb.getAccounts();
+    assertThat(accounts).hasSize(expectedRecords.size());
+    for (int i = 0; i < accounts.size(); i++) {
+      assertThat(accounts.get(i)).isEqualTo(expectedRecords.get(i).getIndex());
+    }
   }
 
   /**
@@ -870,12 +1318,23 @@ public class AccountDbTest {
     database = null;
 
     accountDb = new AccountDb(DependencyInjector.getContext());
+    AccountDb.ConsistencyReport report = accountDb.checkConsistency();
+    assertThat(report.isConsistent()).isFalse();
+    assertThat(report.getMissingColumns())
+        .containsExactly(
+            AccountDb.ID_COLUMN,
+            AccountDb.NAME_COLUMN,
+            AccountDb.SECRET_COLUMN,
+            AccountDb.COUNTER_COLUMN,
+            AccountDb.TYPE_COLUMN);
+    assertThat(report.hasExtraColumns()).isTrue();
     assertThat(AccountDb.listTableColumnNamesLowerCase(accountDb.mDatabase, AccountDb.TABLE_NAME))
         .containsExactly(
             "first",
             AccountDb.PROVIDER_COLUMN,
             AccountDb.ISSUER_COLUMN,
-            AccountDb.ORIGINAL_NAME_COLUMN);
+            AccountDb.ORIGINAL_NAME_COLUMN,
+            AccountDb.SORT_ORDER_COLUMN);
   }
 
   @Test
@@ -891,7 +1350,7 @@ public class AccountDbTest {
     String[] allColumnNames = {
         AccountDb.ID_COLUMN, AccountDb.NAME_COLUMN, AccountDb.SECRET_COLUMN,
         AccountDb.COUNTER_COLUMN, AccountDb.TYPE_COLUMN, AccountDb.PROVIDER_COLUMN,
-        AccountDb.ISSUER_COLUMN, AccountDb.ORIGINAL_NAME_COLUMN
+        AccountDb.ISSUER_COLUMN, AccountDb.ORIGINAL_NAME_COLUMN, AccountDb.SORT_ORDER_COLUMN
         };
 
     assertThat(AccountDb.listTableColumnNamesLowerCase(database, AccountDb.TABLE_NAME))
@@ -907,6 +1366,192 @@ public class AccountDbTest {
        .inOrder();
   }
 
+  @Test
+  public void testConstruct_whenDatabaseIsNew() {
+    assertThat(accountDb.mDatabase.getVersion()).isEqualTo(AccountDb.SCHEMA_VERSION);
+    assertThat(AccountDb.listTableColumnNamesLowerCase(accountDb.mDatabase, AccountDb.TABLE_NAME))
+        .containsExactly(
+            AccountDb.ID_COLUMN,
+            AccountDb.NAME_COLUMN,
+            AccountDb.SECRET_COLUMN,
+            AccountDb.COUNTER_COLUMN,
+            AccountDb.TYPE_COLUMN,
+            AccountDb.PROVIDER_COLUMN,
+            AccountDb.ISSUER_COLUMN,
+            AccountDb.ORIGINAL_NAME_COLUMN,
+            AccountDb.SORT_ORDER_COLUMN);
+    assertThat(listIndexesAndTriggers(accountDb.mDatabase))
+        .containsExactly(
+            AccountDb.SORT_ORDER_INDEX_NAME,
+            AccountDb.NAME_ISSUER_INDEX_NAME,
+            AccountDb.ISSUER_INDEX_NAME,
+            AccountDb.NULL_ISSUER_INSERT_TRIGGER_NAME,
+            AccountDb.NULL_ISSUER_UPDATE_TRIGGER_NAME);
+    assertThat(accountDb.queryPragma("PRAGMA auto_vacuum"))
+        .isEqualTo((long) AccountDb.AUTO_VACUUM_INCREMENTAL);
+    assertThat(accountDb.queryPragma("PRAGMA secure_delete")).isEqualTo(1L);
+  }
+
+  @Test
+  public void testUpgradeFromEachSchemaVersion() {
+    for (int version = AccountDb.SCHEMA_VERSION_INITIAL;
+        version < AccountDb.SCHEMA_VERSION;
+        version++) {
+      doTestUpgradeFromSchema(version, true);
+    }
+  }
+
+  @Test
+  public void testUpgradeFromEachUnversionedSchema() {
+    for (int version = AccountDb.SCHEMA_VERSION_INITIAL;
+        version <= AccountDb.SCHEMA_VERSION;
+        version++) {
+      doTestUpgradeFromSchema(version, false);
+    }
+  }
+
+  private void doTestUpgradeFromSchema(int schemaVersion, boolean versioned) {
+    accountDb.close();
+    assertThat(AccountDb.deleteDatabase(DependencyInjector.getContext())).isTrue();
+    SQLiteDatabase database = createDatabaseWithSchema(schemaVersion);
+    if (versioned) {
+      database.setVersion(schemaVersion);
+    }
+    database.close();
+    database = null;
+
+    accountDb = new AccountDb(DependencyInjector.getContext());
+    assertThat(accountDb.mDatabase.getVersion()).isEqualTo(AccountDb.SCHEMA_VERSION);
+    assertThat(accountDb.isDbConsistent()).isTrue();
+    assertThat(accountDb.queryPragma("PRAGMA auto_vacuum"))
+        .isEqualTo((long) AccountDb.AUTO_VACUUM_INCREMENTAL);
+    assertThat(listIndexesAndTriggers(accountDb.mDatabase))
+        .containsAllOf(
+            AccountDb.SORT_ORDER_INDEX_NAME,
+            AccountDb.NAME_ISSUER_INDEX_NAME,
+            AccountDb.ISSUER_INDEX_NAME,
+            AccountDb.NULL_ISSUER_INSERT_TRIGGER_NAME,
+            AccountDb.NULL_ISSUER_UPDATE_TRIGGER_NAME);
+
+    // Issuers are only derived from name prefixes when the issuer column gets added
+    AccountIndex[] expectedAccounts = (schemaVersion < AccountDb.SCHEMA_VERSION_ISSUER)
+        ? autoUpgraded(TEST_ACCOUNTS_WITH_NULL_ISSUER)
+        : TEST_ACCOUNTS_WITH_NULL_ISSUER;
+    assertThat(accountDb.getAccounts()).containsExactly((Object[]) expectedAccounts).inOrder();
+    for (int i = 0; i < expectedAccounts.length; i++) {
+      TestAccount t = TEST_ACCOUNTS_WITH_NULL_ISSUER[i];
+      AccountRecord record = accountDb.getAccountRecord(expectedAccounts[i]);
+      assertThat(record.getSecret()).isEqualTo(t.secret);
+      assertThat(record.getType()).isEqualTo(t.type);
+      assertThat(record.getCounter()).isEqualTo((t.counter != null) ? t.counter : 0);
+      assertThat(accountDb.getOriginalName(expectedAccounts[i])).isNull();
+    }
+  }
+
+  @Test
+  public void testUpgrade_whenDatabaseHasDuplicates_renamesThem() {
+    accountDb.close();
+    assertThat(AccountDb.deleteDatabase(DependencyInjector.getContext())).isTrue();
+    SQLiteDatabase database = createDatabaseWithSchema(AccountDb.SCHEMA_VERSION_SORT_ORDER);
+    database.setVersion(AccountDb.SCHEMA_VERSION_SORT_ORDER);
+    // Two more copies of an account without issuer, one of which clashes with "1@b.c(1)" once
+    // renamed, and one more copy of an account with an issuer
+    addToOlderDatabase(database, "1@b.c", SECRET2, OtpType.TOTP, null, null);
+    addToOlderDatabase(database, "1@b.c", SECRET3, OtpType.TOTP, null, null);
+    addToOlderDatabase(database, "1@b.c(1)", SECRET2, OtpType.HOTP, 7, null);
+    ContentValues values = new ContentValues();
+    values.put(AccountDb.NAME_COLUMN, "dup@example.com");
+    values.put(AccountDb.ISSUER_COLUMN, ISSUER);
+    values.put(AccountDb.SECRET_COLUMN, SECRET);
+    values.put(AccountDb.TYPE_COLUMN, OtpType.TOTP.ordinal());
+    database.insert(AccountDb.TABLE_NAME, null, values);
+    values.put(AccountDb.SECRET_COLUMN, SECRET2);
+    database.insert(AccountDb.TABLE_NAME, null, values);
+    database.close();
+    database = null;
+
+    accountDb = new AccountDb(DependencyInjector.getContext());
+    assertThat(accountDb.mDatabase.getVersion()).isEqualTo(AccountDb.SCHEMA_VERSION);
+    assertThat(accountDb.checkConsistency().isConsistent()).isTrue();
+    // The first copies keep their names, and no secret is lost
+    assertThat(accountDb.getSecret(index("1@b.c", null))).isEqualTo(SECRET);
+    assertThat(accountDb.getSecret(index("1@b.c(2)", null))).isEqualTo(SECRET2);
+    assertThat(accountDb.getSecret(index("1@b.c(3)", null))).isEqualTo(SECRET3);
+    assertThat(accountDb.getSecret(index("1@b.c(1)", null))).isEqualTo(SECRET2);
+    assertThat(accountDb.getSecret(index("dup@example.com", ISSUER))).isEqualTo(SECRET);
+    assertThat(accountDb.getSecret(index("dup@example.com(1)", ISSUER))).isEqualTo(SECRET2);
+    assertThat(accountDb.getAccounts()).hasSize(TEST_ACCOUNTS_WITH_NULL_ISSUER.length + 5);
+  }
+
+  @Test
+  public void testUniquenessConstraints() {
+    addAllTestRecords();
+    List<AccountRecord> expectedRecords = accountDb.getAccountRecords();
+    ContentValues values = new ContentValues();
+    values.put(AccountDb.SECRET_COLUMN, SECRET3);
+    values.put(AccountDb.TYPE_COLUMN, OtpType.TOTP.ordinal());
+
+    // Inserting a duplicate fails, with or without an issuer
+    for (AccountIndex duplicate :
+        new AccountIndex[] {TEST_ACCOUNTS_WITH_ISSUER[0], TEST_ACCOUNTS_WITH_NULL_ISSUER[0]}) {
+      values.put(AccountDb.NAME_COLUMN, duplicate.getName());
+      values.put(AccountDb.ISSUER_COLUMN, duplicate.getIssuer());
+      assertThat(accountDb.mDatabase.insert(AccountDb.TABLE_NAME, null, values)).isEqualTo(-1L);
+    }
+
+    // So does renaming an account without issuer to the name of another one
+    ContentValues newName = new ContentValues();
+    newName.put(AccountDb.NAME_COLUMN, TEST_ACCOUNTS_WITH_NULL_ISSUER[0].getName());
+    AccountIndex other = TEST_ACCOUNTS_WITH_NULL_ISSUER[1];
+    try {
+      accountDb.mDatabase.update(AccountDb.TABLE_NAME, newName, AccountDb.whereClause(other),
+          AccountDb.whereArgs(other));
+      fail("SQLiteConstraintException should have been thrown");
+    } catch (SQLiteConstraintException expected) {
+      // Expected
+    }
+    assertThat(accountDb.queryAccountRecords())
+        .containsExactlyElementsIn(expectedRecords)
+        .inOrder();
+
+    // Names can still be shared by accounts with different issuers, or no issuer
+    accountDb.add(TEST_ACCOUNTS_WITH_NULL_ISSUER[1].getName(), SECRET3, OtpType.TOTP, null, null,
+        ISSUER2);
+    assertThat(accountDb.indexExists(index(TEST_ACCOUNTS_WITH_NULL_ISSUER[1].getName(), ISSUER2)))
+        .isTrue();
+  }
+
+  @Test
+  public void testLookupsUseIndexes() {
+    addAllTestRecords();
+    for (AccountIndex index : new AccountIndex[] {index("a", ISSUER), index("a", null)}) {
+      assertThat(explainQueryPlan(
+              "SELECT * FROM " + AccountDb.TABLE_NAME + " WHERE " + AccountDb.whereClause(index),
+              AccountDb.whereArgs(index)))
+          .contains(AccountDb.NAME_ISSUER_INDEX_NAME);
+    }
+    assertThat(explainQueryPlan(
+            "SELECT * FROM " + AccountDb.TABLE_NAME + " WHERE " + AccountDb.ISSUER_COLUMN + " = ?",
+            new String[] {ISSUER}))
+        .contains(AccountDb.ISSUER_INDEX_NAME);
+  }
+
+  @Test
+  public void testConstruct_whenSchemaIsCurrent_doesNotMigrate() {
+    expectDbConsistent = false;
+    accountDb.close();
+    assertThat(AccountDb.deleteDatabase(DependencyInjector.getContext())).isTrue();
+    // Claims to be current while lacking a column, which only a migration would notice
+    SQLiteDatabase database = createDatabaseWithSchema(AccountDb.SCHEMA_VERSION_ISSUER);
+    database.setVersion(AccountDb.SCHEMA_VERSION);
+    database.close();
+    database = null;
+
+    accountDb = new AccountDb(DependencyInjector.getContext());
+    assertThat(AccountDb.listTableColumnNamesLowerCase(accountDb.mDatabase, AccountDb.TABLE_NAME))
+        .doesNotContain(AccountDb.ORIGINAL_NAME_COLUMN);
+  }
+
   private AccountIndex[] autoUpgraded(AccountIndex[] oldEntries) {
     AccountIndex[] newEntries = new AccountIndex[oldEntries.length];
     for (int i = 0; i < oldEntries.length; i++) {
@@ -928,20 +1573,44 @@ public class AccountDbTest {
   }
 
   private SQLiteDatabase createOlderDatabaseWithRecords() {
+    return createDatabaseWithSchema(AccountDb.SCHEMA_VERSION_PROVIDER);
+  }
+
+  /**
+   * Creates an unversioned database with the accounts table as it was in the specified schema
+   * version, holding {@link #TEST_ACCOUNTS_WITH_NULL_ISSUER}.
+   */
+  private SQLiteDatabase createDatabaseWithSchema(int schemaVersion) {
     SQLiteDatabase database = DependencyInjector.getContext().openOrCreateDatabase(
         FileUtilities.DATABASES_PATH, Context.MODE_PRIVATE, null);
 
-    database.execSQL(String.format(
-        "CREATE TABLE IF NOT EXISTS %s" +
-        " (%s INTEGER PRIMARY KEY, %s TEXT NOT NULL, %s TEXT NOT NULL, " +
-        " %s INTEGER DEFAULT %s, %s INTEGER, %s INTEGER DEFAULT %s)",
-        AccountDb.TABLE_NAME, AccountDb.ID_COLUMN, AccountDb.NAME_COLUMN, AccountDb.SECRET_COLUMN,
+    StringBuilder columns = new StringBuilder(String.format(
+        "%s INTEGER PRIMARY KEY, %s TEXT NOT NULL, %s TEXT NOT NULL, %s INTEGER DEFAULT %s," +
+        " %s INTEGER",
+        AccountDb.ID_COLUMN, AccountDb.NAME_COLUMN, AccountDb.SECRET_COLUMN,
         AccountDb.COUNTER_COLUMN, AccountDb.DEFAULT_HOTP_COUNTER,
-        AccountDb.TYPE_COLUMN,
-        AccountDb.PROVIDER_COLUMN, AccountDb.PROVIDER_UNKNOWN));
+        AccountDb.TYPE_COLUMN));
+    if (schemaVersion >= AccountDb.SCHEMA_VERSION_PROVIDER) {
+      columns.append(String.format(", %s INTEGER DEFAULT %s",
+          AccountDb.PROVIDER_COLUMN, AccountDb.PROVIDER_UNKNOWN));
+    }
+    if (schemaVersion >= AccountDb.SCHEMA_VERSION_ISSUER) {
+      columns.append(String.format(", %s TEXT DEFAULT NULL", AccountDb.ISSUER_COLUMN));
+    }
+    if (schemaVersion >= AccountDb.SCHEMA_VERSION_ORIGINAL_NAME) {
+      columns.append(String.format(", %s TEXT DEFAULT NULL", AccountDb.ORIGINAL_NAME_COLUMN));
+    }
+    if (schemaVersion >= AccountDb.SCHEMA_VERSION_SORT_ORDER) {
+      // Left null by addToOlderDatabase, as the upgrade handles
+      columns.append(String.format(", %s INTEGER", AccountDb.SORT_ORDER_COLUMN));
+    }
+    database.execSQL(
+        String.format("CREATE TABLE IF NOT EXISTS %s (%s)", AccountDb.TABLE_NAME, columns));
 
     for (TestAccount t : TEST_ACCOUNTS_WITH_NULL_ISSUER) {
-      addToOlderDatabase(database, t.name, t.secret, t.type, t.counter, t.isGoogleAccount);
+      Boolean googleAccount =
+          (schemaVersion >= AccountDb.SCHEMA_VERSION_PROVIDER) ? t.isGoogleAccount : null;
+      addToOlderDatabase(database, t.name, t.secret, t.type, t.counter, googleAccount);
     }
     return database;
   }
@@ -966,6 +1635,57 @@ public class AccountDbTest {
     database.insert(AccountDb.TABLE_NAME, null, values);
   }
 
+  /** Drops the index and triggers preventing duplicate accounts, as in older schema versions. */
+  private void dropUniquenessConstraints() {
+    accountDb.mDatabase.execSQL("DROP INDEX " + AccountDb.NAME_ISSUER_INDEX_NAME);
+    accountDb.mDatabase.execSQL("DROP TRIGGER " + AccountDb.NULL_ISSUER_INSERT_TRIGGER_NAME);
+    accountDb.mDatabase.execSQL("DROP TRIGGER " + AccountDb.NULL_ISSUER_UPDATE_TRIGGER_NAME);
+  }
+
+  /**
+   * Lists the names of the indexes and triggers of the accounts table, other than those SQLite
+   * creates automatically.
+   */
+  private static List<String> listIndexesAndTriggers(SQLiteDatabase database) {
+    List<String> names = new ArrayList<>();
+    Cursor cursor = database.rawQuery(
+        "SELECT name FROM sqlite_master WHERE type IN ('index', 'trigger') AND tbl_name = ?"
+            + " AND name NOT LIKE 'sqlite_autoindex_%'",
+        new String[] {AccountDb.TABLE_NAME});
+    try {
+      while (cursor.moveToNext()) {
+        names.add(cursor.getString(0));
+      }
+    } finally {
+      cursor.close();
+    }
+    return names;
+  }
+
+  /** Gets the plan SQLite chose for the query, with one line per step. */
+  private String explainQueryPlan(String sql, String[] selectionArgs) {
+    StringBuilder plan = new StringBuilder();
+    Cursor cursor = accountDb.mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+    try {
+      while (cursor.moveToNext()) {
+        plan.append(cursor.getString(cursor.getColumnIndexOrThrow("detail"))).append('\n');
+      }
+    } finally {
+      cursor.close();
+    }
+    return plan.toString();
+  }
+
+  /** Inserts a row for the account directly, as if the database had been corrupted. */
+  private void insertRowBypassingChecks(AccountIndex index) {
+    ContentValues values = new ContentValues();
+    values.put(AccountDb.NAME_COLUMN, index.getName());
+    values.put(AccountDb.ISSUER_COLUMN, index.getIssuer());
+    values.put(AccountDb.SECRET_COLUMN, SECRET);
+    values.put(AccountDb.TYPE_COLUMN, OtpType.TOTP.ordinal());
+    assertThat(accountDb.mDatabase.insert(AccountDb.TABLE_NAME, null, values)).isNotEqualTo(-1L);
+  }
+
   private void addSomeRecordsWithNullIssuer() {
     for (TestAccount t : TEST_ACCOUNTS_WITH_NULL_ISSUER) {
       addTestAccount(t);
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.otp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import android.os.Looper;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountIndex;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountRecord;
+import com.google.android.apps.authenticator.otp.AccountDb.OtpType;
+import com.google.android.apps.authenticator.testability.DependencyInjector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link AsyncAccountDb}. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class AsyncAccountDbTest {
+
+  private static final String SECRET = "7777777777777777"; // 16 sevens
+  private static final AccountIndex ACCOUNT = new AccountIndex("johndoe@gmail.com", null);
+  private static final AccountIndex OTHER_ACCOUNT = new AccountIndex("maryweiss@yahoo.com", null);
+
+  private AccountDb accountDb;
+  private QueueingExecutor workerExecutor;
+  private QueueingExecutor callbackExecutor;
+  private AsyncAccountDb asyncAccountDb;
+
+  @Before
+  public void setUp() throws Exception {
+    DependencyInjector.resetForIntegrationTesting(
+        InstrumentationRegistry.getInstrumentation().getTargetContext());
+    accountDb = DependencyInjector.getAccountDb();
+    workerExecutor = new QueueingExecutor();
+    callbackExecutor = new QueueingExecutor();
+    asyncAccountDb = new AsyncAccountDb(() -> accountDb, workerExecutor, false, callbackExecutor);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    DependencyInjector.close();
+  }
+
+  @Test
+  public void testOperationsRunOnWorkerInOrder() {
+    List<Object> results = new ArrayList<>();
+    asyncAccountDb.add(
+        ACCOUNT.getName(), SECRET, OtpType.TOTP, null, null, null, index -> results.add(index));
+    asyncAccountDb.getAccountRecords(accounts -> results.add(accounts));
+
+    // Nothing happens until the worker runs the operations
+    assertThat(workerExecutor.tasks).hasSize(2);
+    assertThat(accountDb.getAccounts()).isEmpty();
+
+    workerExecutor.runAll();
+    assertThat(accountDb.getAccounts()).containsExactly(ACCOUNT);
+    // Results are only delivered by the callback executor
+    assertThat(results).isEmpty();
+
+    callbackExecutor.runAll();
+    assertThat(results).containsExactly(ACCOUNT, accountDb.getAccountRecords()).inOrder();
+  }
+
+  @Test
+  public void testGetAccountRecord() {
+    accountDb.add(ACCOUNT.getName(), SECRET, OtpType.HOTP, 5, null, null);
+    AtomicReference<AccountRecord> existing = new AtomicReference<>();
+    // Not null initially, to tell whether the callback was invoked
+    AtomicReference<AccountRecord> missing =
+        new AtomicReference<>(new AccountRecord(OTHER_ACCOUNT, SECRET, OtpType.TOTP, null));
+    asyncAccountDb.getAccountRecord(ACCOUNT, existing::set);
+    asyncAccountDb.getAccountRecord(OTHER_ACCOUNT, missing::set);
+    runAll();
+
+    assertThat(existing.get()).isEqualTo(new AccountRecord(ACCOUNT, SECRET, OtpType.HOTP, 5));
+    assertThat(missing.get()).isNull();
+  }
+
+  @Test
+  public void testGetAccountCount() {
+    accountDb.add(ACCOUNT.getName(), SECRET, OtpType.TOTP, null, null, null);
+    accountDb.add(OTHER_ACCOUNT.getName(), SECRET, OtpType.TOTP, null, null, null);
+    AtomicReference<Integer> accountCount = new AtomicReference<>();
+    asyncAccountDb.getAccountCount(accountCount::set);
+    runAll();
+
+    assertThat(accountCount.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testDeleteAndMoveAccount() {
+    accountDb.add(ACCOUNT.getName(), SECRET, OtpType.TOTP, null, null, null);
+    accountDb.add(OTHER_ACCOUNT.getName(), SECRET, OtpType.TOTP, null, null, null);
+    AccountIndex third = accountDb.add("third", SECRET, OtpType.TOTP, null, null, null);
+    AtomicReference<Boolean> moved = new AtomicReference<>();
+    AtomicReference<Boolean> movedMissing = new AtomicReference<>();
+    asyncAccountDb.moveAccount(third, ACCOUNT, moved::set);
+    asyncAccountDb.delete(OTHER_ACCOUNT, null);
+    asyncAccountDb.moveAccount(OTHER_ACCOUNT, ACCOUNT, movedMissing::set);
+    runAll();
+
+    assertThat(moved.get()).isTrue();
+    assertThat(movedMissing.get()).isFalse();
+    assertThat(accountDb.getAccounts()).containsExactly(third, ACCOUNT).inOrder();
+  }
+
+  @Test
+  public void testRenameUnlessSimilarExists() {
+    accountDb.add(ACCOUNT.getName(), SECRET, OtpType.TOTP, null, null, null);
+    accountDb.add(OTHER_ACCOUNT.getName(), SECRET, OtpType.TOTP, null, null, null);
+    AtomicReference<Boolean> renamedToExisting = new AtomicReference<>();
+    AtomicReference<Boolean> renamed = new AtomicReference<>();
+    asyncAccountDb.renameUnlessSimilarExists(
+        ACCOUNT, OTHER_ACCOUNT.getName(), renamedToExisting::set);
+    asyncAccountDb.renameUnlessSimilarExists(ACCOUNT, "janedoe@gmail.com", renamed::set);
+    runAll();
+
+    assertThat(renamedToExisting.get()).isFalse();
+    assertThat(renamed.get()).isTrue();
+    assertThat(accountDb.getAccounts())
+        .containsExactly(new AccountIndex("janedoe@gmail.com", null), OTHER_ACCOUNT)
+        .inOrder();
+  }
+
+  @Test
+  public void testIsGoogleAccount() {
+    AtomicReference<Boolean> isGoogleAccount = new AtomicReference<>();
+    asyncAccountDb.isGoogleAccount(
+        new AccountIndex("johndoe@gmail.com", AccountDb.GOOGLE_ISSUER_NAME),
+        isGoogleAccount::set);
+    runAll();
+
+    assertThat(isGoogleAccount.get()).isTrue();
+  }
+
+  @Test
+  public void testSubmit_deliversExceptionToErrorCallback() {
+    IllegalStateException failure = new IllegalStateException("Operation failed");
+    AtomicReference<Object> result = new AtomicReference<>();
+    AtomicReference<RuntimeException> error = new AtomicReference<>();
+    asyncAccountDb.submit(
+        db -> {
+          throw failure;
+        },
+        result::set,
+        error::set);
+    asyncAccountDb.getAccountCount(result::set);
+
+    // The exception does not escape on the worker, which goes on with the next operation
+    workerExecutor.runAll();
+    assertThat(error.get()).isNull();
+
+    callbackExecutor.runAll();
+    assertThat(error.get()).isSameAs(failure);
+    assertThat(result.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void testSubmit_rethrowsExceptionOnCallbackExecutorWithoutErrorCallback() {
+    IllegalStateException failure = new IllegalStateException("Operation failed");
+    asyncAccountDb.submit(
+        db -> {
+          throw failure;
+        },
+        null);
+
+    workerExecutor.runAll();
+    try {
+      callbackExecutor.runAll();
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).isSameAs(failure);
+    }
+  }
+
+  @Test
+  public void testAdd_deliversFailureToErrorCallback() {
+    accountDb.close();
+    AtomicReference<AccountIndex> added = new AtomicReference<>();
+    AtomicReference<RuntimeException> error = new AtomicReference<>();
+    asyncAccountDb.add(
+        OTHER_ACCOUNT.getName(), SECRET, OtpType.TOTP, null, null, null, added::set, error::set);
+    runAll();
+
+    assertThat(added.get()).isNull();
+    assertThat(error.get()).isNotNull();
+  }
+
+  @Test
+  public void testDefaultInstanceRunsOperationsOffMainThread() throws Exception {
+    AsyncAccountDb defaultAsyncAccountDb = new AsyncAccountDb(() -> accountDb);
+    try {
+      AtomicReference<Thread> operationThread = new AtomicReference<>();
+      AtomicReference<Thread> callbackThread = new AtomicReference<>();
+      CountDownLatch callbackInvoked = new CountDownLatch(1);
+      defaultAsyncAccountDb.submit(
+          db -> {
+            operationThread.set(Thread.currentThread());
+            return null;
+          },
+          result -> {
+            callbackThread.set(Thread.currentThread());
+            callbackInvoked.countDown();
+          });
+
+      assertThat(callbackInvoked.await(5, TimeUnit.SECONDS)).isTrue();
+      Thread mainThread = Looper.getMainLooper().getThread();
+      assertThat(operationThread.get()).isNotSameAs(mainThread);
+      assertThat(operationThread.get()).isNotSameAs(Thread.currentThread());
+      assertThat(callbackThread.get()).isSameAs(mainThread);
+    } finally {
+      defaultAsyncAccountDb.shutdown();
+    }
+  }
+
+  @Test
+  public void testShutdownWaitsForPendingOperations() throws Exception {
+    AsyncAccountDb defaultAsyncAccountDb = new AsyncAccountDb(() -> accountDb);
+    defaultAsyncAccountDb.submit(
+        db -> {
+          try {
+            Thread.sleep(200);
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+          return db.add(ACCOUNT.getName(), SECRET, OtpType.TOTP, null, null, null);
+        },
+        null);
+    defaultAsyncAccountDb.shutdown();
+
+    assertThat(accountDb.getAccounts()).containsExactly(ACCOUNT);
+  }
+
+  private void runAll() {
+    workerExecutor.runAll();
+    callbackExecutor.runAll();
+  }
+
+  /** {@link Executor} which runs the submitted tasks only when asked to. */
+  private static class QueueingExecutor implements Executor {
+    private final List<Runnable> tasks = new ArrayList<>();
+
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      // Tasks may submit further tasks, e.g., the worker submitting callbacks
+      while (!tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.otp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.io.BaseEncoding;
+import java.util.Arrays;
+import java.util.Random;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link HmacSha1Signer}. */
+@RunWith(JUnit4.class)
+public class HmacSha1SignerTest {
+
+  /** Secret used by the test vectors of RFC 4226 and RFC 6238 (SHA1). */
+  private static final byte[] RFC_SECRET = "12345678901234567890".getBytes();
+
+  @Test
+  public void testRfc4226TestVectors() throws Exception {
+    String[] expectedCodes = {
+      "755224", "287082", "359152", "969429", "338314",
+      "254676", "287922", "162583", "399871", "520489",
+    };
+    PasscodeGenerator generator = new PasscodeGenerator(new HmacSha1Signer(RFC_SECRET), 6);
+    for (int counter = 0; counter < expectedCodes.length; counter++) {
+      assertThat(generator.generateResponseCode(counter)).isEqualTo(expectedCodes[counter]);
+    }
+  }
+
+  @Test
+  public void testRfc6238TestVectors() throws Exception {
+    long[] timesSeconds = {59L, 1111111109L, 1111111111L, 1234567890L, 2000000000L, 20000000000L};
+    String[] expectedCodes = {
+      "94287082", "07081804", "14050471", "89005924", "69279037", "65353130",
+    };
+    PasscodeGenerator generator = new PasscodeGenerator(new HmacSha1Signer(RFC_SECRET), 8);
+    TotpCounter counter = new TotpCounter(30);
+    for (int i = 0; i < timesSeconds.length; i++) {
+      assertThat(generator.generateResponseCode(counter.getValueAtTime(timesSeconds[i])))
+          .isEqualTo(expectedCodes[i]);
+    }
+  }
+
+  @Test
+  public void testRfc2202TestVectors() throws Exception {
+    byte[] key = new byte[20];
+    Arrays.fill(key, (byte) 0x0b);
+    assertSignature(key, "Hi There".getBytes(), "b617318655057264e28bc0b6fb378c8ef146be00");
+
+    assertSignature(
+        "Jefe".getBytes(),
+        "what do ya want for nothing?".getBytes(),
+        "effcdf6ae5eb2fa2d27416d5f184df9c259a7c79");
+
+    // Key longer than a SHA-1 block
+    key = new byte[80];
+    Arrays.fill(key, (byte) 0xaa);
+    assertSignature(
+        key,
+        "Test Using Larger Than Block-Size Key - Hash Key First".getBytes(),
+        "aa4ae5e15272d00e95705637ce8a3b55ed402112");
+  }
+
+  @Test
+  public void testMatchesMac() throws Exception {
+    Random random = new Random(0);
+    // Cover keys and messages shorter than, equal to and longer than a block, as well as messages
+    // whose padding does and does not fit into their last block.
+    int[] lengths = {1, 8, 20, 54, 55, 56, 63, 64, 65, 119, 120, 128, 200};
+    for (int keyLength : lengths) {
+      byte[] key = new byte[keyLength];
+      random.nextBytes(key);
+      Mac mac = Mac.getInstance("HMACSHA1");
+      mac.init(new SecretKeySpec(key, ""));
+      HmacSha1Signer signer = new HmacSha1Signer(key);
+      byte[] output = new byte[HmacSha1Signer.SIGNATURE_LENGTH];
+      for (int dataLength = 0; dataLength <= 200; dataLength++) {
+        byte[] data = new byte[dataLength];
+        random.nextBytes(data);
+        byte[] expected = mac.doFinal(data);
+        assertThat(signer.sign(data)).isEqualTo(expected);
+        assertThat(signer.sign(data, output)).isEqualTo(HmacSha1Signer.SIGNATURE_LENGTH);
+        assertThat(output).isEqualTo(expected);
+      }
+    }
+  }
+
+  @Test
+  public void testSign_bufferTooSmall() throws Exception {
+    try {
+      new HmacSha1Signer(RFC_SECRET).sign(new byte[8], new byte[19]);
+      fail("ShortBufferException should have been thrown");
+    } catch (ShortBufferException expected) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testConstruct_emptyKey() {
+    try {
+      new HmacSha1Signer(new byte[0]);
+      fail("IllegalArgumentException should have been thrown");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+
+  private static void assertSignature(byte[] key, byte[] data, String expectedHex) {
+    assertThat(BaseEncoding.base16().lowerCase().encode(new HmacSha1Signer(key).sign(data)))
+        .isEqualTo(expectedHex);
+  }
+}
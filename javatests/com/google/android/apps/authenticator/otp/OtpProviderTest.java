@@ -17,7 +17,10 @@
 package com.google.android.apps.authenticator.otp;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.MockitoAnnotations.initMocks;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
@@ -27,6 +30,7 @@ import com.google.android.apps.authenticator.otp.AccountDb.AccountIndex;
 import com.google.android.apps.authenticator.otp.AccountDb.OtpType;
 import com.google.android.apps.authenticator.testability.DependencyInjector;
 import com.google.android.apps.authenticator.util.Utilities;
+import java.util.Map;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -169,6 +173,68 @@ public class OtpProviderTest {
     assertThat(otpProvider.getNextCode(index)).isEqualTo("891123");
   }
 
+  @Test
+  public void testGetCurrentTotpCodes() throws Exception {
+    addSomeRecords();
+    withTotpClockCurrentTimeSeconds(OtpProvider.DEFAULT_INTERVAL * 1234567890L);
+    Map<AccountIndex, String> codes = otpProvider.getCurrentTotpCodes();
+    // Only the TOTP accounts, with the clock read once for all of them
+    verify(mockTotpClock, times(1)).nowMillis();
+    assertThat(codes.keySet()).containsExactly(ACCOUNT1, ACCOUNT2).inOrder();
+    assertThat(codes.get(ACCOUNT1)).isEqualTo(otpProvider.getNextCode(ACCOUNT1));
+    assertThat(codes.get(ACCOUNT2)).isEqualTo("817746");
+    // HOTP counters must not have been advanced
+    assertThat(accountDb.getCounter(ACCOUNT3)).isEqualTo(0);
+    assertThat(accountDb.getCounter(ACCOUNT4)).isEqualTo(0);
+  }
+
+  @Test
+  public void testGetCurrentTotpCodesNoRecords() {
+    assertThat(otpProvider.getCurrentTotpCodes()).isEmpty();
+  }
+
+  @Test
+  public void testGetCurrentTotpCodesAfterSecretUpdate() throws Exception {
+    addSomeRecords();
+    withTotpClockCurrentTimeSeconds(OtpProvider.DEFAULT_INTERVAL * 1234567890L);
+    assertThat(otpProvider.getCurrentTotpCodes().get(ACCOUNT2)).isEqualTo("817746");
+
+    // The signer cached for the old secret must not be used anymore
+    accountDb.update(ACCOUNT2, SECRET, OtpType.TOTP, null, null);
+    accountDb.update(ACCOUNT1, SECRET2, OtpType.TOTP, null, null);
+    assertThat(otpProvider.getCurrentTotpCodes().get(ACCOUNT1)).isEqualTo("817746");
+  }
+
+  @Test
+  public void testGetTotpCodesInTimeRange() throws Exception {
+    addSomeRecords();
+    long startTimeSeconds = OtpProvider.DEFAULT_INTERVAL * 1234567890L;
+    TotpCodeCursor cursor =
+        otpProvider.getTotpCodes(
+            ACCOUNT1,
+            Utilities.secondsToMillis(startTimeSeconds + 1),
+            Utilities.secondsToMillis(startTimeSeconds + 10 * OtpProvider.DEFAULT_INTERVAL));
+    for (int i = 0; i <= 10; i++) {
+      assertThat(cursor.moveToNext()).isTrue();
+      assertThat(cursor.getCounterValue()).isEqualTo(1234567890L + i);
+      withTotpClockCurrentTimeSeconds(startTimeSeconds + i * OtpProvider.DEFAULT_INTERVAL);
+      assertThat(cursor.getCode()).isEqualTo(otpProvider.getNextCode(ACCOUNT1));
+    }
+    assertThat(cursor.moveToNext()).isFalse();
+  }
+
+  @Test
+  public void testGetTotpCodesInTimeRangeHotpAccount() throws Exception {
+    addSomeRecords();
+    try {
+      otpProvider.getTotpCodes(ACCOUNT3, 0, 0);
+      fail("OtpSourceException should have been thrown");
+    } catch (OtpSourceException expected) {
+      // Expected
+    }
+    // The HOTP counter must not have been advanced
+    assertThat(accountDb.getCounter(ACCOUNT3)).isEqualTo(0);
+  }
 
   private void withTotpClockCurrentTimeSeconds(long timeSeconds) {
     doReturn(Utilities.secondsToMillis(timeSeconds)).when(mockTotpClock).nowMillis();
@@ -17,9 +17,14 @@
 package com.google.android.apps.authenticator.otp;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
 
 import com.google.android.apps.authenticator.otp.PasscodeGenerator.Signer;
 import com.google.android.apps.authenticator.util.Base32String;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import org.junit.Before;
@@ -147,4 +152,82 @@ public class PasscodeGeneratorTest {
     String codeFromSigning2 = new PasscodeGenerator(signer, 6).generateResponseCode(1L);
     assertThat(codeFromSigning.equals(codeFromSigning2)).isFalse();
   }
+
+  @Test
+  public void testGenerateResponseCode_matchesLegacyImplementationForAllLengths() throws Exception {
+    long[] states = {
+      0L, 1L, 1234L, 49325867L, 123456789123456789L, Long.MAX_VALUE, Long.MIN_VALUE, -1L
+    };
+    char[] buffer = new char[PasscodeGenerator.MAX_PASSCODE_LENGTH + 2];
+    for (int length = 0; length <= PasscodeGenerator.MAX_PASSCODE_LENGTH; length++) {
+      PasscodeGenerator generator = new PasscodeGenerator(mac1, length);
+      for (long state : states) {
+        assertResponseCodesMatchLegacy(generator, buffer, state, length);
+      }
+      for (long state = 0; state < 500; state++) {
+        assertResponseCodesMatchLegacy(generator, buffer, state, length);
+      }
+    }
+  }
+
+  @Test
+  public void testGenerateResponseCode_signerWithoutBufferedSign() throws Exception {
+    Signer signer = data -> mac2.doFinal(data);
+    PasscodeGenerator generator = new PasscodeGenerator(signer, 6);
+    assertThat(generator.generateResponseCode(123456789123456789L))
+        .isEqualTo(passcodeGenerator2.generateResponseCode(123456789123456789L));
+    assertThat(generator.generateResponseCodeValue(1234L))
+        .isEqualTo(passcodeGenerator2.generateResponseCodeValue(1234L));
+  }
+
+  @Test
+  public void testWriteResponseCode_atOffset() throws Exception {
+    char[] buffer = new char[10];
+    Arrays.fill(buffer, 'x');
+    assertThat(passcodeGenerator1.writeResponseCode(1233L, buffer, 2)).isEqualTo(6);
+    assertThat(new String(buffer)).isEqualTo("xx083501xx");
+  }
+
+  @Test
+  public void testWriteResponseCode_bufferTooSmall() throws Exception {
+    try {
+      passcodeGenerator1.writeResponseCode(0L, new char[8], 3);
+      fail("IndexOutOfBoundsException should have been thrown");
+    } catch (IndexOutOfBoundsException expected) {
+      // Expected
+    }
+  }
+
+  private void assertResponseCodesMatchLegacy(
+      PasscodeGenerator generator, char[] buffer, long state, int length) throws Exception {
+    String expected = generateLegacyResponseCode(mac1, length, state);
+    assertThat(generator.generateResponseCode(state)).isEqualTo(expected);
+    assertThat(generator.generateResponseCodeValue(state)).isEqualTo(Integer.parseInt(expected));
+    int written = generator.writeResponseCode(state, buffer, 1);
+    assertThat(written).isEqualTo(generator.getResponseCodeLength());
+    assertThat(new String(buffer, 1, written)).isEqualTo(expected);
+  }
+
+  /**
+   * Reference implementation of the response code, as generated by earlier versions of
+   * {@link PasscodeGenerator}.
+   */
+  private static String generateLegacyResponseCode(Mac mac, int codeLength, long state)
+      throws Exception {
+    byte[] hash = mac.doFinal(ByteBuffer.allocate(8).putLong(state).array());
+    int offset = hash[hash.length - 1] & 0xF;
+    int truncatedHash =
+        new DataInputStream(new ByteArrayInputStream(hash, offset, hash.length - offset))
+            .readInt() & 0x7FFFFFFF;
+    int power = 1;
+    for (int i = 0; i < codeLength; i++) {
+      power *= 10;
+    }
+    int pinValue = truncatedHash % power;
+    String result = Integer.toString(pinValue);
+    for (int i = result.length(); i < codeLength; i++) {
+      result = "0" + result;
+    }
+    return result;
+  }
 }
@@ -67,5 +67,26 @@ public class PinInfoTest {
     assertThat(pinInfoArray[1]).isEqualTo(pinInfo1);
     assertThat(pinInfoArray[0]).isEqualTo(pinInfo2);
   }
+
+  @Test
+  public void testMoveIndex() {
+    PinInfo[] pinInfoArray = new PinInfo[4];
+    for (int i = 0; i < pinInfoArray.length; i++) {
+      pinInfoArray[i] = new PinInfo(new AccountIndex("name" + i, null));
+    }
+    PinInfo[] original = pinInfoArray.clone();
+
+    PinInfo.moveIndex(pinInfoArray, 0, 2);
+    assertThat(pinInfoArray).asList()
+        .containsExactly(original[1], original[2], original[0], original[3]).inOrder();
+
+    PinInfo.moveIndex(pinInfoArray, 3, 1);
+    assertThat(pinInfoArray).asList()
+        .containsExactly(original[1], original[3], original[2], original[0]).inOrder();
+
+    PinInfo.moveIndex(pinInfoArray, 2, 2);
+    assertThat(pinInfoArray).asList()
+        .containsExactly(original[1], original[3], original[2], original[0]).inOrder();
+  }
 }
 
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.otp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.apps.authenticator.otp.AccountDb.AccountIndex;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountRecord;
+import com.google.android.apps.authenticator.otp.AccountDb.OtpType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link PinListUpdate}. */
+@RunWith(JUnit4.class)
+public class PinListUpdateTest {
+
+  private static final String EMPTY_PIN = "- - -";
+  private static final String SECRET = "7777777777777777"; // 16 sevens
+
+  private static final AccountRecord TOTP1 = totp("johndoe@gmail.com");
+  private static final AccountRecord TOTP2 = totp("amywinehouse@aol.com");
+  private static final AccountRecord HOTP1 =
+      new AccountRecord(new AccountIndex("maryweiss@yahoo.com", null), SECRET, OtpType.HOTP, 0);
+
+  @Test
+  public void testInitialList() {
+    PinListUpdate update =
+        PinListUpdate.compute(
+            new PinInfo[0],
+            Arrays.asList(TOTP1, HOTP1, TOTP2),
+            codes(TOTP1, "123456", TOTP2, "234567"),
+            EMPTY_PIN,
+            false);
+
+    assertThat(update.isStructureChanged()).isTrue();
+    assertThat(update.getAddedCount()).isEqualTo(3);
+    assertThat(update.getRemovedCount()).isEqualTo(0);
+    assertThat(update.getMovedCount()).isEqualTo(0);
+    PinInfo[] pins = update.getPins();
+    assertThat(pins[0].getPin()).isEqualTo("123456");
+    assertThat(pins[1].getPin()).isEqualTo(EMPTY_PIN);
+    assertThat(pins[1].isHotp()).isTrue();
+    assertThat(pins[1].isHotpCodeGenerationAllowed()).isTrue();
+    assertThat(pins[2].getPin()).isEqualTo("234567");
+  }
+
+  @Test
+  public void testOnlyChangedCodes() {
+    PinInfo[] pins =
+        PinListUpdate.compute(
+                new PinInfo[0],
+                Arrays.asList(TOTP1, HOTP1, TOTP2),
+                codes(TOTP1, "123456", TOTP2, "234567"),
+                EMPTY_PIN,
+                false)
+            .getPins();
+    pins[1].setPin("999999");
+
+    PinListUpdate update =
+        PinListUpdate.compute(
+            pins,
+            Arrays.asList(TOTP1, HOTP1, TOTP2),
+            codes(TOTP1, "123456", TOTP2, "345678"),
+            EMPTY_PIN,
+            false);
+
+    assertThat(update.isStructureChanged()).isFalse();
+    assertThat(update.getChangedPositions()).asList().containsExactly(2);
+    for (int i = 0; i < pins.length; i++) {
+      assertThat(update.getPins()[i]).isSameAs(pins[i]);
+    }
+    assertThat(pins[1].getPin()).isEqualTo("999999");
+    assertThat(pins[2].getPin()).isEqualTo("345678");
+  }
+
+  @Test
+  public void testResetHotpPins() {
+    PinInfo[] pins =
+        PinListUpdate.compute(
+                new PinInfo[0], Arrays.asList(TOTP1, HOTP1), codes(), EMPTY_PIN, false)
+            .getPins();
+    pins[1].setPin("999999");
+
+    PinListUpdate update =
+        PinListUpdate.compute(pins, Arrays.asList(TOTP1, HOTP1), codes(), EMPTY_PIN, true);
+
+    assertThat(update.isStructureChanged()).isFalse();
+    assertThat(update.getChangedPositions()).asList().containsExactly(1);
+    assertThat(pins[1].getPin()).isEqualTo(EMPTY_PIN);
+  }
+
+  @Test
+  public void testAccountAddedToLargeList() {
+    List<AccountRecord> accounts = new ArrayList<>();
+    Map<AccountIndex, String> codes = new HashMap<>();
+    for (int i = 0; i < 200; i++) {
+      AccountRecord account = totp("user" + i + "@example.com");
+      accounts.add(account);
+      codes.put(account.getIndex(), String.format("%06d", i));
+    }
+    PinInfo[] pins =
+        PinListUpdate.compute(new PinInfo[0], accounts, codes, EMPTY_PIN, false).getPins();
+
+    AccountRecord newAccount = totp("new@example.com");
+    accounts.add(newAccount);
+    codes.put(newAccount.getIndex(), "654321");
+    PinListUpdate update = PinListUpdate.compute(pins, accounts, codes, EMPTY_PIN, false);
+
+    assertThat(update.getAddedCount()).isEqualTo(1);
+    assertThat(update.getRemovedCount()).isEqualTo(0);
+    assertThat(update.getMovedCount()).isEqualTo(0);
+    assertThat(update.getChangedPositions()).asList().containsExactly(200);
+    assertThat(update.getPins()[200].getPin()).isEqualTo("654321");
+  }
+
+  @Test
+  public void testAccountsRemovedAndMoved() {
+    PinInfo[] pins =
+        PinListUpdate.compute(
+                new PinInfo[0],
+                Arrays.asList(TOTP1, HOTP1, TOTP2),
+                codes(TOTP1, "123456", TOTP2, "234567"),
+                EMPTY_PIN,
+                false)
+            .getPins();
+    pins[1].setPin("999999");
+
+    PinListUpdate update =
+        PinListUpdate.compute(
+            pins,
+            Arrays.asList(HOTP1, TOTP1),
+            codes(TOTP1, "123456"),
+            EMPTY_PIN,
+            false);
+
+    assertThat(update.isStructureChanged()).isTrue();
+    assertThat(update.getAddedCount()).isEqualTo(0);
+    assertThat(update.getRemovedCount()).isEqualTo(1);
+    assertThat(update.getMovedCount()).isEqualTo(2);
+    assertThat(update.getChangedPositions()).isEmpty();
+    // The HOTP account kept its PIN
+    assertThat(update.getPins()[0]).isSameAs(pins[1]);
+    assertThat(update.getPins()[0].getPin()).isEqualTo("999999");
+  }
+
+  @Test
+  public void testTypeChangeReplacesEntry() {
+    PinInfo[] pins =
+        PinListUpdate.compute(
+                new PinInfo[0], Arrays.asList(HOTP1), codes(), EMPTY_PIN, false)
+            .getPins();
+
+    AccountRecord nowTotp = new AccountRecord(HOTP1.getIndex(), SECRET, OtpType.TOTP, 0);
+    PinListUpdate update =
+        PinListUpdate.compute(
+            pins, Arrays.asList(nowTotp), codes(nowTotp, "123456"), EMPTY_PIN, false);
+
+    assertThat(update.getAddedCount()).isEqualTo(1);
+    assertThat(update.getRemovedCount()).isEqualTo(1);
+    assertThat(update.getPins()[0].isHotp()).isFalse();
+    assertThat(update.getPins()[0].getPin()).isEqualTo("123456");
+  }
+
+  private static AccountRecord totp(String name) {
+    return new AccountRecord(new AccountIndex(name, null), SECRET, OtpType.TOTP, 0);
+  }
+
+  private static Map<AccountIndex, String> codes(Object... accountsAndCodes) {
+    Map<AccountIndex, String> codes = new HashMap<>();
+    for (int i = 0; i < accountsAndCodes.length; i += 2) {
+      codes.put(((AccountRecord) accountsAndCodes[i]).getIndex(), (String) accountsAndCodes[i + 1]);
+    }
+    return codes;
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.otp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+import com.google.android.apps.authenticator.otp.AccountDb.AccountIndex;
+import com.google.android.apps.authenticator.otp.PasscodeGenerator.Signer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link SignerCache}. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SignerCacheTest {
+
+  private static final AccountIndex ACCOUNT1 = new AccountIndex("johndoe@gmail.com", null);
+  private static final AccountIndex ACCOUNT2 = new AccountIndex("maryweiss@yahoo.com", "Yahoo");
+
+  private static final String SECRET = "7777777777777777"; // 16 sevens
+  private static final String SECRET2 = "2222222222222222"; // 16 twos
+
+  private SignerCache signerCache;
+
+  @Before
+  public void setUp() throws Exception {
+    signerCache = new SignerCache();
+  }
+
+  @Test
+  public void testGetSigner_reusesSignerForSameSecret() {
+    Signer signer = signerCache.getSigner(ACCOUNT1, SECRET);
+    assertThat(signer).isNotNull();
+    assertThat(signerCache.getSigner(ACCOUNT1, SECRET)).isSameAs(signer);
+    assertThat(signerCache.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void testGetSigner_separateSignerPerAccount() {
+    Signer signer1 = signerCache.getSigner(ACCOUNT1, SECRET);
+    Signer signer2 = signerCache.getSigner(ACCOUNT2, SECRET);
+    assertThat(signer2).isNotSameAs(signer1);
+    assertThat(signerCache.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void testGetSigner_replacesSignerWhenSecretChanges() throws Exception {
+    Signer signer = signerCache.getSigner(ACCOUNT1, SECRET);
+    Signer newSigner = signerCache.getSigner(ACCOUNT1, SECRET2);
+    assertThat(newSigner).isNotSameAs(signer);
+    assertThat(new PasscodeGenerator(newSigner, 6).generateResponseCode(0L))
+        .isEqualTo(new PasscodeGenerator(AccountDb.getSigningOracle(SECRET2), 6)
+            .generateResponseCode(0L));
+    assertThat(signerCache.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void testGetSigner_producesSameCodesAsUncachedSigner() throws Exception {
+    PasscodeGenerator cached = new PasscodeGenerator(signerCache.getSigner(ACCOUNT1, SECRET), 6);
+    PasscodeGenerator uncached = new PasscodeGenerator(AccountDb.getSigningOracle(SECRET), 6);
+    for (long state = 0; state < 100; state++) {
+      assertThat(cached.generateResponseCode(state))
+          .isEqualTo(uncached.generateResponseCode(state));
+    }
+  }
+
+  @Test
+  public void testGetSigner_invalidSecret() {
+    signerCache.getSigner(ACCOUNT1, SECRET);
+    assertThat(signerCache.getSigner(ACCOUNT1, "1111")).isNull();
+    assertThat(signerCache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testInvalidate() {
+    Signer signer = signerCache.getSigner(ACCOUNT1, SECRET);
+    signerCache.getSigner(ACCOUNT2, SECRET2);
+    signerCache.invalidate(ACCOUNT1);
+    assertThat(signerCache.size()).isEqualTo(1);
+    assertThat(signerCache.getSigner(ACCOUNT1, SECRET)).isNotSameAs(signer);
+  }
+
+  @Test
+  public void testInvalidateAll() {
+    signerCache.getSigner(ACCOUNT1, SECRET);
+    signerCache.getSigner(ACCOUNT2, SECRET2);
+    signerCache.invalidateAll();
+    assertThat(signerCache.size()).isEqualTo(0);
+  }
+}
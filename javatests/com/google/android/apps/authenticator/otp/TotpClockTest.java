@@ -79,7 +79,7 @@ public class TotpClockTest {
 
   @Test
   public void testTimeCorrectionCaching() {
-    // Check that the preference is only read first time the the time correction value is requested
+    // Check that the cached value is updated when the preference is changed by someone else
     SharedPreferences preferences =
         PreferenceManager.getDefaultSharedPreferences(DependencyInjector.getContext());
     assertThat(preferences.edit().putInt(TotpClock.PREFERENCE_KEY_OFFSET_MINUTES, 7).commit())
@@ -87,7 +87,19 @@ public class TotpClockTest {
     assertThat(mClock.getTimeCorrectionMinutes()).isEqualTo(7);
     assertThat(preferences.edit().putInt(TotpClock.PREFERENCE_KEY_OFFSET_MINUTES, 42).commit())
         .isTrue();
-    assertThat(mClock.getTimeCorrectionMinutes()).isEqualTo(7);
+    // Change listeners are notified on the main thread
+    InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+    assertThat(mClock.getTimeCorrectionMinutes()).isEqualTo(42);
+  }
+
+  @Test
+  public void testTimeCorrectionSharedBetweenInstances() {
+    TotpClock otherClock = new TotpClock(DependencyInjector.getContext(), mMockSystemWallClock);
+    assertThat(otherClock.getTimeCorrectionMinutes()).isEqualTo(0);
+    mClock.setTimeCorrectionMinutes(-3);
+    assertThat(mClock.getTimeCorrectionMinutes()).isEqualTo(-3);
+    InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+    assertThat(otherClock.getTimeCorrectionMinutes()).isEqualTo(-3);
   }
 
   @Test
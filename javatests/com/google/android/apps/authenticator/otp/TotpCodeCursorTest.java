@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.otp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.android.apps.authenticator.util.Base32String;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link TotpCodeCursor}. */
+@RunWith(JUnit4.class)
+public class TotpCodeCursorTest {
+
+  private static final String SECRET = "7777777777777777"; // 16 sevens
+  private static final long TIME_STEP_SECONDS = 30;
+
+  private HmacSha1Signer signer;
+
+  @Before
+  public void setUp() throws Exception {
+    signer = new HmacSha1Signer(Base32String.decode(SECRET));
+  }
+
+  @Test
+  public void testCodesInRange() throws Exception {
+    TotpCodeCursor cursor =
+        TotpCodeCursor.forTimeRange(
+            new TotpCounter(TIME_STEP_SECONDS),
+            signer,
+            6,
+            1231 * TIME_STEP_SECONDS + 29,
+            1237 * TIME_STEP_SECONDS);
+
+    List<Long> counterValues = new ArrayList<>();
+    List<String> codes = new ArrayList<>();
+    while (cursor.moveToNext()) {
+      counterValues.add(cursor.getCounterValue());
+      codes.add(cursor.getCode());
+    }
+    assertThat(counterValues)
+        .containsExactly(1231L, 1232L, 1233L, 1234L, 1235L, 1236L, 1237L)
+        .inOrder();
+    assertThat(codes)
+        .containsExactly("422609", "628381", "083501", "607007", "972746", "706552", "342936")
+        .inOrder();
+    assertThat(cursor.moveToNext()).isFalse();
+  }
+
+  @Test
+  public void testCodesMatchPasscodeGenerator() throws Exception {
+    PasscodeGenerator generator = new PasscodeGenerator(signer, 8);
+    TotpCodeCursor cursor = new TotpCodeCursor(signer, 8, 0, 999);
+    char[] code = new char[10];
+    for (long counterValue = 0; counterValue <= 999; counterValue++) {
+      assertThat(cursor.moveToNext()).isTrue();
+      String expected = generator.generateResponseCode(counterValue);
+      assertThat(cursor.getCodeValue()).isEqualTo(Integer.parseInt(expected));
+      cursor.writeCode(code, 2);
+      assertThat(new String(code, 2, 8)).isEqualTo(expected);
+    }
+    assertThat(cursor.moveToNext()).isFalse();
+  }
+
+  @Test
+  public void testSingleWindow() throws Exception {
+    TotpCodeCursor cursor = new TotpCodeCursor(signer, 6, 1234, 1234);
+    assertThat(cursor.moveToNext()).isTrue();
+    assertThat(cursor.getCode()).isEqualTo("607007");
+    assertThat(cursor.moveToNext()).isFalse();
+  }
+
+  @Test
+  public void testNotPositioned() throws Exception {
+    TotpCodeCursor cursor = new TotpCodeCursor(signer, 6, 1234, 1234);
+    try {
+      cursor.getCodeValue();
+      fail("NoSuchElementException should have been thrown");
+    } catch (NoSuchElementException expected) {
+      // Expected
+    }
+
+    cursor.moveToNext();
+    cursor.moveToNext();
+    try {
+      cursor.getCode();
+      fail("NoSuchElementException should have been thrown");
+    } catch (NoSuchElementException expected) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testWriteCode_bufferTooSmall() throws Exception {
+    TotpCodeCursor cursor = new TotpCodeCursor(signer, 6, 1234, 1234);
+    cursor.moveToNext();
+    try {
+      cursor.writeCode(new char[7], 2);
+      fail("IndexOutOfBoundsException should have been thrown");
+    } catch (IndexOutOfBoundsException expected) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testEmptyRange() {
+    try {
+      new TotpCodeCursor(signer, 6, 1235, 1234);
+      fail("IllegalArgumentException should have been thrown");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+}
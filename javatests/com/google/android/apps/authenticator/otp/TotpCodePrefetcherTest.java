@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.otp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.android.apps.authenticator.otp.AccountDb.OtpType;
+import com.google.android.apps.authenticator.testability.DependencyInjector;
+import com.google.android.apps.authenticator.util.Utilities;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+
+/** Unit tests for {@link TotpCodePrefetcher}. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class TotpCodePrefetcherTest {
+
+  private static final String SECRET = "7777777777777777"; // 16 sevens
+  private static final String SECRET2 = "2222222222222222"; // 16 twos
+  private static final long LEAD_TIME_MILLIS = 2000;
+  private static final long COUNTER_VALUE = 1234567890L;
+
+  private AccountDb accountDb;
+  private OtpProvider otpProvider;
+  private QueueingExecutor executor;
+  private TotpCodePrefetcher prefetcher;
+  @Mock private TotpClock mockTotpClock;
+
+  @Before
+  public void setUp() throws Exception {
+    DependencyInjector.resetForIntegrationTesting(
+        InstrumentationRegistry.getInstrumentation().getTargetContext());
+    initMocks(this);
+
+    accountDb = DependencyInjector.getAccountDb();
+    otpProvider = new OtpProvider(accountDb, mockTotpClock);
+    executor = new QueueingExecutor();
+    prefetcher = new TotpCodePrefetcher(accountDb, otpProvider, executor, false, LEAD_TIME_MILLIS);
+
+    accountDb.add("johndoe@gmail.com", SECRET, OtpType.TOTP, null, null, null);
+    accountDb.add("amywinehouse@aol.com", SECRET2, OtpType.TOTP, null, null, "Yahoo");
+    accountDb.add("maryweiss@yahoo.com", SECRET, OtpType.HOTP, 0, null, null);
+
+    // One second before the counter changes its value to COUNTER_VALUE + 1
+    withTotpClockCurrentTimeMillis(
+        Utilities.secondsToMillis(OtpProvider.DEFAULT_INTERVAL * (COUNTER_VALUE + 1)) - 1000);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    DependencyInjector.close();
+  }
+
+  @Test
+  public void testNoPrefetchingBeforeLeadTime() {
+    prefetcher.onTotpCountdown(LEAD_TIME_MILLIS + 1);
+    assertThat(executor.tasks).isEmpty();
+  }
+
+  @Test
+  public void testPrefetchesCodesForNextCounterValue() {
+    prefetcher.onTotpCountdown(1000);
+    executor.runAll();
+
+    assertThat(prefetcher.takeCodes(COUNTER_VALUE)).isNull();
+    TotpCodePrefetcher.Codes codes = prefetcher.takeCodes(COUNTER_VALUE + 1);
+    assertThat(codes).isNotNull();
+    assertThat(codes.getCounterValue()).isEqualTo(COUNTER_VALUE + 1);
+    assertThat(codes.getAccounts()).hasSize(3);
+    assertThat(codes.getCodes())
+        .containsExactlyEntriesIn(otpProvider.getTotpCodes(codes.getAccounts(), COUNTER_VALUE + 1))
+        .inOrder();
+    assertThat(codes.getCodes()).hasSize(2);
+
+    // Codes are handed out only once
+    assertThat(prefetcher.takeCodes(COUNTER_VALUE + 1)).isNull();
+  }
+
+  @Test
+  public void testPrefetchesOncePerCounterValue() {
+    prefetcher.onTotpCountdown(1000);
+    prefetcher.onTotpCountdown(900);
+    prefetcher.onTotpCountdown(800);
+    assertThat(executor.tasks).hasSize(1);
+  }
+
+  @Test
+  public void testInvalidateDiscardsPrefetchedCodes() {
+    prefetcher.onTotpCountdown(1000);
+    executor.runAll();
+    prefetcher.invalidate();
+    assertThat(prefetcher.takeCodes(COUNTER_VALUE + 1)).isNull();
+
+    // Prefetching can be requested again for the same counter value after invalidation
+    prefetcher.onTotpCountdown(900);
+    executor.runAll();
+    assertThat(prefetcher.takeCodes(COUNTER_VALUE + 1)).isNotNull();
+  }
+
+  @Test
+  public void testInvalidateDiscardsCodesBeingPrefetched() {
+    prefetcher.onTotpCountdown(1000);
+    accountDb.delete(new AccountDb.AccountIndex("johndoe@gmail.com", null));
+    prefetcher.invalidate();
+    executor.runAll();
+    assertThat(prefetcher.takeCodes(COUNTER_VALUE + 1)).isNull();
+  }
+
+  private void withTotpClockCurrentTimeMillis(long timeMillis) {
+    doReturn(timeMillis).when(mockTotpClock).nowMillis();
+  }
+
+  /** {@link Executor} which runs the submitted tasks only when asked to. */
+  private static class QueueingExecutor implements Executor {
+    private final List<Runnable> tasks = new ArrayList<>();
+
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      for (Runnable task : tasks) {
+        task.run();
+      }
+      tasks.clear();
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.otp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.app.Instrumentation;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.android.apps.authenticator.testability.DependencyInjector;
+import com.google.android.apps.authenticator.time.Clock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/** Unit tests for the scheduling of {@link TotpCountdownTask}. */
+@RunWith(JUnit4.class)
+public class TotpCountdownTaskTest {
+
+  /** Time (milliseconds since epoch) early in the window of counter value 1, with 30s windows. */
+  private static final long START_TIME_MILLIS = 31000;
+
+  @Mock private Clock mMockSystemWallClock;
+  @Mock private TotpCountdownTask.Listener mMockListener;
+  private Instrumentation mInstrumentation;
+  private TotpClock mClock;
+  private TotpCountdownTask mTask;
+
+  @Before
+  public void setUp() throws Exception {
+    mInstrumentation = InstrumentationRegistry.getInstrumentation();
+    DependencyInjector.resetForIntegrationTesting(mInstrumentation.getTargetContext());
+    MockitoAnnotations.initMocks(this);
+    doReturn(START_TIME_MILLIS).when(mMockSystemWallClock).nowMillis();
+    mClock = new TotpClock(DependencyInjector.getContext(), mMockSystemWallClock);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (mTask != null) {
+      mInstrumentation.runOnMainSync(() -> mTask.stop());
+    }
+    DependencyInjector.close();
+  }
+
+  @Test
+  public void testTimeTillNextWakeupWithoutAdvanceNotice() {
+    assertThat(TotpCountdownTask.getTimeTillNextWakeup(30000, 0)).isEqualTo(30000);
+    assertThat(TotpCountdownTask.getTimeTillNextWakeup(12345, 0)).isEqualTo(12345);
+    assertThat(TotpCountdownTask.getTimeTillNextWakeup(1, 0)).isEqualTo(1);
+  }
+
+  @Test
+  public void testTimeTillNextWakeupWithAdvanceNotice() {
+    // Wake up for the advance notice first...
+    assertThat(TotpCountdownTask.getTimeTillNextWakeup(30000, 2000)).isEqualTo(28000);
+    assertThat(TotpCountdownTask.getTimeTillNextWakeup(2001, 2000)).isEqualTo(1);
+    // ... then for the change of the counter value
+    assertThat(TotpCountdownTask.getTimeTillNextWakeup(2000, 2000)).isEqualTo(2000);
+    assertThat(TotpCountdownTask.getTimeTillNextWakeup(1999, 2000)).isEqualTo(1999);
+  }
+
+  @Test
+  public void testTimeCorrectionChangeNotifiesListenerImmediately() {
+    startTask();
+    verify(mMockListener, times(1)).onTotpCounterValueChanged();
+
+    // Moves the clock to the next counter value, long before the scheduled wakeup
+    mClock.setTimeCorrectionMinutes(1);
+    // Change listeners are notified on the main thread
+    mInstrumentation.waitForIdleSync();
+    verify(mMockListener, times(2)).onTotpCounterValueChanged();
+  }
+
+  @Test
+  public void testSystemTimeSetNotifiesListenerImmediately() {
+    startTask();
+    verify(mMockListener, times(1)).onTotpCounterValueChanged();
+
+    // Moves the clock to the next counter value, long before the scheduled wakeup
+    doReturn(START_TIME_MILLIS + 30000).when(mMockSystemWallClock).nowMillis();
+    mInstrumentation.runOnMainSync(() -> mClock.onSystemTimeSet());
+    verify(mMockListener, times(2)).onTotpCounterValueChanged();
+  }
+
+  @Test
+  public void testStoppedTaskIgnoresClockChanges() {
+    startTask();
+    mInstrumentation.runOnMainSync(() -> mTask.stop());
+
+    doReturn(START_TIME_MILLIS + 30000).when(mMockSystemWallClock).nowMillis();
+    mInstrumentation.runOnMainSync(() -> mClock.onSystemTimeSet());
+    verify(mMockListener, times(1)).onTotpCounterValueChanged();
+  }
+
+  @Test
+  public void testTimeTillNextNotificationAlignedToCounterValue() {
+    assertThat(TotpCountdownTask.getTimeTillNextNotification(0, 100)).isEqualTo(100);
+    assertThat(TotpCountdownTask.getTimeTillNextNotification(1, 100)).isEqualTo(99);
+    assertThat(TotpCountdownTask.getTimeTillNextNotification(29950, 100)).isEqualTo(50);
+  }
+
+  /** Starts the task on the main thread, which it needs to schedule its wakeups. */
+  private void startTask() {
+    mInstrumentation.runOnMainSync(
+        () -> {
+          mTask = new TotpCountdownTask(new TotpCounter(30), mClock, 100);
+          mTask.setListener(mMockListener);
+          mTask.startAndNotifyListener();
+        });
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.authenticator.otp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.apps.authenticator.otp.AccountDb.AccountIndex;
+import com.google.android.apps.authenticator.otp.PasscodeGenerator.Signer;
+import com.google.android.apps.authenticator.otp.TotpVerifier.Result;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link TotpVerifier}. */
+@RunWith(JUnit4.class)
+public class TotpVerifierTest {
+
+  private static final AccountIndex ACCOUNT1 = new AccountIndex("johndoe@gmail.com", null);
+  private static final AccountIndex ACCOUNT2 = new AccountIndex("maryweiss@yahoo.com", "Yahoo");
+  private static final String SECRET = "7777777777777777"; // 16 sevens
+
+  /*
+   * Codes of SECRET for the counter values around 1234:
+   *         1231, 422609
+   *         1232, 628381
+   *         1233, 083501
+   *         1234, 607007
+   *         1235, 972746
+   *         1236, 706552
+   *         1237, 342936
+   */
+  private static final long TIME_STEP_SECONDS = 30;
+  private static final long NOW_MILLIS = (1234 * TIME_STEP_SECONDS + 7) * 1000;
+
+  private Signer signer;
+  private TotpCounter counter;
+
+  @Before
+  public void setUp() throws Exception {
+    signer = new SignerCache().getSigner(ACCOUNT1, SECRET);
+    counter = new TotpCounter(TIME_STEP_SECONDS);
+  }
+
+  @Test
+  public void testVerifyWithinWindow() throws Exception {
+    TotpVerifier verifier = new TotpVerifier(counter, 2, 1, 6);
+    assertThat(verifier.verify(ACCOUNT1, signer, "607007", NOW_MILLIS)).isEqualTo(Result.VALID);
+    assertThat(verifier.verify(ACCOUNT1, signer, "083501", NOW_MILLIS)).isEqualTo(Result.VALID);
+    assertThat(verifier.verify(ACCOUNT1, signer, "628381", NOW_MILLIS)).isEqualTo(Result.VALID);
+    assertThat(verifier.verify(ACCOUNT1, signer, "972746", NOW_MILLIS)).isEqualTo(Result.VALID);
+  }
+
+  @Test
+  public void testVerifyOutsideWindow() throws Exception {
+    TotpVerifier verifier = new TotpVerifier(counter, 2, 1, 6);
+    assertThat(verifier.verify(ACCOUNT1, signer, "422609", NOW_MILLIS)).isEqualTo(Result.INVALID);
+    assertThat(verifier.verify(ACCOUNT1, signer, "706552", NOW_MILLIS)).isEqualTo(Result.INVALID);
+    assertThat(verifier.verify(ACCOUNT1, signer, "000000", NOW_MILLIS)).isEqualTo(Result.INVALID);
+
+    TotpVerifier strictVerifier = new TotpVerifier(counter, 0, 0, 6);
+    assertThat(strictVerifier.verify(ACCOUNT1, signer, "607007", NOW_MILLIS))
+        .isEqualTo(Result.VALID);
+    assertThat(strictVerifier.verify(ACCOUNT1, signer, "083501", NOW_MILLIS))
+        .isEqualTo(Result.INVALID);
+    assertThat(strictVerifier.verify(ACCOUNT1, signer, "972746", NOW_MILLIS))
+        .isEqualTo(Result.INVALID);
+  }
+
+  @Test
+  public void testVerifyMalformedCodes() throws Exception {
+    TotpVerifier verifier = new TotpVerifier(counter, 1, 1, 6);
+    assertThat(verifier.verify(ACCOUNT1, signer, null, NOW_MILLIS)).isEqualTo(Result.INVALID);
+    assertThat(verifier.verify(ACCOUNT1, signer, "", NOW_MILLIS)).isEqualTo(Result.INVALID);
+    assertThat(verifier.verify(ACCOUNT1, signer, "83501", NOW_MILLIS)).isEqualTo(Result.INVALID);
+    assertThat(verifier.verify(ACCOUNT1, signer, "0607007", NOW_MILLIS)).isEqualTo(Result.INVALID);
+    assertThat(verifier.verify(ACCOUNT1, signer, "60700a", NOW_MILLIS)).isEqualTo(Result.INVALID);
+    assertThat(verifier.verify(ACCOUNT1, signer, "-07007", NOW_MILLIS)).isEqualTo(Result.INVALID);
+  }
+
+  @Test
+  public void testVerifyRejectsReplay() throws Exception {
+    TotpVerifier verifier = new TotpVerifier(counter, 1, 1, 6);
+    assertThat(verifier.verify(ACCOUNT1, signer, "607007", NOW_MILLIS)).isEqualTo(Result.VALID);
+    assertThat(verifier.verify(ACCOUNT1, signer, "607007", NOW_MILLIS)).isEqualTo(Result.REPLAYED);
+    // Still a replay in the next time window, where the code is accepted as a past one
+    assertThat(verifier.verify(ACCOUNT1, signer, "607007", NOW_MILLIS + TIME_STEP_SECONDS * 1000))
+        .isEqualTo(Result.REPLAYED);
+    // Another account with the same secret has not used the code yet
+    assertThat(verifier.verify(ACCOUNT2, signer, "607007", NOW_MILLIS)).isEqualTo(Result.VALID);
+  }
+
+  @Test
+  public void testUsedCodesAreEvicted() throws Exception {
+    TotpVerifier verifier = new TotpVerifier(counter, 1, 1, 6);
+    assertThat(verifier.verify(ACCOUNT1, signer, "083501", NOW_MILLIS)).isEqualTo(Result.VALID);
+    assertThat(verifier.verify(ACCOUNT1, signer, "607007", NOW_MILLIS)).isEqualTo(Result.VALID);
+    assertThat(verifier.verify(ACCOUNT1, signer, "972746", NOW_MILLIS)).isEqualTo(Result.VALID);
+    assertThat(verifier.getUsedCodeBucketCount()).isEqualTo(3);
+
+    // Two windows later, the codes used for 1233 and 1234 can no longer be accepted
+    verifier.verify(ACCOUNT1, signer, "000000", NOW_MILLIS + 2 * TIME_STEP_SECONDS * 1000);
+    assertThat(verifier.getUsedCodeBucketCount()).isEqualTo(1);
+
+    // Much later, none of them can
+    verifier.verify(ACCOUNT1, signer, "000000", NOW_MILLIS + 100 * TIME_STEP_SECONDS * 1000);
+    assertThat(verifier.getUsedCodeBucketCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testEvictedCodesAreRejectedForEarlierTimes() throws Exception {
+    TotpVerifier verifier = new TotpVerifier(counter, 1, 1, 6);
+    assertThat(verifier.verify(ACCOUNT1, signer, "607007", NOW_MILLIS)).isEqualTo(Result.VALID);
+
+    // Evicts the codes used for 1234
+    verifier.verify(ACCOUNT1, signer, "000000", NOW_MILLIS + 2 * TIME_STEP_SECONDS * 1000);
+    assertThat(verifier.getUsedCodeBucketCount()).isEqualTo(0);
+
+    // The use of the code has been forgotten, so it must not be accepted again
+    assertThat(verifier.verify(ACCOUNT1, signer, "607007", NOW_MILLIS))
+        .isEqualTo(Result.REPLAYED);
+    assertThat(verifier.getUsedCodeBucketCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testConcurrentVerificationAcceptsCodeOnce() throws Exception {
+    final TotpVerifier verifier = new TotpVerifier(counter, 1, 1, 6);
+    int threadCount = 16;
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<Result>> results = new ArrayList<>();
+      for (int i = 0; i < threadCount; i++) {
+        results.add(
+            executor.submit(
+                new Callable<Result>() {
+                  @Override
+                  public Result call() throws Exception {
+                    startLatch.await();
+                    return verifier.verify(ACCOUNT1, signer, "607007", NOW_MILLIS);
+                  }
+                }));
+      }
+      startLatch.countDown();
+
+      int validCount = 0;
+      for (Future<Result> result : results) {
+        if (result.get() == Result.VALID) {
+          validCount++;
+        } else {
+          assertThat(result.get()).isEqualTo(Result.REPLAYED);
+        }
+      }
+      assertThat(validCount).isEqualTo(1);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
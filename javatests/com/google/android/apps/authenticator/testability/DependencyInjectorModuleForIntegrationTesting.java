@@ -20,9 +20,13 @@ import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 
 import android.content.Context;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import com.google.android.apps.authenticator.AuthenticatorApplication;
 import com.google.android.apps.authenticator.otp.AccountDb;
+import com.google.android.apps.authenticator.otp.AsyncAccountDb;
+import com.google.android.apps.authenticator.util.concurrent.RunOnThisLooperThreadExecutor;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.mockito.Mockito;
 
 /**
@@ -56,4 +60,15 @@ public class DependencyInjectorModuleForIntegrationTesting extends DependencyInj
     AccountDb.deleteDatabase(getContext());
     return super.createAccountDb();
   }
+
+  @Override
+  protected AsyncAccountDb createAsyncAccountDb() {
+    // Run the operations on the calling thread so that tests observe their effects synchronously.
+    // Tests of the asynchronous behavior override this method to use the production instance.
+    return new AsyncAccountDb(
+        this::getAccountDb,
+        MoreExecutors.directExecutor(),
+        false,
+        new RunOnThisLooperThreadExecutor(Looper.getMainLooper()));
+  }
 }
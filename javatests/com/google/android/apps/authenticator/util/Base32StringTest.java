@@ -20,6 +20,9 @@ import static com.google.common.truth.Truth.assertThat;
 
 import com.google.android.apps.authenticator.util.Base32String.DecodingException;
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -116,6 +119,69 @@ public class Base32StringTest {
     }
   }
 
+  @Test
+  public void testDecodeIgnoresCaseWhitespaceSeparatorsAndPadding() throws DecodingException {
+    byte[] expected = Base32String.decode(OUTPUT4);
+    assertThat(Base32String.decode("mzxw6ytboi")).isEqualTo(expected);
+    assertThat(Base32String.decode(" \tMZXW-6YTB OI\n")).isEqualTo(expected);
+    assertThat(Base32String.decode("MZXW6YTBOI======")).isEqualTo(expected);
+    assertThat(Base32String.decode("MZXW6YTBOI=- =-")).isEqualTo(expected);
+    assertThat(Base32String.decode(new StringBuilder(OUTPUT4))).isEqualTo(expected);
+    // Non-ASCII characters which upper-case to ASCII letters (dotless i, long s) are accepted
+    assertThat(Base32String.decode("\u0131\u017f")).isEqualTo(Base32String.decode("IS"));
+
+    // Padding and whitespace are only ignored at the end
+    assertThat(checkDecoding("MZXW6=YTBOI")).isNull();
+    assertThat(checkDecoding("MZXW6\tYTBOI")).isNull();
+  }
+
+  @Test
+  public void testDecodeIntoArray() throws DecodingException {
+    byte[] output = new byte[INPUT4.length + 2];
+    assertThat(Base32String.decode(OUTPUT4, output, 1)).isEqualTo(INPUT4.length);
+    assertThat(Arrays.copyOfRange(output, 1, 1 + INPUT4.length)).isEqualTo(INPUT4);
+    assertThat(output[0]).isEqualTo((byte) 0);
+    assertThat(output[output.length - 1]).isEqualTo((byte) 0);
+
+    try {
+      Base32String.decode(OUTPUT4, new byte[INPUT4.length], 1);
+      Assert.fail();
+    } catch (IndexOutOfBoundsException e) {
+      // expected.
+    }
+  }
+
+  @Test
+  public void testDecodeIntoByteBuffer() throws DecodingException {
+    ByteBuffer output = ByteBuffer.allocate(INPUT4.length + 1);
+    output.put((byte) 1);
+    assertThat(Base32String.decode(OUTPUT4, output)).isEqualTo(INPUT4.length);
+    assertThat(output.position()).isEqualTo(INPUT4.length + 1);
+    assertThat(Arrays.copyOfRange(output.array(), 1, 1 + INPUT4.length)).isEqualTo(INPUT4);
+
+    ByteBuffer tooSmall = ByteBuffer.allocate(INPUT4.length - 1);
+    try {
+      Base32String.decode(OUTPUT4, tooSmall);
+      Assert.fail();
+    } catch (BufferOverflowException e) {
+      // expected.
+    }
+    assertThat(tooSmall.position()).isEqualTo(0);
+  }
+
+  @Test
+  public void testGetDecodedLength() throws DecodingException {
+    assertThat(Base32String.getDecodedLength(OUTPUT4)).isEqualTo(INPUT4.length);
+    assertThat(Base32String.getDecodedLength("AA-AA==")).isEqualTo(2);
+    assertThat(Base32String.getDecodedLength("")).isEqualTo(0);
+    try {
+      Base32String.getDecodedLength("AAA8");
+      Assert.fail();
+    } catch (DecodingException e) {
+      // expected.
+    }
+  }
+
   private static byte[] string2Bytes(String s) {
     try {
       return s.getBytes("UTF-8");